@@ -29,6 +29,32 @@ public interface DaoRegistryUser extends FhirContextUser {
 
 	public DaoRegistry getDaoRegistry();
 
+	/**
+	 * Returns the memo of the SearchParameters already made sure to exist on this
+	 * server, or null to look them up every time.
+	 *
+	 * @return the memo
+	 */
+	public default SearchParameterMemo getSearchParameterMemo() {
+		return null;
+	}
+
+	/**
+	 * Runs the ensure action for a SearchParameter, once per server when there is
+	 * a {@link SearchParameterMemo}.
+	 *
+	 * @param key    identifies the SearchParameter, usually its url and version
+	 * @param ensure looks up the SearchParameter and creates it if missing
+	 */
+	public default void ensureSearchParameter(String key, Runnable ensure) {
+		SearchParameterMemo searchParameterMemo = getSearchParameterMemo();
+		if (searchParameterMemo == null) {
+			ensure.run();
+		} else {
+			searchParameterMemo.ensure(key, ensure);
+		}
+	}
+
 	public default FhirContext getFhirContext() {
 		return getDaoRegistry().getSystemDao().getContext();
 	}
@@ -0,0 +1,38 @@
+package org.opencds.cqf.ruler.behavior;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remembers which SearchParameters the behavior interfaces have already made
+ * sure exist, so each one is looked up once per server rather than on every
+ * request. One memo is kept per application context, as a bean, and is cleared
+ * by {@link #reset()} when a SearchParameter changes.
+ */
+public class SearchParameterMemo {
+
+	private final Set<String> ensured = new HashSet<>();
+
+	/**
+	 * Runs the ensure action unless it has already completed for this key.
+	 * Concurrent first calls are serialized, so the action never runs twice at
+	 * once and cannot create duplicates.
+	 *
+	 * @param key    identifies the SearchParameter, usually its url and version
+	 * @param ensure looks up the SearchParameter and creates it if missing
+	 */
+	public void ensure(String key, Runnable ensure) {
+		synchronized (ensured) {
+			if (ensured.contains(key))
+				return;
+			ensure.run();
+			ensured.add(key);
+		}
+	}
+
+	public void reset() {
+		synchronized (ensured) {
+			ensured.clear();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.opencds.cqf.ruler.behavior.r4;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Walks the members of a Group, and of the Groups nested in it, and yields each
+ * member Patient once, in member order. Only the Groups being walked, the ids
+ * seen so far and the current batch of Patients are held in memory. Patients
+ * are read a batch at a time, and a Group that is reached again, through a
+ * cycle or otherwise, is not walked again.
+ */
+class GroupMemberIterator implements Iterator<Patient> {
+	private static final Logger logger = LoggerFactory.getLogger(GroupMemberIterator.class);
+
+	private final ParameterUser parameterUser;
+	private final RequestDetails requestDetails;
+	private final int batchSize;
+	private final Deque<Iterator<Group.GroupMemberComponent>> groups = new ArrayDeque<>();
+	private final Set<String> visitedGroups = new HashSet<>();
+	private final Set<String> seenPatients = new HashSet<>();
+	private final Deque<Patient> checked = new ArrayDeque<>();
+
+	GroupMemberIterator(ParameterUser parameterUser, String groupId, int batchSize, RequestDetails requestDetails) {
+		this.parameterUser = parameterUser;
+		this.requestDetails = requestDetails;
+		this.batchSize = Math.max(1, batchSize);
+		enter(groupId);
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (checked.isEmpty()) {
+			if (!checkNextBatch()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Patient next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return checked.removeFirst();
+	}
+
+	private void enter(String groupId) {
+		IdType id = new IdType(groupId);
+		if (!visitedGroups.add(id.getIdPart())) {
+			logger.info("Group {} was already expanded, so skipping.", groupId);
+			return;
+		}
+		Group group = parameterUser.read(parameterUser.newId(groupId), requestDetails);
+		if (group == null) {
+			throw new IllegalArgumentException("Could not find Group: " + groupId);
+		}
+		groups.push(group.getMember().iterator());
+	}
+
+	// Collects the next batch of unseen Patient ids and reads them with a single
+	// search
+	private boolean checkNextBatch() {
+		Map<String, String> batch = new LinkedHashMap<>();
+		while (batch.size() < batchSize && !groups.isEmpty()) {
+			Iterator<Group.GroupMemberComponent> members = groups.peek();
+			if (!members.hasNext()) {
+				groups.pop();
+				continue;
+			}
+			Reference reference = members.next().getEntity();
+			String type = reference.getReferenceElement().getResourceType();
+			if ("Patient".equals(type)) {
+				String idPart = reference.getReferenceElement().getIdPart();
+				if (seenPatients.add(idPart)) {
+					batch.put(idPart, reference.getReference());
+				}
+			} else if ("Group".equals(type)) {
+				enter(reference.getReference());
+			} else {
+				logger.info("Group member was not a Patient or a Group, so skipping. \n{}", reference.getReference());
+			}
+		}
+		if (batch.isEmpty()) {
+			return false;
+		}
+
+		Map<String, Patient> found = new HashMap<>();
+		parameterUser.search(Patient.class, Searches.byIds(new ArrayList<>(batch.keySet())), requestDetails)
+				.getAllResourcesTyped().forEach(patient -> found.put(patient.getIdElement().getIdPart(), patient));
+		for (Map.Entry<String, String> member : batch.entrySet()) {
+			Patient patient = found.get(member.getKey());
+			if (patient == null) {
+				throw new IllegalArgumentException("Could not find Patient: " + member.getValue());
+			}
+			checked.addLast(patient);
+		}
+		return true;
+	}
+}
@@ -2,11 +2,14 @@ package org.opencds.cqf.ruler.behavior.r4;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
@@ -31,6 +34,8 @@ import org.opencds.cqf.ruler.utility.Searches;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
+
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
@@ -41,6 +46,7 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 	static final String MEASUREREPORT_MEASURE_SUPPLEMENTALDATA_EXTENSION = "http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/extension-supplementalData";
 	static final String MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_URL = "http://hl7.org/fhir/us/davinci-deqm/SearchParameter/measurereport-supplemental-data";
 	static final String MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_VERSION = "0.1.0";
+	static final int MAX_IDS_PER_SEARCH = 500;
 
 	static final List<ContactDetail> CQI_CONTACTDETAIL = new ArrayList<ContactDetail>() {
 		{
@@ -70,19 +76,11 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 	}
 
 	default MeasureReportUser getEvaluatedResources(MeasureReport report, Map<String, Resource> resources) {
-		report.getEvaluatedResource().forEach(evaluatedResource -> {
-			IIdType resourceId = evaluatedResource.getReferenceElement();
-			if (resourceId.getResourceType() == null || resources.containsKey(Ids.simple(resourceId))) {
-				return;
-			}
-			IBaseResource resourceBase = read(resourceId);
-			if (resourceBase instanceof Resource) {
-				Resource resource = (Resource) resourceBase;
-				resources.put(Ids.simple(resourceId), resource);
-			}
-		});
+		List<IIdType> resourceIds = new ArrayList<>();
+		report.getEvaluatedResource().forEach(
+				evaluatedResource -> resourceIds.add(evaluatedResource.getReferenceElement()));
 
-		return this;
+		return readResources(resourceIds, resources);
 	}
 
 	default Map<String, Resource> getSDE(MeasureReport report) {
@@ -92,6 +90,7 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 	}
 
 	default MeasureReportUser getSDE(MeasureReport report, Map<String, Resource> resources) {
+		List<IIdType> sdeIds = new ArrayList<>();
 		if (report.hasExtension()) {
 			for (Extension extension : report.getExtension()) {
 				if (extension.hasUrl() && extension.getUrl().equals(MEASUREREPORT_MEASURE_SUPPLEMENTALDATA_EXTENSION)) {
@@ -99,14 +98,59 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 							? (Reference) extension.getValue()
 							: null;
 					if (sdeRef != null && sdeRef.hasReference() && !sdeRef.getReference().startsWith("#")) {
-						IdType sdeId = new IdType(sdeRef.getReference());
-						if (!resources.containsKey(Ids.simple(sdeId))) {
-							resources.put(Ids.simple(sdeId), read(sdeId));
-						}
+						sdeIds.add(new IdType(sdeRef.getReference()));
 					}
 				}
 			}
 		}
+		return readResources(sdeIds, resources);
+	}
+
+	/**
+	 * Reads the resources with the given ids into the map, keyed by their simple
+	 * id, skipping those already present. The ids are grouped by resource type
+	 * and each type is resolved with a multi-valued _id search, instead of a read
+	 * per resource. Resources that are not found are left out of the map.
+	 *
+	 * @param resourceIds the ids to read
+	 * @param resources   the resources read so far
+	 * @return this
+	 */
+	default MeasureReportUser readResources(Collection<? extends IIdType> resourceIds,
+			Map<String, Resource> resources) {
+		return readResources(resourceIds, resources, null);
+	}
+
+	/**
+	 * Reads the resources with the given ids into the map with the given request
+	 * details.
+	 *
+	 * @param resourceIds    the ids to read
+	 * @param resources      the resources read so far
+	 * @param requestDetails multi-tenancy information
+	 * @return this
+	 * @see #readResources(Collection, Map)
+	 */
+	default MeasureReportUser readResources(Collection<? extends IIdType> resourceIds,
+			Map<String, Resource> resources, RequestDetails requestDetails) {
+		Map<String, Set<String>> idPartsByType = new LinkedHashMap<>();
+		for (IIdType resourceId : resourceIds) {
+			if (resourceId.getResourceType() == null || !resourceId.hasIdPart()
+					|| resources.containsKey(Ids.simple(resourceId))) {
+				continue;
+			}
+			idPartsByType.computeIfAbsent(resourceId.getResourceType(), type -> new LinkedHashSet<>())
+					.add(resourceId.getIdPart());
+		}
+
+		idPartsByType.forEach((resourceType, idParts) -> {
+			for (List<String> batch : Lists.partition(new ArrayList<>(idParts), MAX_IDS_PER_SEARCH)) {
+				search(this.<Resource>getClass(resourceType), Searches.byIds(batch), requestDetails)
+						.getAllResourcesTyped()
+						.forEach(resource -> resources.put(Ids.simple(resource), resource));
+			}
+		});
+
 		return this;
 	}
 
@@ -120,6 +164,13 @@ public interface MeasureReportUser extends DaoRegistryUser, IdCreator {
 	}
 
 	default void ensureSupplementalDataElementSearchParameter(RequestDetails requestDetails) {
+		ensureSearchParameter(
+				MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_URL + "|"
+						+ MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_VERSION,
+				() -> createSupplementalDataElementSearchParameter(requestDetails));
+	}
+
+	private void createSupplementalDataElementSearchParameter(RequestDetails requestDetails) {
 		if (!search(SearchParameter.class,
 				Searches.byUrl(MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_URL,
 						MEASUREREPORT_SUPPLEMENTALDATA_SEARCHPARAMETER_VERSION),
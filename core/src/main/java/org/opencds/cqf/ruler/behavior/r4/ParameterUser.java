@@ -3,21 +3,23 @@ package org.opencds.cqf.ruler.behavior.r4;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang3.NotImplementedException;
 import org.hl7.fhir.r4.model.CanonicalType;
-import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Reference;
 import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
 import org.opencds.cqf.ruler.behavior.IdCreator;
 import org.opencds.cqf.ruler.utility.Searches;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterators;
+
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public interface ParameterUser extends DaoRegistryUser, IdCreator {
@@ -75,30 +77,77 @@ public interface ParameterUser extends DaoRegistryUser, IdCreator {
 	}
 
 	default List<Patient> getPatientListFromGroup(String subjectGroupId) {
+		// the member Patients are read once, as they are checked to exist
 		List<Patient> patientList = new ArrayList<>();
+		new GroupMemberIterator(this, subjectGroupId, MeasureReportUser.MAX_IDS_PER_SEARCH, null)
+				.forEachRemaining(patientList::add);
+		return patientList;
+	}
 
-		Group group = read(newId(subjectGroupId));
-		if (group == null) {
-			throw new IllegalArgumentException("Could not find Group: " + subjectGroupId);
+	/**
+	 * Returns the ids of the Patients in a subject: the Patient itself, or the
+	 * member Patients of a Group and of the Groups nested in it. Group members
+	 * are read lazily as the iterator is consumed, each Patient is returned once
+	 * and nested Groups that were already expanded are skipped.
+	 *
+	 * @param subject a Patient or Group reference
+	 * @return the Patient ids, in member order
+	 * @throws IllegalArgumentException if the subject, a nested Group or a member
+	 *                                  Patient does not exist
+	 */
+	default Iterator<IdType> getPatientIdsFromSubject(String subject) {
+		return getPatientIdsFromSubject(subject, null);
+	}
+
+	/**
+	 * Returns the ids of the Patients in a subject, reading the subject with the
+	 * given request details.
+	 *
+	 * @param subject        a Patient or Group reference
+	 * @param requestDetails multi-tenancy information
+	 * @return the Patient ids, in member order
+	 * @throws IllegalArgumentException if the subject, a nested Group or a member
+	 *                                  Patient does not exist
+	 * @see #getPatientIdsFromSubject(String)
+	 */
+	default Iterator<IdType> getPatientIdsFromSubject(String subject, RequestDetails requestDetails) {
+		if (subject.startsWith("Patient/")) {
+			ensurePatient(subject, requestDetails);
+			return Collections.singletonList(new IdType(subject).toUnqualifiedVersionless()).iterator();
+		} else if (subject.startsWith("Group/")) {
+			return getPatientIdsFromGroup(subject, requestDetails);
 		}
 
-		group.getMember().forEach(member -> {
-			Reference reference = member.getEntity();
-			if (reference.getReferenceElement().getResourceType().equals("Patient")) {
-				Patient patient = ensurePatient(reference.getReference());
-				patientList.add(patient);
-			} else if (reference.getReferenceElement().getResourceType().equals("Group")) {
-				patientList.addAll(getPatientListFromGroup(reference.getReference()));
-			} else {
-				ourLog.info("Group member was not a Patient or a Group, so skipping. \n{}", reference.getReference());
-			}
-		});
+		ourLog.info("Subject member was not a Patient or a Group, so skipping. \n{}", subject);
+		return Collections.emptyIterator();
+	}
 
-		return patientList;
+	/**
+	 * Returns the ids of the member Patients of a Group and of the Groups nested
+	 * in it, checking that they exist a batch at a time as the iterator is
+	 * consumed.
+	 *
+	 * @param subjectGroupId the Group reference
+	 * @return the Patient ids, in member order and without duplicates
+	 * @throws IllegalArgumentException if the Group, a nested Group or a member
+	 *                                  Patient does not exist
+	 */
+	default Iterator<IdType> getPatientIdsFromGroup(String subjectGroupId) {
+		return getPatientIdsFromGroup(subjectGroupId, null);
+	}
+
+	default Iterator<IdType> getPatientIdsFromGroup(String subjectGroupId, RequestDetails requestDetails) {
+		return Iterators.transform(
+				new GroupMemberIterator(this, subjectGroupId, MeasureReportUser.MAX_IDS_PER_SEARCH, requestDetails),
+				patient -> new IdType("Patient", patient.getIdElement().getIdPart()));
 	}
 
 	default Patient ensurePatient(String patientRef) {
-		Patient patient = read(newId(patientRef));
+		return ensurePatient(patientRef, null);
+	}
+
+	default Patient ensurePatient(String patientRef, RequestDetails requestDetails) {
+		Patient patient = read(newId(patientRef), requestDetails);
 		if (patient == null) {
 			throw new IllegalArgumentException("Could not find Patient: " + patientRef);
 		}
@@ -9,6 +9,7 @@ import org.opencds.cqf.external.common.FhirServerConfigR5;
 import org.opencds.cqf.external.cr.StarterCrDstu3Config;
 import org.opencds.cqf.external.cr.StarterCrR4Config;
 import org.opencds.cqf.ruler.ServerConfig;
+import org.opencds.cqf.ruler.behavior.SearchParameterMemo;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -20,6 +21,8 @@ import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.jpa.api.config.JpaStorageSettings;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.batch2.JpaBatch2Config;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.subscription.match.deliver.email.IEmailSender;
 import ca.uhn.fhir.jpa.util.LoggingEmailSender;
 import ca.uhn.fhir.rest.server.RestfulServer;
@@ -39,6 +42,8 @@ import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
 		StarterCrR4Config.class
 })
 public class RulerConfig {
+	private static final long SEARCH_PARAMETER_REFRESH_INTERVAL_MILLIS = 10000;
+
 	public class DaoConfigCustomizer {
 		public DaoConfigCustomizer(JpaStorageSettings theStorageSettings, ServerProperties serverProperties) {
 			theStorageSettings.setMaximumIncludesToLoadPerPage(serverProperties.getMaxIncludesPerPage());
@@ -59,6 +64,20 @@ public class RulerConfig {
 				myFhirSystemDao, myValidationSupport, myServerProperties);
 	}
 
+	@Bean
+	SearchParameterMemo searchParameterMemo() {
+		return new SearchParameterMemo();
+	}
+
+	@Bean
+	SearchParameterMemoListener searchParameterMemoListener(SearchParameterMemo searchParameterMemo,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		SearchParameterMemoListener listener = new SearchParameterMemoListener(searchParameterMemo);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("SearchParameter",
+				SearchParameterMap.newSynchronous(), listener, SEARCH_PARAMETER_REFRESH_INTERVAL_MILLIS);
+		return listener;
+	}
+
 	@Primary
 	@Bean
 	IEmailSender emailSender() {
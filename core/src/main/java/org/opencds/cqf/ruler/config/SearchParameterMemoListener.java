@@ -0,0 +1,35 @@
+package org.opencds.cqf.ruler.config;
+
+import java.util.Collection;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.ruler.behavior.SearchParameterMemo;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+
+/**
+ * Clears the {@link SearchParameterMemo} of this server whenever a
+ * SearchParameter is created, updated or deleted, so a removed SearchParameter
+ * is recreated on the next request that needs it.
+ */
+public class SearchParameterMemoListener implements IResourceChangeListener {
+
+	private final SearchParameterMemo searchParameterMemo;
+
+	public SearchParameterMemoListener(SearchParameterMemo searchParameterMemo) {
+		this.searchParameterMemo = searchParameterMemo;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> collection) {
+		// nothing is memoized until a request ensures a SearchParameter
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+		if (iResourceChangeEvent == null || iResourceChangeEvent.isEmpty())
+			return;
+		searchParameterMemo.reset();
+	}
+}
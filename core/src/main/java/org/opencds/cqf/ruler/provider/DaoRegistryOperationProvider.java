@@ -2,6 +2,7 @@ package org.opencds.cqf.ruler.provider;
 
 import org.opencds.cqf.ruler.api.OperationProvider;
 import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.behavior.SearchParameterMemo;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
@@ -10,7 +11,15 @@ public class DaoRegistryOperationProvider implements OperationProvider, DaoRegis
 	@Autowired
 	private DaoRegistry myDaoRegistry;
 
+	@Autowired(required = false)
+	private SearchParameterMemo mySearchParameterMemo;
+
 	public DaoRegistry getDaoRegistry() {
 		return myDaoRegistry;
 	}
+
+	@Override
+	public SearchParameterMemo getSearchParameterMemo() {
+		return mySearchParameterMemo;
+	}
 }
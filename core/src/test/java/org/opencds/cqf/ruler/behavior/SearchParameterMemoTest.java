@@ -0,0 +1,83 @@
+package org.opencds.cqf.ruler.behavior;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class SearchParameterMemoTest {
+
+	@Test
+	public void ensureRunsOncePerMemo() {
+		SearchParameterMemo first = new SearchParameterMemo();
+		SearchParameterMemo second = new SearchParameterMemo();
+		AtomicInteger runs = new AtomicInteger();
+
+		first.ensure("url|1", runs::incrementAndGet);
+		first.ensure("url|1", runs::incrementAndGet);
+		assertEquals(1, runs.get());
+
+		second.ensure("url|1", runs::incrementAndGet);
+		assertEquals(2, runs.get());
+	}
+
+	@Test
+	public void resetRunsEnsureAgain() {
+		SearchParameterMemo memo = new SearchParameterMemo();
+		AtomicInteger runs = new AtomicInteger();
+
+		memo.ensure("url|1", runs::incrementAndGet);
+		memo.reset();
+		memo.ensure("url|1", runs::incrementAndGet);
+		assertEquals(2, runs.get());
+	}
+
+	@Test
+	public void failedEnsureIsNotRemembered() {
+		SearchParameterMemo memo = new SearchParameterMemo();
+		AtomicInteger runs = new AtomicInteger();
+
+		try {
+			memo.ensure("url|1", () -> {
+				runs.incrementAndGet();
+				throw new IllegalStateException();
+			});
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		memo.ensure("url|1", runs::incrementAndGet);
+		assertEquals(2, runs.get());
+	}
+
+	@Test
+	public void concurrentFirstCallsRunEnsureOnce() throws Exception {
+		SearchParameterMemo memo = new SearchParameterMemo();
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					memo.ensure("url|1", runs::incrementAndGet);
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, runs.get());
+	}
+}
@@ -4,6 +4,7 @@ import org.opencds.cqf.external.annotations.OnR4Condition;
 import org.opencds.cqf.external.cr.StarterCrR4Config;
 import org.opencds.cqf.ruler.cdshooks.providers.ProviderConfiguration;
 import org.opencds.cqf.ruler.cdshooks.r4.CdsHooksServlet;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -13,6 +14,7 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
@@ -39,10 +41,36 @@ public class CdsHooksConfig {
 
 	@Bean
 	public CdsServicesCache cdsServiceInterceptor(IResourceChangeListenerRegistry resourceChangeListenerRegistry,
-			DaoRegistry daoRegistry) {
+			DaoRegistry daoRegistry, ObjectProvider<CdsHooksProperties> cdsProperties) {
+		CdsHooksProperties.Discovery discovery = cdsProperties.getIfAvailable(CdsHooksProperties::new).getDiscovery();
 		CdsServicesCache listener = new CdsServicesCache(daoRegistry);
 		resourceChangeListenerRegistry.registerResourceResourceChangeListener("PlanDefinition",
-				SearchParameterMap.newSynchronous(), listener, 1000);
+				SearchParameterMap.newSynchronous(), listener, discovery.getRefreshIntervalMillis());
+		return listener;
+	}
+
+	// Created either way so its executor is shut down with the context, but only
+	// registered when push invalidation is enabled
+	@Bean(destroyMethod = "shutdown")
+	public CdsServicesCacheInvalidator cdsServicesCacheInvalidator(CdsServicesCache cdsServicesCache,
+			IInterceptorService interceptorService, ObjectProvider<CdsHooksProperties> cdsProperties) {
+		CdsServicesCacheInvalidator invalidator = new CdsServicesCacheInvalidator(cdsServicesCache);
+		if (cdsProperties.getIfAvailable(CdsHooksProperties::new).getDiscovery().isPushInvalidationEnabled()) {
+			interceptorService.registerInterceptor(invalidator);
+		}
+		return invalidator;
+	}
+
+	@Bean
+	public CdsServiceDependencyListener cdsServiceDependencyListener(
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry, CdsServicesCache cdsServicesCache,
+			ObjectProvider<CdsHooksProperties> cdsProperties) {
+		CdsHooksProperties.Discovery discovery = cdsProperties.getIfAvailable(CdsHooksProperties::new).getDiscovery();
+		CdsServiceDependencyListener listener = new CdsServiceDependencyListener(cdsServicesCache);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("Library",
+				SearchParameterMap.newSynchronous(), listener, discovery.getRefreshIntervalMillis());
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("ValueSet",
+				SearchParameterMap.newSynchronous(), listener, discovery.getRefreshIntervalMillis());
 		return listener;
 	}
 
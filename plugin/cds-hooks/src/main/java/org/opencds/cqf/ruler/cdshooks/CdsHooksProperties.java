@@ -89,6 +89,38 @@ public class CdsHooksProperties {
 		this.prefetch = prefetch;
 	}
 
+	private Discovery discovery = new Discovery();
+
+	public Discovery getDiscovery() {
+		return this.discovery;
+	}
+
+	public void setDiscovery(Discovery discovery) {
+		this.discovery = discovery;
+	}
+
+	public static class Discovery {
+		private long refreshIntervalMillis = 1000;
+
+		public long getRefreshIntervalMillis() {
+			return refreshIntervalMillis;
+		}
+
+		public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+			this.refreshIntervalMillis = refreshIntervalMillis;
+		}
+
+		private boolean pushInvalidationEnabled;
+
+		public boolean isPushInvalidationEnabled() {
+			return pushInvalidationEnabled;
+		}
+
+		public void setPushInvalidationEnabled(boolean pushInvalidationEnabled) {
+			this.pushInvalidationEnabled = pushInvalidationEnabled;
+		}
+	}
+
 	public static class Prefetch {
 		private Integer maxUriLength;
 
@@ -0,0 +1,46 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.Collection;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+
+/**
+ * Listens for changes to the Libraries and ValueSets that CDS services derive
+ * their prefetch templates from and refreshes only the affected services in the
+ * {@link CdsServicesCache}.
+ */
+public class CdsServiceDependencyListener implements IResourceChangeListener {
+
+	private final CdsServicesCache cdsServicesCache;
+
+	public CdsServiceDependencyListener(CdsServicesCache cdsServicesCache) {
+		this.cdsServicesCache = cdsServicesCache;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> collection) {
+		// services are resolved against the current resources when the
+		// PlanDefinition listener initializes, so there is nothing to refresh
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+		if (iResourceChangeEvent == null)
+			return;
+		if (iResourceChangeEvent.getCreatedResourceIds() != null
+				&& !iResourceChangeEvent.getCreatedResourceIds().isEmpty()) {
+			cdsServicesCache.refreshDependents(iResourceChangeEvent.getCreatedResourceIds(), true);
+		}
+		if (iResourceChangeEvent.getUpdatedResourceIds() != null
+				&& !iResourceChangeEvent.getUpdatedResourceIds().isEmpty()) {
+			cdsServicesCache.refreshDependents(iResourceChangeEvent.getUpdatedResourceIds(), true);
+		}
+		if (iResourceChangeEvent.getDeletedResourceIds() != null
+				&& !iResourceChangeEvent.getDeletedResourceIds().isEmpty()) {
+			cdsServicesCache.refreshDependents(iResourceChangeEvent.getDeletedResourceIds(), false);
+		}
+	}
+}
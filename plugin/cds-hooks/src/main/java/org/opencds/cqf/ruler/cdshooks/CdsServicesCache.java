@@ -3,7 +3,12 @@ package org.opencds.cqf.ruler.cdshooks;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -26,12 +31,19 @@ import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
 public class CdsServicesCache implements IResourceChangeListener {
 	private static final Logger logger = LoggerFactory.getLogger(CdsServicesCache.class);
 
-	private AtomicReference<JsonArray> cdsServiceCache;
+	private final AtomicReference<JsonArray> cdsServiceCache;
+	private DaoRegistry daoRegistry;
 	private IFhirResourceDao<?> planDefinitionDao;
 	private DiscoveryResolutionR4 discoveryResolutionR4;
 	private DiscoveryResolutionStu3 discoveryResolutionStu3;
 
+	// Library and ValueSet keys (canonical url or Type/id) to the services
+	// derived from them, and the reverse, so a service can be unregistered
+	private final Map<String, Set<IIdType>> dependentServices = new HashMap<>();
+	private final Map<IIdType, Set<String>> serviceDependencies = new HashMap<>();
+
 	public CdsServicesCache(DaoRegistry daoRegistry) {
+		this.daoRegistry = daoRegistry;
 		this.planDefinitionDao = daoRegistry.getResourceDao("PlanDefinition");
 		this.discoveryResolutionR4 = new DiscoveryResolutionR4(daoRegistry);
 		this.discoveryResolutionStu3 = new DiscoveryResolutionStu3(daoRegistry);
@@ -42,8 +54,10 @@ public class CdsServicesCache implements IResourceChangeListener {
 		return this.cdsServiceCache;
 	}
 
-	public void clearCache() {
-		this.cdsServiceCache = new AtomicReference<>(new JsonArray());
+	public synchronized void clearCache() {
+		this.cdsServiceCache.set(new JsonArray());
+		this.dependentServices.clear();
+		this.serviceDependencies.clear();
 	}
 
 	@Override
@@ -52,54 +66,147 @@ public class CdsServicesCache implements IResourceChangeListener {
 				Collections.emptyList(), Collections.emptyList()));
 	}
 
+	// The published array is never modified, so the servlet can iterate it while
+	// a change is applied to a copy that then replaces it
 	@Override
-	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+	public synchronized void handleChange(IResourceChangeEvent iResourceChangeEvent) {
 		if (iResourceChangeEvent == null)
 			return;
+		JsonArray services = copyServices();
 		if (iResourceChangeEvent.getCreatedResourceIds() != null
 				&& !iResourceChangeEvent.getCreatedResourceIds().isEmpty()) {
-			insert(iResourceChangeEvent.getCreatedResourceIds());
+			insert(services, iResourceChangeEvent.getCreatedResourceIds());
 		}
 		if (iResourceChangeEvent.getUpdatedResourceIds() != null
 				&& !iResourceChangeEvent.getUpdatedResourceIds().isEmpty()) {
-			update(iResourceChangeEvent.getUpdatedResourceIds());
+			update(services, iResourceChangeEvent.getUpdatedResourceIds());
 		}
 		if (iResourceChangeEvent.getDeletedResourceIds() != null
 				&& !iResourceChangeEvent.getDeletedResourceIds().isEmpty()) {
-			delete(iResourceChangeEvent.getDeletedResourceIds());
+			delete(services, iResourceChangeEvent.getDeletedResourceIds());
+		}
+		cdsServiceCache.set(services);
+	}
+
+	/**
+	 * Recomputes only the services whose prefetch templates were derived from the
+	 * given Libraries or ValueSets.
+	 *
+	 * @param changedIds the ids of the changed Libraries or ValueSets
+	 * @param readable   whether the changed resources can still be read, i.e.
+	 *                   they were created or updated rather than deleted
+	 */
+	public synchronized void refreshDependents(List<IIdType> changedIds, boolean readable) {
+		Set<IIdType> affected = new LinkedHashSet<>();
+		for (IIdType id : changedIds) {
+			for (String key : getDependencyKeys(id, readable)) {
+				affected.addAll(dependentServices.getOrDefault(key, Collections.emptySet()));
+			}
+		}
+		if (!affected.isEmpty()) {
+			logger.info("Refreshing service(s) {} after change to {}", affected, changedIds);
+			JsonArray services = copyServices();
+			update(services, new ArrayList<>(affected));
+			cdsServiceCache.set(services);
 		}
 	}
 
-	private void insert(List<IIdType> createdIds) {
+	private JsonArray copyServices() {
+		JsonArray current = cdsServiceCache.get();
+		JsonArray services = new JsonArray(current.size());
+		services.addAll(current);
+		return services;
+	}
+
+	private Set<String> getDependencyKeys(IIdType id, boolean readable) {
+		Set<String> keys = new HashSet<>();
+		keys.add(id.getResourceType() + "/" + id.getIdPart());
+		if (readable) {
+			try {
+				IBaseResource resource = daoRegistry.getResourceDao(id.getResourceType())
+						.read(id.toUnqualifiedVersionless());
+				if (resource instanceof org.hl7.fhir.r4.model.MetadataResource
+						&& ((org.hl7.fhir.r4.model.MetadataResource) resource).hasUrl()) {
+					keys.add(((org.hl7.fhir.r4.model.MetadataResource) resource).getUrl());
+				} else if (resource instanceof org.hl7.fhir.dstu3.model.MetadataResource
+						&& ((org.hl7.fhir.dstu3.model.MetadataResource) resource).hasUrl()) {
+					keys.add(((org.hl7.fhir.dstu3.model.MetadataResource) resource).getUrl());
+				}
+			} catch (Exception e) {
+				logger.info("Failed to read {} while resolving dependent services", id.getIdPart());
+			}
+		}
+		return keys;
+	}
+
+	private void register(IIdType serviceId, Set<String> dependencies) {
+		serviceDependencies.put(serviceId, dependencies);
+		for (String dependency : dependencies) {
+			dependentServices.computeIfAbsent(dependency, k -> new HashSet<>()).add(serviceId);
+		}
+	}
+
+	private void unregister(IIdType serviceId) {
+		Set<String> dependencies = serviceDependencies.remove(serviceId);
+		if (dependencies == null)
+			return;
+		for (String dependency : dependencies) {
+			Set<IIdType> services = dependentServices.get(dependency);
+			if (services != null) {
+				services.remove(serviceId);
+				if (services.isEmpty()) {
+					dependentServices.remove(dependency);
+				}
+			}
+		}
+	}
+
+	private void insert(JsonArray services, List<IIdType> createdIds) {
 		for (IIdType id : createdIds) {
 			try {
 				IBaseResource resource = planDefinitionDao.read(id);
+				// a change may be seen both through push invalidation and polling
+				removeService(services, id.getIdPart());
+				unregister(id.toUnqualifiedVersionless());
+				Set<String> dependencies = new HashSet<>();
 				if (resource instanceof PlanDefinition) {
-					cdsServiceCache.get().add(discoveryResolutionR4.resolveService((PlanDefinition) resource));
+					services.add(
+							discoveryResolutionR4.resolveService((PlanDefinition) resource, dependencies));
 				} else if (resource instanceof org.hl7.fhir.dstu3.model.PlanDefinition) {
-					cdsServiceCache.get().add(
-							discoveryResolutionStu3.resolveService((org.hl7.fhir.dstu3.model.PlanDefinition) resource));
+					services.add(discoveryResolutionStu3
+							.resolveService((org.hl7.fhir.dstu3.model.PlanDefinition) resource, dependencies));
 				}
+				register(id.toUnqualifiedVersionless(), dependencies);
 			} catch (Exception e) {
 				logger.info(String.format("Failed to create service for %s", id.getIdPart()));
 			}
 		}
 	}
 
-	private void update(List<IIdType> updatedIds) {
+	private void update(JsonArray services, List<IIdType> updatedIds) {
 		try {
-			delete(updatedIds);
-			insert(updatedIds);
+			delete(services, updatedIds);
+			insert(services, updatedIds);
 		} catch (Exception e) {
 			logger.info(String.format("Failed to update service(s) for %s", updatedIds));
 		}
 	}
 
-	private void delete(List<IIdType> deletedIds) {
+	private void removeService(JsonArray services, String idPart) {
+		for (int i = 0; i < services.size(); i++) {
+			if (((JsonObject) services.get(i)).get("id").getAsString().equals(idPart)) {
+				services.remove(i);
+				return;
+			}
+		}
+	}
+
+	private void delete(JsonArray services, List<IIdType> deletedIds) {
 		for (IIdType id : deletedIds) {
-			for (int i = 0; i < cdsServiceCache.get().size(); i++) {
-				if (((JsonObject) cdsServiceCache.get().get(i)).get("id").getAsString().equals(id.getIdPart())) {
-					cdsServiceCache.get().remove(i);
+			unregister(id.toUnqualifiedVersionless());
+			for (int i = 0; i < services.size(); i++) {
+				if (((JsonObject) services.get(i)).get("id").getAsString().equals(id.getIdPart())) {
+					services.remove(i);
 					break;
 				} else
 					logger.info("Failed to delete service for {}", id.getIdPart());
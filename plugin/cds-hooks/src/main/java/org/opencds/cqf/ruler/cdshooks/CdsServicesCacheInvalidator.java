@@ -0,0 +1,117 @@
+package org.opencds.cqf.ruler.cdshooks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+
+/**
+ * Pushes PlanDefinition, Library and ValueSet writes to the
+ * {@link CdsServicesCache} once the writing transaction commits, so services
+ * are refreshed without waiting for the next poll of the resource change
+ * registry. The refresh reads resources and resolves discovery, so it runs on
+ * a single background thread rather than on the writing request thread, and
+ * changes are applied in the order they were committed.
+ */
+@Interceptor
+public class CdsServicesCacheInvalidator {
+	private static final Logger logger = LoggerFactory.getLogger(CdsServicesCacheInvalidator.class);
+
+	private final CdsServicesCache cdsServicesCache;
+	private final ExecutorService executorService = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("cds-services-invalidation-%d").setDaemon(true).build());
+
+	public CdsServicesCacheInvalidator(CdsServicesCache cdsServicesCache) {
+		this.cdsServicesCache = cdsServicesCache;
+	}
+
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource resource) {
+		onCommit(resource, ChangeType.CREATED);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+		onCommit(newResource, ChangeType.UPDATED);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource resource) {
+		onCommit(resource, ChangeType.DELETED);
+	}
+
+	private void onCommit(IBaseResource resource, ChangeType changeType) {
+		if (resource == null)
+			return;
+		String resourceType = resource.fhirType();
+		if (!"PlanDefinition".equals(resourceType) && !"Library".equals(resourceType)
+				&& !"ValueSet".equals(resourceType))
+			return;
+		IIdType id = resource.getIdElement().toUnqualifiedVersionless().withResourceType(resourceType);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					submit(id, changeType);
+				}
+			});
+		} else {
+			submit(id, changeType);
+		}
+	}
+
+	private void submit(IIdType id, ChangeType changeType) {
+		executorService.execute(() -> {
+			try {
+				invalidate(id, changeType);
+			} catch (Exception e) {
+				logger.warn("Failed to refresh service(s) after change to {}", id, e);
+			}
+		});
+	}
+
+	private void invalidate(IIdType id, ChangeType changeType) {
+		List<IIdType> ids = Collections.singletonList(id);
+		if (!"PlanDefinition".equals(id.getResourceType())) {
+			cdsServicesCache.refreshDependents(ids, changeType != ChangeType.DELETED);
+			return;
+		}
+		switch (changeType) {
+			case CREATED:
+				cdsServicesCache.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(ids,
+						Collections.emptyList(), Collections.emptyList()));
+				break;
+			case UPDATED:
+				cdsServicesCache.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+						Collections.emptyList(), ids, Collections.emptyList()));
+				break;
+			case DELETED:
+				cdsServicesCache.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+						Collections.emptyList(), Collections.emptyList(), ids));
+				break;
+		}
+	}
+
+	private enum ChangeType {
+		CREATED, UPDATED, DELETED
+	}
+}
@@ -1,5 +1,8 @@
 package org.opencds.cqf.ruler.cdshooks.discovery;
 
+import java.util.Collections;
+import java.util.List;
+
 import com.google.gson.JsonObject;
 
 import org.hl7.fhir.r4.model.PlanDefinition;
@@ -35,24 +38,29 @@ public class DiscoveryElementR4 implements DiscoveryElement {
             }
             service.addProperty("id", planDefinition.getIdElement().getIdPart());
 
-            if (prefetchUrlList == null) {
-                prefetchUrlList = new PrefetchUrlList();
-            }
+            List<String> prefetchUrls = prefetchUrlList == null
+                    ? Collections.emptyList()
+                    : prefetchUrlList.toImmutableList();
 
             JsonObject prefetchContent = new JsonObject();
             int itemNo = 0;
-            if (!prefetchUrlList.stream().anyMatch(p -> p.equals("Patient/{{context.patientId}}")
+            if (!prefetchUrls.stream().anyMatch(p -> p.equals("Patient/{{context.patientId}}")
                     || p.equals("Patient?_id={{context.patientId}}")
                     || p.equals("Patient?_id=Patient/{{context.patientId}}"))) {
                 prefetchContent.addProperty("item1", "Patient?_id={{context.patientId}}");
                 ++itemNo;
             }
 
-            for (String item : prefetchUrlList) {
+            for (String item : prefetchUrls) {
                 prefetchContent.addProperty("item" + Integer.toString(++itemNo), item);
             }
             service.add("prefetch", prefetchContent);
 
+            // each prefetch item costs the EHR one query
+            JsonObject extension = new JsonObject();
+            extension.addProperty("estimatedPrefetchQueryCount", itemNo);
+            service.add("extension", extension);
+
             return service;
         }
 
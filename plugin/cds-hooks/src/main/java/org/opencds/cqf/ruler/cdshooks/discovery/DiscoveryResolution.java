@@ -0,0 +1,189 @@
+package org.opencds.cqf.ruler.cdshooks.discovery;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.utility.Searches;
+
+import com.google.gson.JsonObject;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+
+/**
+ * Version-neutral resolution of CDS Hooks discovery services. Prefetch url
+ * generation happens here once, driven by the {@link PatientCompartment} table
+ * of the FHIR version. Subclasses adapt the version-specific PlanDefinition,
+ * Library and DataRequirement models to the shapes this class works with.
+ *
+ * @param <P> the PlanDefinition type
+ * @param <D> the DataRequirement type
+ */
+public abstract class DiscoveryResolution<P extends IBaseResource, D> implements DaoRegistryUser {
+
+	protected static final String PATIENT_ID_CONTEXT = "{{context.patientId}}";
+	private static final int DEFAULT_MAX_URI_LENGTH = 8000;
+
+	private final DaoRegistry daoRegistry;
+	private final PatientCompartment patientCompartment;
+	private int maxUriLength;
+
+	protected DiscoveryResolution(DaoRegistry daoRegistry, PatientCompartment patientCompartment) {
+		this.daoRegistry = daoRegistry;
+		this.patientCompartment = patientCompartment;
+		this.maxUriLength = DEFAULT_MAX_URI_LENGTH;
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return this.daoRegistry;
+	}
+
+	public int getMaxUriLength() {
+		return this.maxUriLength;
+	}
+
+	public void setMaxUriLength(int maxUriLength) {
+		if (maxUriLength <= 0) {
+			throw new IllegalArgumentException("maxUriLength must be > 0");
+		}
+
+		this.maxUriLength = maxUriLength;
+	}
+
+	protected abstract Class<P> getPlanDefinitionType();
+
+	public abstract boolean isEca(P planDefinition);
+
+	/**
+	 * Resolves the data requirements of the primary library of a PlanDefinition.
+	 *
+	 * @param planDefinition the PlanDefinition
+	 * @param dependencies   collects the library canonical and id the service
+	 *                       depends on
+	 * @return the data requirements, or null if there is no library or it has
+	 *         none
+	 */
+	protected abstract List<D> resolveDataRequirements(P planDefinition, Set<String> dependencies);
+
+	protected abstract String getType(D dataRequirement);
+
+	/**
+	 * Resolves the code filters of a data requirement into search parameter
+	 * codes.
+	 *
+	 * @param dataRequirement the data requirement
+	 * @param dependencies    collects the value set canonicals and ids the
+	 *                        service depends on
+	 * @return the code filters, or null if the requirement is not filtered
+	 */
+	protected abstract List<CodeFilter> resolveCodeFilters(D dataRequirement, Set<String> dependencies);
+
+	protected abstract DiscoveryElement createElement(P planDefinition, PrefetchUrlList prefetchUrlList);
+
+	public boolean isPatientCompartment(String dataType) {
+		return patientCompartment.contains(dataType);
+	}
+
+	public String getPatientSearchParam(String dataType) {
+		return patientCompartment.getPatientSearchParam(dataType);
+	}
+
+	public List<String> createRequestUrl(D dataRequirement) {
+		PrefetchPlanner planner = new PrefetchPlanner(this.maxUriLength);
+		if (!planRequest(dataRequirement, planner)) {
+			return null;
+		}
+		return planner.plan();
+	}
+
+	public boolean planRequest(D dataRequirement, PrefetchPlanner planner) {
+		return planRequest(dataRequirement, planner, new HashSet<>());
+	}
+
+	public boolean planRequest(D dataRequirement, PrefetchPlanner planner, Set<String> dependencies) {
+		String type = getType(dataRequirement);
+		if (!isPatientCompartment(type))
+			return false;
+		String patientRelatedResource = type + "?" + getPatientSearchParam(type) + "=Patient/" + PATIENT_ID_CONTEXT;
+		List<CodeFilter> codeFilters = resolveCodeFilters(dataRequirement, dependencies);
+		if (codeFilters == null) {
+			planner.addQuery(patientRelatedResource);
+			return true;
+		}
+		for (CodeFilter codeFilter : codeFilters) {
+			planner.addCodeFilter(patientRelatedResource,
+					patientCompartment.getCodeSearchParam(type, codeFilter.getPath()), codeFilter.getCodes());
+		}
+		return true;
+	}
+
+	public PrefetchUrlList getPrefetchUrlList(P planDefinition) {
+		return getPrefetchUrlList(planDefinition, new HashSet<>());
+	}
+
+	/**
+	 * Resolves the prefetch urls of a service, collecting the keys of the
+	 * Libraries and ValueSets they were derived from. Keys are the canonical urls
+	 * requested (without version) and the <code>Type/id</code> of the resources
+	 * resolved, so either a change by url or by id can be traced back to the
+	 * service.
+	 *
+	 * @param planDefinition the PlanDefinition
+	 * @param dependencies   the collected dependency keys
+	 * @return the prefetch urls
+	 */
+	public PrefetchUrlList getPrefetchUrlList(P planDefinition, Set<String> dependencies) {
+		if (planDefinition == null)
+			return null;
+		if (!isEca(planDefinition))
+			return null;
+		// TODO: resolve data requirements
+		List<D> dataRequirements = resolveDataRequirements(planDefinition, dependencies);
+		if (dataRequirements == null || dataRequirements.isEmpty())
+			return null;
+		PrefetchPlanner planner = new PrefetchPlanner(this.maxUriLength);
+		for (D dataRequirement : dataRequirements) {
+			planRequest(dataRequirement, planner, dependencies);
+		}
+		return planner.plan();
+	}
+
+	public DiscoveryResponse resolve() {
+		List<P> planDefinitions = search(getPlanDefinitionType(), Searches.all()).getAllResourcesTyped();
+		DiscoveryResponse response = new DiscoveryResponse();
+		for (P resource : planDefinitions) {
+			response.addElement(createElement(resource, getPrefetchUrlList(resource)));
+		}
+
+		return response;
+	}
+
+	public JsonObject resolveService(P planDefinition) {
+		return resolveService(planDefinition, new HashSet<>());
+	}
+
+	public JsonObject resolveService(P planDefinition, Set<String> dependencies) {
+		return createElement(planDefinition, getPrefetchUrlList(planDefinition, dependencies)).getAsJson();
+	}
+
+	protected static class CodeFilter {
+		private final String path;
+		private final List<String> codes;
+
+		public CodeFilter(String path, List<String> codes) {
+			this.path = path;
+			this.codes = codes;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public List<String> getCodes() {
+			return this.codes;
+		}
+	}
+}
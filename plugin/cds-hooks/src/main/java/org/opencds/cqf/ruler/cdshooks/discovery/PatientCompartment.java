@@ -0,0 +1,187 @@
+package org.opencds.cqf.ruler.cdshooks.discovery;
+
+import static java.util.Map.entry;
+
+import java.util.Map;
+
+/**
+ * Immutable lookup tables derived from the FHIR patient compartment definition
+ * of each supported version. Each table maps the resource types in the patient
+ * compartment to the search parameter used to scope a prefetch query to the
+ * patient, and holds the code paths whose search parameter name does not follow
+ * the default <code>path.replace('.', '-').toLowerCase()</code> rule.
+ */
+public final class PatientCompartment {
+
+	private static final Map<String, String> MEDICATION_PATHS = Map.of("medication", "code");
+	private static final Map<String, String> DEFAULT_PATHS = Map.of("vaccineCode", "vaccine-code");
+
+	public static final PatientCompartment R4 = new PatientCompartment(
+		Map.ofEntries(
+			entry("Account", "subject"),
+			entry("AdverseEvent", "subject"),
+			entry("AllergyIntolerance", "patient"),
+			entry("Appointment", "actor"),
+			entry("AppointmentResponse", "actor"),
+			entry("AuditEvent", "patient"),
+			entry("Basic", "patient"),
+			entry("BodyStructure", "patient"),
+			entry("CarePlan", "patient"),
+			entry("CareTeam", "patient"),
+			entry("ChargeItem", "subject"),
+			entry("Claim", "patient"),
+			entry("ClaimResponse", "patient"),
+			entry("ClinicalImpression", "subject"),
+			entry("Communication", "subject"),
+			entry("CommunicationRequest", "subject"),
+			entry("Composition", "subject"),
+			entry("Condition", "patient"),
+			entry("Consent", "patient"),
+			entry("Coverage", "policy-holder"),
+			entry("CoverageEligibilityRequest", "patient"),
+			entry("CoverageEligibilityResponse", "patient"),
+			entry("DetectedIssue", "patient"),
+			entry("DeviceRequest", "subject"),
+			entry("DeviceUseStatement", "subject"),
+			entry("DiagnosticReport", "subject"),
+			entry("DocumentManifest", "subject"),
+			entry("DocumentReference", "subject"),
+			entry("Encounter", "patient"),
+			entry("EnrollmentRequest", "subject"),
+			entry("EpisodeOfCare", "patient"),
+			entry("ExplanationOfBenefit", "patient"),
+			entry("FamilyMemberHistory", "patient"),
+			entry("Flag", "patient"),
+			entry("Goal", "patient"),
+			entry("Group", "member"),
+			entry("ImagingStudy", "patient"),
+			entry("Immunization", "patient"),
+			entry("ImmunizationEvaluation", "patient"),
+			entry("ImmunizationRecommendation", "patient"),
+			entry("Invoice", "subject"),
+			entry("List", "subject"),
+			entry("MeasureReport", "patient"),
+			entry("Media", "subject"),
+			entry("MedicationAdministration", "patient"),
+			entry("MedicationDispense", "patient"),
+			entry("MedicationRequest", "subject"),
+			entry("MedicationStatement", "subject"),
+			entry("MolecularSequence", "patient"),
+			entry("NutritionOrder", "patient"),
+			entry("Observation", "subject"),
+			entry("Patient", "_id"),
+			entry("Person", "patient"),
+			entry("Procedure", "patient"),
+			entry("Provenance", "patient"),
+			entry("QuestionnaireResponse", "subject"),
+			entry("RelatedPerson", "patient"),
+			entry("RequestGroup", "subject"),
+			entry("ResearchSubject", "individual"),
+			entry("RiskAssessment", "subject"),
+			entry("Schedule", "actor"),
+			entry("ServiceRequest", "patient"),
+			entry("Specimen", "subject"),
+			entry("SupplyDelivery", "patient"),
+			entry("SupplyRequest", "subject"),
+			entry("VisionPrescription", "patient")),
+		Map.of(
+			"MedicationAdministration", MEDICATION_PATHS,
+			"MedicationDispense", MEDICATION_PATHS,
+			"MedicationRequest", MEDICATION_PATHS,
+			"MedicationStatement", MEDICATION_PATHS));
+
+	public static final PatientCompartment STU3 = new PatientCompartment(
+		Map.ofEntries(
+			entry("Account", "subject"),
+			entry("AdverseEvent", "subject"),
+			entry("AllergyIntolerance", "patient"),
+			entry("Appointment", "actor"),
+			entry("AppointmentResponse", "actor"),
+			entry("AuditEvent", "patient"),
+			entry("Basic", "patient"),
+			entry("BodySite", "patient"),
+			entry("CarePlan", "patient"),
+			entry("CareTeam", "patient"),
+			entry("ChargeItem", "subject"),
+			entry("Claim", "patient"),
+			entry("ClaimResponse", "patient"),
+			entry("ClinicalImpression", "subject"),
+			entry("Communication", "subject"),
+			entry("CommunicationRequest", "subject"),
+			entry("Composition", "subject"),
+			entry("Condition", "patient"),
+			entry("Consent", "patient"),
+			entry("Coverage", "patient"),
+			entry("DetectedIssue", "patient"),
+			entry("DeviceRequest", "subject"),
+			entry("DeviceUseStatement", "subject"),
+			entry("DiagnosticReport", "subject"),
+			entry("DocumentManifest", "subject"),
+			entry("DocumentReference", "subject"),
+			entry("EligibilityRequest", "patient"),
+			entry("Encounter", "patient"),
+			entry("EnrollmentRequest", "subject"),
+			entry("EpisodeOfCare", "patient"),
+			entry("ExplanationOfBenefit", "patient"),
+			entry("FamilyMemberHistory", "patient"),
+			entry("Flag", "patient"),
+			entry("Goal", "patient"),
+			entry("Group", "member"),
+			entry("ImagingManifest", "patient"),
+			entry("ImagingStudy", "patient"),
+			entry("Immunization", "patient"),
+			entry("ImmunizationRecommendation", "patient"),
+			entry("List", "subject"),
+			entry("MeasureReport", "patient"),
+			entry("Media", "subject"),
+			entry("MedicationAdministration", "patient"),
+			entry("MedicationDispense", "patient"),
+			entry("MedicationRequest", "subject"),
+			entry("MedicationStatement", "subject"),
+			entry("NutritionOrder", "patient"),
+			entry("Observation", "subject"),
+			entry("Patient", "_id"),
+			entry("Person", "patient"),
+			entry("Procedure", "patient"),
+			entry("ProcedureRequest", "patient"),
+			entry("Provenance", "patient"),
+			entry("QuestionnaireResponse", "subject"),
+			entry("ReferralRequest", "patient"),
+			entry("RelatedPerson", "patient"),
+			entry("RequestGroup", "subject"),
+			entry("ResearchSubject", "individual"),
+			entry("RiskAssessment", "subject"),
+			entry("Schedule", "actor"),
+			entry("Specimen", "subject"),
+			entry("SupplyDelivery", "patient"),
+			entry("SupplyRequest", "subject"),
+			entry("VisionPrescription", "patient")),
+		Map.of(
+			"MedicationAdministration", MEDICATION_PATHS,
+			"MedicationDispense", MEDICATION_PATHS,
+			"MedicationRequest", MEDICATION_PATHS,
+			"MedicationStatement", MEDICATION_PATHS,
+			"ProcedureRequest", Map.of("bodySite", "body-site")));
+
+	private final Map<String, String> patientSearchParams;
+	private final Map<String, Map<String, String>> codePathSearchParams;
+
+	private PatientCompartment(Map<String, String> patientSearchParams,
+			Map<String, Map<String, String>> codePathSearchParams) {
+		this.patientSearchParams = patientSearchParams;
+		this.codePathSearchParams = codePathSearchParams;
+	}
+
+	public boolean contains(String dataType) {
+		return dataType != null && patientSearchParams.containsKey(dataType);
+	}
+
+	public String getPatientSearchParam(String dataType) {
+		return dataType == null ? null : patientSearchParams.get(dataType);
+	}
+
+	public String getCodeSearchParam(String dataType, String path) {
+		String searchParam = codePathSearchParams.getOrDefault(dataType, DEFAULT_PATHS).get(path);
+		return searchParam != null ? searchParam : path.replace('.', '-').toLowerCase();
+	}
+}
@@ -0,0 +1,98 @@
+package org.opencds.cqf.ruler.cdshooks.discovery;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the prefetch queries required by a service and merges them before
+ * any urls are generated. Code filters that share a base query and search
+ * parameter are combined into as few urls as the configured maximum uri length
+ * allows, and filtered queries are dropped entirely when the same base query is
+ * also required without a filter.
+ */
+public class PrefetchPlanner {
+
+	private final int maxUriLength;
+	private final Map<String, BaseQuery> queries = new LinkedHashMap<>();
+
+	public PrefetchPlanner(int maxUriLength) {
+		if (maxUriLength <= 0) {
+			throw new IllegalArgumentException("maxUriLength must be > 0");
+		}
+
+		this.maxUriLength = maxUriLength;
+	}
+
+	/**
+	 * Adds a query without any code filter, e.g.
+	 * <code>Condition?patient=Patient/{{context.patientId}}</code>. This subsumes
+	 * every code filter added for the same base query.
+	 *
+	 * @param baseUrl the patient-scoped query
+	 */
+	public void addQuery(String baseUrl) {
+		queries.computeIfAbsent(baseUrl, k -> new BaseQuery()).unfiltered = true;
+	}
+
+	/**
+	 * Adds a code filter to a base query. Codes are tokens of the form
+	 * <code>system|code</code>; duplicates across filters are removed.
+	 *
+	 * @param baseUrl     the patient-scoped query
+	 * @param searchParam the search parameter the codes filter on
+	 * @param codeTokens  the code tokens
+	 */
+	public void addCodeFilter(String baseUrl, String searchParam, Collection<String> codeTokens) {
+		BaseQuery query = queries.computeIfAbsent(baseUrl, k -> new BaseQuery());
+		query.filters.computeIfAbsent(searchParam, k -> new LinkedHashSet<>()).addAll(codeTokens);
+	}
+
+	/**
+	 * Generates the merged prefetch urls in the order their base queries were
+	 * first added.
+	 *
+	 * @return the prefetch urls
+	 */
+	public PrefetchUrlList plan() {
+		PrefetchUrlList urls = new PrefetchUrlList();
+		for (Map.Entry<String, BaseQuery> query : queries.entrySet()) {
+			if (query.getValue().unfiltered || query.getValue().filters.isEmpty()) {
+				urls.add(query.getKey());
+				continue;
+			}
+			for (Map.Entry<String, Set<String>> filter : query.getValue().filters.entrySet()) {
+				planFilter(urls, query.getKey() + "&" + filter.getKey() + "=", filter.getValue());
+			}
+		}
+		return urls;
+	}
+
+	// A single code that does not fit on its own is still emitted rather than
+	// silently dropped.
+	private void planFilter(PrefetchUrlList urls, String prefix, Set<String> codeTokens) {
+		StringBuilder url = new StringBuilder(prefix);
+		for (String codeToken : codeTokens) {
+			boolean first = url.length() == prefix.length();
+			if (!first && url.length() + 1 + codeToken.length() > maxUriLength) {
+				urls.add(url.toString());
+				url.setLength(prefix.length());
+				first = true;
+			}
+			if (!first) {
+				url.append(",");
+			}
+			url.append(codeToken);
+		}
+		if (url.length() > prefix.length()) {
+			urls.add(url.toString());
+		}
+	}
+
+	private static class BaseQuery {
+		private boolean unfiltered;
+		private final Map<String, Set<String>> filters = new LinkedHashMap<>();
+	}
+}
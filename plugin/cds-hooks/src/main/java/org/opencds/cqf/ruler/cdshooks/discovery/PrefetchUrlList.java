@@ -1,28 +1,84 @@
 package org.opencds.cqf.ruler.cdshooks.discovery;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.RandomAccess;
+import java.util.TreeSet;
 
-public class PrefetchUrlList extends CopyOnWriteArrayList<String> {
+/**
+ * An append-only list of prefetch urls. A url is not added if it equals, or
+ * starts with, a url already in the list. Accepted urls are indexed in a
+ * sorted set so the prefix check is a handful of logarithmic lookups rather
+ * than a scan of the whole list.
+ */
+public class PrefetchUrlList extends AbstractList<String> implements RandomAccess {
+
+	private final List<String> urls = new ArrayList<>();
+	private final NavigableSet<String> index = new TreeSet<>();
 
 	@Override
-	public boolean add(String element) {
-		for (String s : this) {
-			if (s.equals(element))
-				return false;
-			if (element.startsWith(s))
-				return false;
-		}
-		return super.add(element);
+	public synchronized boolean add(String element) {
+		if (isSubsumed(element))
+			return false;
+		index.add(element);
+		return urls.add(element);
 	}
 
 	@Override
-	public boolean addAll(Collection<? extends String> toAdd) {
+	public synchronized boolean addAll(Collection<? extends String> toAdd) {
+		boolean changed = false;
 		if (toAdd != null) {
 			for (String s : toAdd) {
-				add(s);
+				changed |= add(s);
 			}
 		}
-		return true;
+		return changed;
+	}
+
+	@Override
+	public synchronized String get(int index) {
+		return urls.get(index);
+	}
+
+	@Override
+	public synchronized int size() {
+		return urls.size();
+	}
+
+	/**
+	 * Returns an immutable snapshot of the urls accepted so far, in insertion
+	 * order.
+	 *
+	 * @return the accepted urls
+	 */
+	public synchronized List<String> toImmutableList() {
+		return List.copyOf(urls);
+	}
+
+	// Any indexed prefix of the url sorts between that prefix and the url itself,
+	// so it is a prefix of the floor entry as well. Each miss therefore narrows
+	// the probe to the common prefix of the floor entry and the url.
+	private boolean isSubsumed(String url) {
+		String probe = url;
+		while (true) {
+			String candidate = index.floor(probe);
+			if (candidate == null)
+				return false;
+			if (probe.startsWith(candidate))
+				return true;
+			probe = probe.substring(0, commonPrefixLength(candidate, probe));
+		}
+	}
+
+	private static int commonPrefixLength(String a, String b) {
+		int max = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < max && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		return i;
 	}
 }
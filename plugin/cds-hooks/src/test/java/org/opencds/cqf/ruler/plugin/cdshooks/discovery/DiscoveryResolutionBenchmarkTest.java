@@ -0,0 +1,164 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.discovery.DiscoveryResolutionR4;
+import org.opencds.cqf.ruler.cdshooks.discovery.DiscoveryResolutionStu3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Checks discovery over a synthetic repository of ECA PlanDefinitions for both
+ * FHIR versions, and times it with the benchmark profile. Library lookup is
+ * stubbed so the measurement covers the compartment lookups, prefetch planning
+ * and service rendering only.
+ */
+class DiscoveryResolutionBenchmarkTest {
+	private static final Logger logger = LoggerFactory.getLogger(DiscoveryResolutionBenchmarkTest.class);
+
+	private static final int PLAN_DEFINITIONS = 500;
+	private static final int DATA_REQUIREMENTS = 40;
+	private static final int CODES_PER_FILTER = 25;
+	private static final int ITERATIONS = 5;
+	private static final String[] TYPES = { "Observation", "Condition", "MedicationRequest", "Encounter",
+			"Procedure", "Immunization", "AllergyIntolerance", "Goal" };
+
+	@Test
+	void testR4Discovery() {
+		List<org.hl7.fhir.r4.model.PlanDefinition> planDefinitions = r4PlanDefinitions();
+		assertServices(resolve(planDefinitions, r4Resolution()::resolveService));
+	}
+
+	@Test
+	@Tag("benchmark")
+	void testR4DiscoveryThroughput() {
+		List<org.hl7.fhir.r4.model.PlanDefinition> planDefinitions = r4PlanDefinitions();
+		time("R4", planDefinitions, r4Resolution()::resolveService);
+	}
+
+	@Test
+	void testStu3Discovery() {
+		List<org.hl7.fhir.dstu3.model.PlanDefinition> planDefinitions = stu3PlanDefinitions();
+		assertServices(resolve(planDefinitions, stu3Resolution()::resolveService));
+	}
+
+	@Test
+	@Tag("benchmark")
+	void testStu3DiscoveryThroughput() {
+		List<org.hl7.fhir.dstu3.model.PlanDefinition> planDefinitions = stu3PlanDefinitions();
+		time("STU3", planDefinitions, stu3Resolution()::resolveService);
+	}
+
+	private List<org.hl7.fhir.r4.model.PlanDefinition> r4PlanDefinitions() {
+		List<org.hl7.fhir.r4.model.PlanDefinition> planDefinitions = new ArrayList<>();
+		for (int i = 0; i < PLAN_DEFINITIONS; i++) {
+			org.hl7.fhir.r4.model.PlanDefinition planDefinition = new org.hl7.fhir.r4.model.PlanDefinition();
+			planDefinition.setId("PlanDefinition/plan-" + i);
+			planDefinition.setName("plan-" + i);
+			planDefinition.setType(new org.hl7.fhir.r4.model.CodeableConcept()
+					.addCoding(new org.hl7.fhir.r4.model.Coding().setCode("eca-rule")));
+			planDefinitions.add(planDefinition);
+		}
+		return planDefinitions;
+	}
+
+	private DiscoveryResolutionR4 r4Resolution() {
+		return new DiscoveryResolutionR4(null) {
+			@Override
+			protected List<org.hl7.fhir.r4.model.DataRequirement> resolveDataRequirements(
+					org.hl7.fhir.r4.model.PlanDefinition planDefinition, Set<String> dependencies) {
+				List<org.hl7.fhir.r4.model.DataRequirement> dataRequirements = new ArrayList<>();
+				for (int i = 0; i < DATA_REQUIREMENTS; i++) {
+					org.hl7.fhir.r4.model.DataRequirement dataRequirement = new org.hl7.fhir.r4.model.DataRequirement()
+							.setType(TYPES[i % TYPES.length]);
+					org.hl7.fhir.r4.model.DataRequirement.DataRequirementCodeFilterComponent codeFilter = dataRequirement
+							.addCodeFilter().setPath("code");
+					for (int j = 0; j < CODES_PER_FILTER; j++) {
+						codeFilter.addCode(new org.hl7.fhir.r4.model.Coding()
+								.setSystem("http://loinc.org").setCode(i + "-" + j));
+					}
+					dataRequirements.add(dataRequirement);
+				}
+				return dataRequirements;
+			}
+		};
+	}
+
+	private List<org.hl7.fhir.dstu3.model.PlanDefinition> stu3PlanDefinitions() {
+		List<org.hl7.fhir.dstu3.model.PlanDefinition> planDefinitions = new ArrayList<>();
+		for (int i = 0; i < PLAN_DEFINITIONS; i++) {
+			org.hl7.fhir.dstu3.model.PlanDefinition planDefinition = new org.hl7.fhir.dstu3.model.PlanDefinition();
+			planDefinition.setId("PlanDefinition/plan-" + i);
+			planDefinition.setName("plan-" + i);
+			planDefinition.setType(new org.hl7.fhir.dstu3.model.CodeableConcept()
+					.addCoding(new org.hl7.fhir.dstu3.model.Coding().setCode("eca-rule")));
+			planDefinitions.add(planDefinition);
+		}
+		return planDefinitions;
+	}
+
+	private DiscoveryResolutionStu3 stu3Resolution() {
+		return new DiscoveryResolutionStu3(null) {
+			@Override
+			protected List<org.hl7.fhir.dstu3.model.DataRequirement> resolveDataRequirements(
+					org.hl7.fhir.dstu3.model.PlanDefinition planDefinition, Set<String> dependencies) {
+				List<org.hl7.fhir.dstu3.model.DataRequirement> dataRequirements = new ArrayList<>();
+				for (int i = 0; i < DATA_REQUIREMENTS; i++) {
+					org.hl7.fhir.dstu3.model.DataRequirement dataRequirement = new org.hl7.fhir.dstu3.model.DataRequirement()
+							.setType(TYPES[i % TYPES.length]);
+					org.hl7.fhir.dstu3.model.DataRequirement.DataRequirementCodeFilterComponent codeFilter = dataRequirement
+							.addCodeFilter().setPath("code");
+					for (int j = 0; j < CODES_PER_FILTER; j++) {
+						codeFilter.addValueCoding(new org.hl7.fhir.dstu3.model.Coding()
+								.setSystem("http://loinc.org").setCode(i + "-" + j));
+					}
+					dataRequirements.add(dataRequirement);
+				}
+				return dataRequirements;
+			}
+		};
+	}
+
+	private <P> List<JsonObject> resolve(List<P> planDefinitions, Function<P, JsonObject> resolveService) {
+		List<JsonObject> services = new ArrayList<>();
+		for (P planDefinition : planDefinitions) {
+			services.add(resolveService.apply(planDefinition));
+		}
+		return services;
+	}
+
+	private void assertServices(List<JsonObject> services) {
+		assertEquals(PLAN_DEFINITIONS, services.size());
+		for (JsonObject service : services) {
+			assertNotNull(service);
+			assertFalse(service.getAsJsonObject("prefetch").entrySet().isEmpty());
+			// one Patient item plus one merged url per data requirement type
+			assertEquals(TYPES.length + 1,
+					service.getAsJsonObject("extension").get("estimatedPrefetchQueryCount").getAsInt());
+		}
+	}
+
+	private <P> void time(String version, List<P> planDefinitions, Function<P, JsonObject> resolveService) {
+		long best = Long.MAX_VALUE;
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			long start = System.nanoTime();
+			List<JsonObject> services = resolve(planDefinitions, resolveService);
+			best = Math.min(best, System.nanoTime() - start);
+			assertServices(services);
+		}
+		logger.info("{} discovery of {} PlanDefinitions: best of {} runs {} ms", version, PLAN_DEFINITIONS,
+				ITERATIONS, TimeUnit.NANOSECONDS.toMillis(best));
+	}
+}
@@ -0,0 +1,52 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.discovery.PrefetchPlanner;
+
+class PrefetchPlannerTest {
+	private static final String OBSERVATION = "Observation?subject=Patient/{{context.patientId}}";
+	private static final String CONDITION = "Condition?patient=Patient/{{context.patientId}}";
+
+	@Test
+	void testSameParameterFiltersAreMerged() {
+		PrefetchPlanner planner = new PrefetchPlanner(8000);
+		planner.addCodeFilter(OBSERVATION, "code", Arrays.asList("a|1", "a|2"));
+		planner.addCodeFilter(CONDITION, "code", Arrays.asList("b|1"));
+		planner.addCodeFilter(OBSERVATION, "code", Arrays.asList("a|2", "a|3"));
+		assertEquals(Arrays.asList(OBSERVATION + "&code=a|1,a|2,a|3", CONDITION + "&code=b|1"), planner.plan());
+	}
+
+	@Test
+	void testUnfilteredQuerySubsumesFilters() {
+		PrefetchPlanner planner = new PrefetchPlanner(8000);
+		planner.addCodeFilter(OBSERVATION, "code", Arrays.asList("a|1"));
+		planner.addQuery(OBSERVATION);
+		planner.addCodeFilter(OBSERVATION, "category", Arrays.asList("c|1"));
+		assertEquals(Arrays.asList(OBSERVATION), planner.plan());
+	}
+
+	@Test
+	void testUrlsAreSplitAtMaxUriLength() {
+		int maxUriLength = (OBSERVATION + "&code=a|1,a|2").length();
+		PrefetchPlanner planner = new PrefetchPlanner(maxUriLength);
+		planner.addCodeFilter(OBSERVATION, "code", Arrays.asList("a|1", "a|2", "a|3", "a|4", "a|5"));
+		List<String> urls = planner.plan();
+		assertEquals(Arrays.asList(
+				OBSERVATION + "&code=a|1,a|2",
+				OBSERVATION + "&code=a|3,a|4",
+				OBSERVATION + "&code=a|5"), urls);
+		urls.forEach(url -> assertTrue(url.length() <= maxUriLength));
+	}
+
+	@Test
+	void testInvalidMaxUriLength() {
+		assertThrows(IllegalArgumentException.class, () -> new PrefetchPlanner(0));
+	}
+}
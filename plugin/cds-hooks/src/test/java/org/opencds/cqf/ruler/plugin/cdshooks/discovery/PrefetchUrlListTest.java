@@ -0,0 +1,49 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cdshooks.discovery.PrefetchUrlList;
+
+class PrefetchUrlListTest {
+	@Test
+	void testDuplicateAndPrefixedUrlsAreSkipped() {
+		PrefetchUrlList list = new PrefetchUrlList();
+		assertTrue(list.add("Observation?subject=Patient/{{context.patientId}}"));
+		assertFalse(list.add("Observation?subject=Patient/{{context.patientId}}"));
+		assertFalse(list.add("Observation?subject=Patient/{{context.patientId}}&code=http://loinc.org|1234-5"));
+		assertTrue(list.add("Condition?patient=Patient/{{context.patientId}}"));
+		assertEquals(2, list.size());
+	}
+
+	@Test
+	void testShorterUrlAddedLaterIsKept() {
+		PrefetchUrlList list = new PrefetchUrlList();
+		list.addAll(Arrays.asList(
+				"Observation?subject=Patient/{{context.patientId}}&code=a|1",
+				"Observation?subject=Patient/{{context.patientId}}&code=b|2",
+				"Observation?subject=Patient/{{context.patientId}}",
+				"Observation?subject=Patient/{{context.patientId}}&code=a|1,a|3"));
+		assertEquals(Arrays.asList(
+				"Observation?subject=Patient/{{context.patientId}}&code=a|1",
+				"Observation?subject=Patient/{{context.patientId}}&code=b|2",
+				"Observation?subject=Patient/{{context.patientId}}"), list);
+	}
+
+	@Test
+	void testImmutableSnapshot() {
+		PrefetchUrlList list = new PrefetchUrlList();
+		list.add("Patient?_id={{context.patientId}}");
+		List<String> snapshot = list.toImmutableList();
+		list.add("Encounter?patient=Patient/{{context.patientId}}");
+		assertEquals(1, snapshot.size());
+		assertThrows(UnsupportedOperationException.class, () -> snapshot.add("Condition"));
+		assertThrows(UnsupportedOperationException.class, () -> list.remove(0));
+	}
+}
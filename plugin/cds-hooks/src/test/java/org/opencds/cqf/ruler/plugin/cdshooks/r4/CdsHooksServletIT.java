@@ -15,12 +15,14 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.PlanDefinition;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsServiceDependencyListener;
 import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
 import org.opencds.cqf.ruler.plugin.cdshooks.ResourceChangeEvent;
 import org.opencds.cqf.ruler.test.RestIntegrationTest;
@@ -40,6 +42,8 @@ import com.google.gson.JsonObject;
 class CdsHooksServletIT extends RestIntegrationTest {
 	@Autowired
 	CdsServicesCache cdsServicesCache;
+	@Autowired
+	CdsServiceDependencyListener cdsServiceDependencyListener;
 	private String ourCdsBase;
 
 	@BeforeEach
@@ -97,6 +101,32 @@ class CdsHooksServletIT extends RestIntegrationTest {
 				cdsServicesCache.getCdsServiceCache().get().get(0).getAsJsonObject().get("name").getAsString());
 	}
 
+	@Test
+	void testCdsServicesCacheLibraryChange() {
+		loadTransaction("HelloWorldPatientView-bundle.json");
+		PlanDefinition planDefinition = (PlanDefinition) loadResource("HelloWorld-plandefinition.json");
+
+		ResourceChangeEvent rce = new ResourceChangeEvent();
+		rce.setCreatedResourceIds(Collections.singletonList(planDefinition.getIdElement()));
+
+		cdsServicesCache.clearCache();
+		cdsServicesCache.handleChange(rce);
+		assertEquals(1, cdsServicesCache.getCdsServiceCache().get().get(0).getAsJsonObject()
+				.getAsJsonObject("prefetch").size());
+
+		Library library = read(new IdType("Library", "HelloWorldPatientView"));
+		library.addDataRequirement().setType("Condition");
+		update(library);
+
+		ResourceChangeEvent libraryChange = new ResourceChangeEvent();
+		libraryChange.setUpdatedResourceIds(Collections.singletonList(library.getIdElement()));
+		cdsServiceDependencyListener.handleChange(libraryChange);
+
+		assertEquals(1, cdsServicesCache.getCdsServiceCache().get().size());
+		assertEquals(2, cdsServicesCache.getCdsServiceCache().get().get(0).getAsJsonObject()
+				.getAsJsonObject("prefetch").size());
+	}
+
 	@Test
 	void testCdsServicesRequest() {
 		// Server Load
@@ -0,0 +1,57 @@
+package org.opencds.cqf.ruler.plugin.cdshooks.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+
+import org.awaitility.Awaitility;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksConfig;
+import org.opencds.cqf.ruler.cdshooks.CdsHooksProperties;
+import org.opencds.cqf.ruler.cdshooks.CdsServicesCache;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.google.gson.JsonArray;
+
+// Polling runs once an hour, so any change seen within the test came from push
+// invalidation
+@DirtiesContext
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		CdsHooksConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.cr.enabled=true",
+				"hapi.fhir.cdshooks.discovery.refreshIntervalMillis=3600000",
+				"hapi.fhir.cdshooks.discovery.pushInvalidationEnabled=true" })
+class CdsServicesCacheInvalidatorIT extends RestIntegrationTest {
+	@Autowired
+	CdsServicesCache cdsServicesCache;
+	@Autowired
+	CdsHooksProperties cdsHooksProperties;
+
+	@Test
+	void testLibraryUpdateRefreshesDiscovery() {
+		assertEquals(3600000, cdsHooksProperties.getDiscovery().getRefreshIntervalMillis());
+
+		loadTransaction("HelloWorldPatientView-bundle.json");
+		loadResource("HelloWorld-plandefinition.json");
+		Awaitility.await().atMost(Duration.ofSeconds(30)).until(() -> prefetchSize() == 1);
+
+		Library library = read(new IdType("Library", "HelloWorldPatientView"));
+		library.addDataRequirement().setType("Condition");
+		update(library);
+
+		Awaitility.await().atMost(Duration.ofSeconds(30)).until(() -> prefetchSize() == 2);
+		assertEquals(1, cdsServicesCache.getCdsServiceCache().get().size());
+	}
+
+	private int prefetchSize() {
+		JsonArray services = cdsServicesCache.getCdsServiceCache().get();
+		return services.size() == 0 ? 0 : services.get(0).getAsJsonObject().getAsJsonObject("prefetch").size();
+	}
+}
@@ -1,16 +1,35 @@
 package org.opencds.cqf.ruler.ra;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.config.JpaStorageSettings;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
 import org.opencds.cqf.external.annotations.OnR4Condition;
 import org.opencds.cqf.external.cr.PostInitProviderRegisterer;
 import org.opencds.cqf.ruler.api.OperationProvider;
 import org.opencds.cqf.ruler.ra.r4.ApproveProvider;
 import org.opencds.cqf.ruler.ra.r4.AssistedServlet;
+import org.opencds.cqf.ruler.ra.r4.CodingGapReportBundleReindexer;
+import org.opencds.cqf.ruler.ra.r4.CodingGapReportHistory;
+import org.opencds.cqf.ruler.ra.r4.CodingGapReportHistoryProvider;
+import org.opencds.cqf.ruler.ra.r4.CodingGapReportPrecomputer;
+import org.opencds.cqf.ruler.ra.r4.CodingGapsExportServlet;
+import org.opencds.cqf.ruler.ra.r4.CompositionAuthorCache;
+import org.opencds.cqf.ruler.ra.r4.MeasureReportIndex;
 import org.opencds.cqf.ruler.ra.r4.RACodingGapsProvider;
 import org.opencds.cqf.ruler.ra.r4.RemediateProvider;
 import org.opencds.cqf.ruler.ra.r4.ResolveProvider;
 import org.opencds.cqf.ruler.ra.r4.RiskAdjustmentProvider;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
@@ -18,18 +37,91 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 @Configuration
 @ConditionalOnProperty(prefix = "hapi.fhir.ra", name = "enabled", havingValue = "true", matchIfMissing = true)
 public class RAConfig {
 
+	public static final String RA_EXECUTOR_SERVICE = "raExecutorService";
+	private static final long COMPOSITION_AUTHOR_REFRESH_INTERVAL_MILLIS = 10000;
+
 	@Bean
 	public RAProperties RAProperties() {
 		return new RAProperties();
 	}
 
+	@Bean(name = RA_EXECUTOR_SERVICE, destroyMethod = "shutdown")
+	public ExecutorService raExecutorService(RAProperties raProperties) {
+		int threads = Math.max(1, raProperties.getParallelism().getThreads());
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * 4),
+				new ThreadFactoryBuilder().setNameFormat("ra-worker-%d").setDaemon(true).build(),
+				// when the queue is full the submitting request thread does the work itself
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public CompositionAuthorCache compositionAuthorCache(DaoRegistry daoRegistry, RAProperties raProperties,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		CompositionAuthorCache compositionAuthorCache = new CompositionAuthorCache(daoRegistry, raProperties);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("Organization",
+				SearchParameterMap.newSynchronous(), compositionAuthorCache, COMPOSITION_AUTHOR_REFRESH_INTERVAL_MILLIS);
+		return compositionAuthorCache;
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	@Conditional(OnR4Condition.class)
+	@ConditionalOnProperty(prefix = "hapi.fhir.ra.precompute", name = "enabled", havingValue = "true")
+	public CodingGapReportPrecomputer codingGapReportPrecomputer(DaoRegistry daoRegistry,
+			RAProperties raProperties, CompositionAuthorCache compositionAuthorCache,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		CodingGapReportPrecomputer precomputer = new CodingGapReportPrecomputer(daoRegistry, raProperties,
+				compositionAuthorCache);
+		long refreshIntervalMillis = raProperties.getPrecompute().getRefreshIntervalMillis();
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("MeasureReport",
+				SearchParameterMap.newSynchronous(), precomputer, refreshIntervalMillis);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("DetectedIssue",
+				SearchParameterMap.newSynchronous(), precomputer, refreshIntervalMillis);
+		return precomputer;
+	}
+
 	@Bean
 	@Conditional(OnR4Condition.class)
-	public OperationProvider r4ReportProvider() {
+	@ConditionalOnProperty(prefix = "hapi.fhir.ra.report-index", name = "enabled", havingValue = "true")
+	public MeasureReportIndex measureReportIndex(DaoRegistry daoRegistry, RAProperties raProperties,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		MeasureReportIndex measureReportIndex = new MeasureReportIndex(daoRegistry);
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("MeasureReport",
+				SearchParameterMap.newSynchronous(), measureReportIndex,
+				raProperties.getReportIndex().getRefreshIntervalMillis());
+		return measureReportIndex;
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public CodingGapReportBundleReindexer codingGapReportBundleReindexer(DaoRegistry daoRegistry,
+			ISearchParamRegistry searchParamRegistry, ObjectProvider<IJobCoordinator> jobCoordinator) {
+		return new CodingGapReportBundleReindexer(daoRegistry, searchParamRegistry, jobCoordinator.getIfAvailable());
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	@ConditionalOnProperty(prefix = "hapi.fhir.ra.history", name = "enabled", havingValue = "true")
+	public CodingGapReportHistory codingGapReportHistory(DaoRegistry daoRegistry,
+			JpaStorageSettings storageSettings) {
+		// without expunge every step would keep a full version of the current Bundle
+		if (!storageSettings.isExpungeEnabled()) {
+			throw new IllegalStateException(
+					"hapi.fhir.ra.history.enabled requires hapi.fhir.expunge_enabled to be set");
+		}
+		return new CodingGapReportHistory(daoRegistry);
+	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public RACodingGapsProvider r4ReportProvider() {
 		return new RACodingGapsProvider();
 	}
 
@@ -57,6 +149,12 @@ public class RAConfig {
 		return new ResolveProvider();
 	}
 
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public OperationProvider r4CodingGapReportHistoryProvider() {
+		return new CodingGapReportHistoryProvider();
+	}
+
 	@Bean
 	@Conditional(OnR4Condition.class)
 	public ServletRegistrationBean<AssistedServlet> assistedServletServletRegistrationBeanR4(
@@ -71,6 +169,21 @@ public class RAConfig {
 		return registrationBean;
 	}
 
+	@Bean
+	@Conditional(OnR4Condition.class)
+	@ConditionalOnProperty(prefix = "hapi.fhir.ra.export", name = "enabled", havingValue = "true")
+	public ServletRegistrationBean<CodingGapsExportServlet> codingGapsExportServletRegistrationBeanR4(
+			AutowireCapableBeanFactory beanFactory) {
+		CodingGapsExportServlet codingGapsExportServlet = new CodingGapsExportServlet();
+		beanFactory.autowireBean(codingGapsExportServlet);
+		ServletRegistrationBean<CodingGapsExportServlet> registrationBean = new ServletRegistrationBean<>();
+		registrationBean.setName("davinci-ra coding gaps export servlet");
+		registrationBean.setServlet(codingGapsExportServlet);
+		registrationBean.addUrlMappings("/ra-coding-gaps", "/ra-coding-gaps/*");
+		registrationBean.setLoadOnStartup(1);
+		return registrationBean;
+	}
+
 	@Bean
 	RAProviderFactory raOperationFactory() {
 		return new RAProviderFactory();
@@ -73,11 +73,21 @@ public class RAConstants {
 	public static final Meta PATIENT_REPORT_META = new Meta().setProfile(
 			Collections.singletonList(new CanonicalType(RAConstants.PATIENT_REPORT_URL)))
 			.setLastUpdated(new Date());
+	public static final String ASSISTED_REPORT_ID_PREFIX = "assisted-";
+	public static final String CURRENT_REPORT_ID_PREFIX = "coding-gap-report-";
+	public static final String HISTORY_ID_PREFIX = "coding-gap-history-";
+	public static final String ASSISTED_CONTENT_HASH_URL = "http://cqframework.org/fhir/StructureDefinition/ra-assisted-content-hash";
 
 	// Bundle constants
 	public static final Meta CODING_GAP_REPORT_BUNDLE_META = new Meta().setProfile(
 			Collections.singletonList(new CanonicalType(RAConstants.CODING_GAP_BUNDLE_URL)))
 			.setLastUpdated(new Date());
+	public static final String CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_URL = "http://cqframework.org/fhir/SearchParameter/ra-coding-gap-bundle-subject";
+	public static final String CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_CODE = "ra-subject";
+	public static final String CODING_GAP_BUNDLE_REPORT_DATE_SEARCHPARAMETER_URL = "http://cqframework.org/fhir/SearchParameter/ra-coding-gap-bundle-report-date";
+	public static final String CODING_GAP_BUNDLE_REPORT_DATE_SEARCHPARAMETER_CODE = "ra-report-date";
+	public static final String PRECOMPUTED_TAG_SYSTEM = "http://cqframework.org/fhir/CodeSystem/ra-coding-gap-bundle-tag";
+	public static final String PRECOMPUTED_TAG_CODE = "precomputed";
 
 	// Composition constants
 	public static final Meta COMPOSITION_META = new Meta().addProfile(
@@ -113,4 +123,8 @@ public class RAConstants {
 	public static final String MEASURE_IDENTIFIER = "measureIdentifier";
 	public static final String MEASURE_URL = "measureUrl";
 	public static final String RETURN_PARAM_NAME = "return";
+	public static final String PERSIST = "persist";
+	public static final String PERSISTED_PARAM_NAME = "persisted";
+	public static final String VERSION = "version";
+	public static final String VERSIONS_PARAM_NAME = "versions";
 }
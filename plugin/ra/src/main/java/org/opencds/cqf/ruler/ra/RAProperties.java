@@ -39,6 +39,76 @@ public class RAProperties {
 		this.compositionConfiguration = compositionConfiguration;
 	}
 
+	private Parallelism parallelism = new Parallelism();
+
+	public Parallelism getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(Parallelism parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	private Export export = new Export();
+
+	public Export getExport() {
+		return export;
+	}
+
+	public void setExport(Export export) {
+		this.export = export;
+	}
+
+	private Precompute precompute = new Precompute();
+
+	public Precompute getPrecompute() {
+		return precompute;
+	}
+
+	public void setPrecompute(Precompute precompute) {
+		this.precompute = precompute;
+	}
+
+	private ReportIndex reportIndex = new ReportIndex();
+
+	public ReportIndex getReportIndex() {
+		return reportIndex;
+	}
+
+	public void setReportIndex(ReportIndex reportIndex) {
+		this.reportIndex = reportIndex;
+	}
+
+	private Assisted assisted = new Assisted();
+
+	public Assisted getAssisted() {
+		return assisted;
+	}
+
+	public void setAssisted(Assisted assisted) {
+		this.assisted = assisted;
+	}
+
+	private Persist persist = new Persist();
+
+	public Persist getPersist() {
+		return persist;
+	}
+
+	public void setPersist(Persist persist) {
+		this.persist = persist;
+	}
+
+	private History history = new History();
+
+	public History getHistory() {
+		return history;
+	}
+
+	public void setHistory(History history) {
+		this.history = history;
+	}
+
 	public static class Report {
 
 		private String endpoint;
@@ -63,4 +133,160 @@ public class RAProperties {
 			this.ra_composition_section_author = raCompositionSectionAuthor;
 		}
 	}
+
+	public static class Parallelism {
+		private int threads = Runtime.getRuntime().availableProcessors();
+		private int chunkSize = 100;
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		public void setChunkSize(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+
+	public static class Export {
+		private boolean enabled = false;
+		private String directory = System.getProperty("java.io.tmpdir") + "/ra-coding-gaps";
+		private long retentionMillis = 86400000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDirectory() {
+			return directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		public long getRetentionMillis() {
+			return retentionMillis;
+		}
+
+		public void setRetentionMillis(long retentionMillis) {
+			this.retentionMillis = retentionMillis;
+		}
+	}
+
+	public static class Precompute {
+		private boolean enabled = false;
+		private int queueCapacity = 1000;
+		private long refreshIntervalMillis = 10000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public long getRefreshIntervalMillis() {
+			return refreshIntervalMillis;
+		}
+
+		public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+			this.refreshIntervalMillis = refreshIntervalMillis;
+		}
+	}
+
+	public static class ReportIndex {
+		private boolean enabled = false;
+		private long refreshIntervalMillis = 10000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getRefreshIntervalMillis() {
+			return refreshIntervalMillis;
+		}
+
+		public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+			this.refreshIntervalMillis = refreshIntervalMillis;
+		}
+	}
+
+	public static class Assisted {
+		private int chunkSize = 500;
+		private int spillBuckets = 64;
+		private boolean commitEnabled = false;
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		public void setChunkSize(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		public int getSpillBuckets() {
+			return spillBuckets;
+		}
+
+		public void setSpillBuckets(int spillBuckets) {
+			this.spillBuckets = spillBuckets;
+		}
+
+		public boolean isCommitEnabled() {
+			return commitEnabled;
+		}
+
+		public void setCommitEnabled(boolean commitEnabled) {
+			this.commitEnabled = commitEnabled;
+		}
+	}
+
+	public static class Persist {
+		private int chunkSize = 100;
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		public void setChunkSize(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+
+	public static class History {
+		private boolean enabled = false;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+	}
 }
@@ -1,6 +1,7 @@
 package org.opencds.cqf.ruler.ra;
 
 import org.opencds.cqf.ruler.ra.r4.ApproveProvider;
+import org.opencds.cqf.ruler.ra.r4.CodingGapReportHistoryProvider;
 import org.opencds.cqf.ruler.ra.r4.RACodingGapsProvider;
 import org.opencds.cqf.ruler.ra.r4.RemediateProvider;
 import org.opencds.cqf.ruler.ra.r4.ResolveProvider;
@@ -55,6 +56,15 @@ public class RAProviderFactory {
 					+ myFhirContext.getVersion().getVersion());
 		}
 	}
+	public Object getCodingGapReportHistoryProvider() {
+		switch (myFhirContext.getVersion().getVersion()) {
+			case R4:
+				return myApplicationContext.getBean(CodingGapReportHistoryProvider.class);
+			default:
+				throw new ConfigurationException("CodingGapReportHistoryProvider not supported for FHIR version "
+					+ myFhirContext.getVersion().getVersion());
+		}
+	}
 	public Object getRiskAdjustmentProvider() {
 		switch (myFhirContext.getVersion().getVersion()) {
 			case R4:
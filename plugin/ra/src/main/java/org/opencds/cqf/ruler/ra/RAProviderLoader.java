@@ -34,6 +34,7 @@ public class RAProviderLoader {
 				myResourceProviderFactory.addSupplier(myRAProviderFactory::getRemediateProvider);
 				myResourceProviderFactory.addSupplier(myRAProviderFactory::getResolveProvider);
 				myResourceProviderFactory.addSupplier(myRAProviderFactory::getRiskAdjustmentProvider);
+				myResourceProviderFactory.addSupplier(myRAProviderFactory::getCodingGapReportHistoryProvider);
 				break;
 			default:
 				throw new ConfigurationException("RA not supported for FHIR version "
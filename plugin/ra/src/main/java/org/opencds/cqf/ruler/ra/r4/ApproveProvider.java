@@ -5,22 +5,28 @@ import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.DetectedIssue;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.utility.Ids;
 import org.opencds.cqf.ruler.behavior.ResourceCreator;
 import org.opencds.cqf.ruler.behavior.r4.ParameterUser;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.rest.annotation.Operation;
@@ -30,6 +36,15 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 public class ApproveProvider extends DaoRegistryOperationProvider
 		implements ParameterUser, ResourceCreator, RiskAdjustmentUser {
 
+	@Autowired
+	private RAProperties raProperties;
+
+	@Autowired(required = false)
+	private CodingGapReportHistory codingGapReportHistory;
+
+	@Autowired(required = false)
+	private CodingGapReportBundleReindexer codingGapReportBundleReindexer;
+
 	/**
 	 * Implements the <a href=
 	 * "https://build.fhir.org/ig/HL7/davinci-ra/OperationDefinition-ra.approve-coding-gaps.html">$ra.approve-coding-gaps</a>
@@ -46,9 +61,13 @@ public class ApproveProvider extends DaoRegistryOperationProvider
 	 * @param measureId         the id of a Measure resource
 	 * @param measureIdentifier the identifier of a Measure resource
 	 * @param measureUrl        the url of a Measure resource
+	 * @param persist           whether to store the approved DetectedIssues and
+	 *                          the new Bundles, in one transaction per chunk of
+	 *                          patients; only accepted with POST
 	 * @return a Parameters with <a href=
 	 *         "http://build.fhir.org/ig/HL7/davinci-ra/StructureDefinition-ra-coding-gap-bundle.html">Risk
-	 *         Adjustment Coding Gap Bundles</a>
+	 *         Adjustment Coding Gap Bundles</a>, and a summary of what was stored
+	 *         when persist is true
 	 */
 	@Description(shortDefinition = "$ra.approve-coding-gaps operation", value = "Implements the <a href=\"https://build.fhir.org/ig/HL7/davinci-ra/OperationDefinition-ra.approve-coding-gaps.html\">$ra.approve-coding-gaps</a> operation found in the <a href=\"https://build.fhir.org/ig/HL7/davinci-ra/index.html\">Da Vinci Risk Adjustment IG</a>.")
 	@Operation(name = "$ra.approve-coding-gaps", idempotent = true, type = MeasureReport.class)
@@ -59,7 +78,8 @@ public class ApproveProvider extends DaoRegistryOperationProvider
 			@OperationParam(name = RAConstants.SUBJECT) String subject,
 			@OperationParam(name = RAConstants.MEASURE_ID) List<String> measureId,
 			@OperationParam(name = RAConstants.MEASURE_IDENTIFIER) List<String> measureIdentifier,
-			@OperationParam(name = RAConstants.MEASURE_URL) List<String> measureUrl) throws FHIRException {
+			@OperationParam(name = RAConstants.MEASURE_URL) List<String> measureUrl,
+			@OperationParam(name = RAConstants.PERSIST) BooleanType persist) throws FHIRException {
 		try {
 			validateParameters(requestDetails);
 		} catch (Exception e) {
@@ -67,25 +87,50 @@ public class ApproveProvider extends DaoRegistryOperationProvider
 					generateIssue(RAConstants.INVALID_PARAMETERS_SEVERITY, e.getMessage())));
 		}
 
-		List<Bundle> codingGapReportBundles = new ArrayList<>();
-		getPatientListFromSubject(subject).forEach(
+		// rejected with GET before anything is written
+		CodingGapReportWriter writer = isPersistRequested(requestDetails, persist)
+				? new CodingGapReportWriter(getDaoRegistry(), raProperties.getPersist().getChunkSize(),
+						codingGapReportHistory)
+				: null;
+
+		ensureCodingGapReportBundleSearchParameters(requestDetails);
+
+		// a patient without a coding gap report in the period gets an error and the
+		// other patients are still processed
+		List<Resource> codingGapReportBundles = new ArrayList<>();
+		Map<String, Resource> resourceCache = new HashMap<>();
+		getPatientIdsFromSubject(subject).forEachRemaining(
 				patient -> {
-					Bundle b = getMostRecentCodingGapReportBundle(subject, normalizeMeasureReference(
+					Bundle b = getMostRecentCodingGapReportBundle(Ids.simple(patient), normalizeMeasureReference(
 							measureId, measureIdentifier, measureUrl), periodStart.getValue(), periodEnd.getValue());
-					MeasureReport mr = getReportFromBundle(b);
-					Composition composition = getCompositionFromBundle(b);
-					List<DetectedIssue> issues = getMostRecentIssuesFromBundle(b);
+					if (b == null) {
+						codingGapReportBundles.add(generateIssue("error", String.format(
+								"No coding gap report Bundle was found for %s in the period %s to %s",
+								Ids.simple(patient), periodStart.getValueAsString(), periodEnd.getValueAsString())));
+						return;
+					}
+					CodingGapReportBundleEntries entries = getCodingGapReportBundleEntries(b);
+					MeasureReport mr = entries.getReport();
+					Composition composition = entries.getComposition();
+					List<DetectedIssue> issues = getMostRecentIssuesFromBundle(entries);
 					updateDetectedIssueStatusByCode(issues);
-					Resource author = getAuthorFromBundle(b, composition);
-					codingGapReportBundles.add(
-							buildCodingGapReportBundle(requestDetails.getFhirServerBase(), composition, issues, mr, author));
+					Resource author = getAuthorFromBundle(entries, composition);
+					Bundle codingGapReportBundle = buildCodingGapReportBundle(requestDetails.getFhirServerBase(),
+							composition, issues, mr, author, resourceCache);
+					codingGapReportBundles.add(codingGapReportBundle);
+					if (writer != null) {
+						writer.add(codingGapReportBundle, issues);
+					}
 				});
 
 		Parameters result = newResource(Parameters.class, RAConstants.APPROVE_ID_PREFIX + UUID.randomUUID());
 
-		for (Bundle codingGapReportBundle : codingGapReportBundles) {
+		for (Resource codingGapReportBundle : codingGapReportBundles) {
 			result.addParameter(part(RAConstants.RETURN_PARAM_NAME, codingGapReportBundle));
 		}
+		if (writer != null) {
+			result.addParameter(writer.finish());
+		}
 
 		return result;
 	}
@@ -101,4 +146,9 @@ public class ApproveProvider extends DaoRegistryOperationProvider
 		Operations.validateAtLeastOne(requestDetails, RAConstants.MEASURE_ID,
 				RAConstants.MEASURE_IDENTIFIER, RAConstants.MEASURE_URL);
 	}
+
+	@Override
+	public CodingGapReportBundleReindexer getCodingGapReportBundleReindexer() {
+		return codingGapReportBundleReindexer;
+	}
 }
@@ -0,0 +1,229 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.ruler.ra.RAConstants;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Maps assisted CSV rows to RA MeasureReports for a single request. Report ids
+ * are derived from the patient, model, version and period of the rows. Parsed
+ * periods, group codes and the suspect type, evidence status, evidence date and
+ * hierarchical status extensions are built once per distinct value and shared
+ * by every report the mapper creates, so the reports of a request must not have
+ * those elements modified after mapping.
+ */
+class AssistedReportMapper {
+	private static final DateTimeFormatter PERIOD_FORMATTER = DateTimeFormatter.ofPattern("y-M-d", Locale.ENGLISH);
+
+	/**
+	 * The rows that share a key are the groups of one MeasureReport.
+	 */
+	static final class Key {
+		private final String periodStart;
+		private final String periodEnd;
+		private final String modelId;
+		private final String modelVersion;
+		private final String patientId;
+
+		private Key(String periodStart, String periodEnd, String modelId, String modelVersion, String patientId) {
+			this.periodStart = periodStart;
+			this.periodEnd = periodEnd;
+			this.modelId = modelId;
+			this.modelVersion = modelVersion;
+			this.patientId = patientId;
+		}
+
+		static Key of(AssistedRowData data) {
+			return new Key(data.getPeriodStart(), data.getPeriodEnd(), data.getModelId(), data.getModelVersion(),
+					getSubject(data.getPatientId()));
+		}
+
+		String getPeriodStart() {
+			return periodStart;
+		}
+
+		String getPeriodEnd() {
+			return periodEnd;
+		}
+
+		String getModelId() {
+			return modelId;
+		}
+
+		String getModelVersion() {
+			return modelVersion;
+		}
+
+		String getPatientId() {
+			return patientId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return Objects.equals(periodStart, other.periodStart) && Objects.equals(periodEnd, other.periodEnd)
+					&& Objects.equals(modelId, other.modelId) && Objects.equals(modelVersion, other.modelVersion)
+					&& Objects.equals(patientId, other.patientId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(periodStart, periodEnd, modelId, modelVersion, patientId);
+		}
+	}
+
+	private final ZoneId zone = ZoneId.systemDefault();
+	private final Date date = new Date();
+	private final Map<String, Date> dates = new HashMap<>();
+	private final Map<String, CodeableConcept> groupCodes = new HashMap<>();
+	private final Map<String, Extension> suspectTypes = new HashMap<>();
+	private final Map<String, Extension> evidenceStatuses = new HashMap<>();
+	private final Map<String, Extension> evidenceStatusDates = new HashMap<>();
+	private final Map<String, Extension> hierarchicalStatuses = new HashMap<>();
+
+	MeasureReport createMeasureReport(AssistedRowData data) {
+		MeasureReport mr = new MeasureReport();
+		mr.setIdElement(getId(Key.of(data)));
+		mr.setMeta(new Meta().addProfile(RAConstants.MEASURE_REPORT_PROFILE_URL));
+		mr.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+		mr.setType(MeasureReport.MeasureReportType.INDIVIDUAL);
+		mr.setMeasure(data.getModelId());
+		mr.setSubject(new Reference(getSubject(data.getPatientId())));
+		mr.setDate(date);
+		mr.setPeriod(new Period().setStart(getDate(data.getPeriodStart())).setEnd(getDate(data.getPeriodEnd())));
+		addGroup(data, mr);
+		return mr;
+	}
+
+	void addGroup(AssistedRowData data, MeasureReport mr) {
+		MeasureReport.MeasureReportGroupComponent group = new MeasureReport.MeasureReportGroupComponent();
+		group.setId("group-" + data.getCcCode());
+		group.setCode(groupCodes.computeIfAbsent(data.getCcCode() + '|' + data.getModelVersion(),
+				key -> new CodeableConcept(new Coding().setCode(data.getCcCode())
+						.setSystem(RAConstants.HCC_CODESYSTEM_URL).setVersion(data.getModelVersion()))));
+		if (data.getSuspectType() != null && !data.getSuspectType().isBlank()) {
+			group.addExtension(suspectTypes.computeIfAbsent(data.getSuspectType(),
+					code -> createCodeableConceptExtension(RAConstants.SUSPECT_TYPE_URL,
+							RAConstants.SUSPECT_TYPE_SYSTEM, code)));
+		}
+		if (data.getEvidenceStatus() != null && !data.getEvidenceStatus().isBlank()) {
+			group.addExtension(evidenceStatuses.computeIfAbsent(data.getEvidenceStatus(),
+					code -> createCodeableConceptExtension(RAConstants.EVIDENCE_STATUS_URL,
+							RAConstants.EVIDENCE_STATUS_SYSTEM, code)));
+		}
+		if (data.getEvidenceStatusDate() != null && !data.getEvidenceStatusDate().isBlank()) {
+			group.addExtension(evidenceStatusDates.computeIfAbsent(data.getEvidenceStatusDate(),
+					value -> new Extension().setUrl(RAConstants.EVIDENCE_STATUS_DATE_URL)
+							.setValue(new DateType(value))));
+		}
+		if (data.getHiearchicalStatus() != null && !data.getHiearchicalStatus().isBlank()) {
+			group.addExtension(hierarchicalStatuses.computeIfAbsent(data.getHiearchicalStatus(),
+					code -> createCodeableConceptExtension(RAConstants.HIERARCHICAL_STATUS_URL,
+							RAConstants.HIERARCHICAL_STATUS_SYSTEM, code)));
+		}
+		mr.addGroup(group);
+	}
+
+	/**
+	 * Adds the content hash of a report whose groups are all mapped. The hash
+	 * covers the subject, measure, period and groups but not the report date, and
+	 * does not depend on the order of the rows.
+	 *
+	 * @param mr the report
+	 * @return the report
+	 */
+	MeasureReport finish(MeasureReport mr) {
+		List<String> groups = new ArrayList<>(mr.getGroup().size());
+		for (MeasureReport.MeasureReportGroupComponent group : mr.getGroup()) {
+			StringBuilder content = new StringBuilder();
+			content.append(group.getCode().getCodingFirstRep().getCode()).append('|')
+					.append(group.getCode().getCodingFirstRep().getVersion());
+			for (Extension extension : group.getExtension()) {
+				content.append('|').append(extension.getUrl()).append('=');
+				if (extension.getValue() instanceof CodeableConcept) {
+					content.append(((CodeableConcept) extension.getValue()).getCodingFirstRep().getCode());
+				} else {
+					content.append(extension.getValue().primitiveValue());
+				}
+			}
+			groups.add(content.toString());
+		}
+		Collections.sort(groups);
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		update(hasher, mr.getSubject().getReference());
+		update(hasher, mr.getMeasure());
+		update(hasher, mr.getPeriod().getStartElement().getValueAsString());
+		update(hasher, mr.getPeriod().getEndElement().getValueAsString());
+		groups.forEach(group -> update(hasher, group));
+		mr.addExtension(RAConstants.ASSISTED_CONTENT_HASH_URL, new StringType(hasher.hash().toString()));
+		return mr;
+	}
+
+	/**
+	 * Returns the content hash added by {@link #finish(MeasureReport)}.
+	 *
+	 * @param mr the report
+	 * @return the hash, or null if the report has none
+	 */
+	static String getContentHash(MeasureReport mr) {
+		Extension extension = mr.getExtensionByUrl(RAConstants.ASSISTED_CONTENT_HASH_URL);
+		return extension == null || !extension.hasValue() ? null : extension.getValue().primitiveValue();
+	}
+
+	// The same patient, model, version and period always maps to the same report,
+	// so uploading a file again updates its reports rather than adding new ones
+	private IdType getId(Key key) {
+		String naturalKey = String.join("\n", key.getPatientId(), key.getModelId(), key.getModelVersion(),
+				key.getPeriodStart(), key.getPeriodEnd());
+		return new IdType("MeasureReport", RAConstants.ASSISTED_REPORT_ID_PREFIX
+				+ UUID.nameUUIDFromBytes(naturalKey.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String getSubject(String patientId) {
+		return patientId.startsWith("Patient/") ? patientId : "Patient/" + patientId;
+	}
+
+	private void update(Hasher hasher, String value) {
+		hasher.putString(String.valueOf(value), StandardCharsets.UTF_8).putByte((byte) 0);
+	}
+
+	// Periods repeat on every row of a file, so each distinct date is parsed once
+	private Date getDate(String value) {
+		return dates.computeIfAbsent(value,
+				text -> Date.from(LocalDate.parse(text, PERIOD_FORMATTER).atStartOfDay(zone).toInstant()));
+	}
+
+	private Extension createCodeableConceptExtension(String url, String system, String code) {
+		return new Extension().setUrl(url).setValue(new CodeableConcept(new Coding().setCode(code).setSystem(system)));
+	}
+}
@@ -1,36 +1,103 @@
 package org.opencds.cqf.ruler.ra.r4;
 
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Coding;
-import org.hl7.fhir.r4.model.DateType;
-import org.hl7.fhir.r4.model.Extension;
-import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.MeasureReport;
-import org.hl7.fhir.r4.model.Meta;
-import org.hl7.fhir.r4.model.Period;
-import org.hl7.fhir.r4.model.Reference;
-import org.opencds.cqf.ruler.ra.RAConstants;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 
+import com.opencsv.CSVWriter;
 import com.opencsv.bean.CsvToBeanBuilder;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
+/**
+ * Converts a CSV of assisted coding gap rows into RA MeasureReports, one per
+ * period, model and patient.
+ * <p>
+ * By default the whole file is converted and returned as one transaction
+ * Bundle. With {@code stream=true} rows are read one at a time and the reports
+ * are returned as NDJSON transaction Bundles of at most
+ * {@code assisted.chunkSize} entries. Rows are grouped in memory only within a
+ * run of rows with the same key when the file is sorted ({@code sorted=true});
+ * otherwise they are first spilled to {@code assisted.spillBuckets} temporary
+ * files by key and each file is grouped on its own. A sorted file whose rows
+ * of a key are not consecutive is rejected with a 400.
+ * <p>
+ * With {@code commit=true} the reports are grouped the same way, but each chunk
+ * is written through the system DAO in its own transaction, in parallel on the
+ * RA executor, and a Parameters summary of the report and batch counts, failed
+ * batches and timings is returned instead of the reports. The servlet is not
+ * behind the FHIR servlet's authorization interceptors, so commit mode is
+ * refused with a 405 unless {@code hapi.fhir.ra.assisted.commitEnabled} is set.
+ * <p>
+ * Report ids are derived from the patient, model, version and period, so a file
+ * uploaded again updates the reports it created. In commit mode reports whose
+ * stored content hash matches are not written again.
+ */
 @SuppressWarnings({ "unchecked", "squid:S1989", "squid:S112", "rawtypes" })
-public class AssistedServlet extends HttpServlet {
+public class AssistedServlet extends HttpServlet implements DaoRegistryUser {
+	private static final Logger logger = LoggerFactory.getLogger(AssistedServlet.class);
+
+	private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+	private static final String[] HEADER = { "periodStart", "periodEnd", "modelId", "modelVersion", "patientId",
+			"ccCode", "suspectType", "evidenceStatus", "evidenceStatusDate", "hiearchicalStatus" };
+
+	@Autowired
+	private transient RAProperties raProperties;
+
+	@Autowired
+	private transient DaoRegistry daoRegistry;
+
+	@Autowired
+	@Qualifier(RAConfig.RA_EXECUTOR_SERVICE)
+	private transient ExecutorService executorService;
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		if (request.getContentType() == null || !request.getContentType().startsWith("text/csv")) {
@@ -41,21 +108,39 @@ public class AssistedServlet extends HttpServlet {
 			return;
 		}
 
+		boolean sorted = Boolean.parseBoolean(request.getParameter("sorted"));
+		if (Boolean.parseBoolean(request.getParameter("commit"))) {
+			if (!raProperties.getAssisted().isCommitEnabled()) {
+				response.setStatus(405);
+				response.getWriter().println(
+						"commit=true is not enabled on this server; set hapi.fhir.ra.assisted.commitEnabled.");
+				return;
+			}
+			doCommitPost(request, response, sorted);
+			return;
+		}
+		if (Boolean.parseBoolean(request.getParameter("stream"))) {
+			doStreamingPost(request, response, sorted);
+			return;
+		}
+
 		List<AssistedRowData> data = new CsvToBeanBuilder(request.getReader()).withType(AssistedRowData.class).build()
 				.parse();
-		Map<String, MeasureReport> mrMap = new HashMap<>();
+		AssistedReportMapper mapper = new AssistedReportMapper();
+		Map<AssistedReportMapper.Key, MeasureReport> mrMap = new HashMap<>();
 		for (AssistedRowData row : data) {
-			String hash = getHash(row);
-			if (mrMap.containsKey(hash)) {
-				addGroup(row, mrMap.get(hash));
+			MeasureReport report = mrMap.get(AssistedReportMapper.Key.of(row));
+			if (report == null) {
+				mrMap.put(AssistedReportMapper.Key.of(row), mapper.createMeasureReport(row));
 			} else {
-				mrMap.put(hash, createMeasureReport(row));
+				mapper.addGroup(row, report);
 			}
 		}
 
 		Bundle transaction = new Bundle();
 		transaction.setType(Bundle.BundleType.TRANSACTION);
-		for (Map.Entry<String, MeasureReport> entry : mrMap.entrySet()) {
+		for (Map.Entry<AssistedReportMapper.Key, MeasureReport> entry : mrMap.entrySet()) {
+			mapper.finish(entry.getValue());
 			transaction.addEntry().setResource(entry.getValue()).setRequest(new Bundle.BundleEntryRequestComponent()
 					.setMethod(Bundle.HTTPVerb.PUT).setUrl(entry.getValue().getIdElement().getValue()));
 		}
@@ -65,61 +150,359 @@ public class AssistedServlet extends HttpServlet {
 				.newJsonParser().setPrettyPrint(true).encodeResourceToString(transaction));
 	}
 
-	private String getHash(AssistedRowData data) {
-		return data.getPeriodStart() + data.getPeriodEnd() + data.getModelId() + data.getModelVersion()
-				+ data.getPatientId();
-	}
-
-	private MeasureReport createMeasureReport(AssistedRowData data) {
-		MeasureReport mr = new MeasureReport();
-		mr.setIdElement(new IdType("MeasureReport", "assisted-" + UUID.randomUUID()));
-		mr.setMeta(new Meta().addProfile(RAConstants.MEASURE_REPORT_PROFILE_URL));
-		mr.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
-		mr.setType(MeasureReport.MeasureReportType.INDIVIDUAL);
-		mr.setMeasure(data.getModelId());
-		mr.setSubject(new Reference(data.getPatientId().startsWith("Patient/")
-				? data.getPatientId()
-				: "Patient/" + data.getPatientId()));
-		mr.setDate(new Date());
-		SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
-		Date start;
-		Date end;
+	// The status and content type are only sent with the first buffer of
+	// Bundles, so a file that fails before then is answered with a 400 and an
+	// OperationOutcome. A later failure ends the NDJSON with an OperationOutcome
+	// line.
+	private void doStreamingPost(HttpServletRequest request, HttpServletResponse response, boolean sorted)
+			throws IOException {
+		IParser parser = FhirContext.forR4Cached().newJsonParser().setPrettyPrint(false);
+		response.setStatus(200);
+		response.setContentType(NDJSON_CONTENT_TYPE);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		PrintWriter writer = response.getWriter();
+
+		TransactionChunker chunker = new TransactionChunker(Math.max(1, raProperties.getAssisted().getChunkSize()),
+				transaction -> {
+					parser.encodeResourceToWriter(transaction, writer);
+					writer.write('\n');
+				});
+		try {
+			forEachReport(request, sorted, chunker::add);
+			chunker.flush();
+		} catch (RuntimeException e) {
+			logger.warn("Unable to convert the assisted CSV", e);
+			OperationOutcome outcome = new OperationOutcome();
+			outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+					.setCode(OperationOutcome.IssueType.INVALID)
+					.setDiagnostics(String.format("Unable to convert the assisted CSV: %s", e.getMessage()));
+			if (!response.isCommitted()) {
+				// nothing has been sent yet, so the failure gets its own status
+				response.resetBuffer();
+				response.setStatus(400);
+				response.setContentType("application/fhir+json");
+				parser.encodeResourceToWriter(outcome, writer);
+			} else {
+				// the Bundles already sent stand, and the last line reports the failure
+				parser.encodeResourceToWriter(outcome, writer);
+				writer.write('\n');
+			}
+		}
+		writer.flush();
+	}
+
+	// Each chunk is committed in its own transaction on the RA executor, with at
+	// most twice as many chunks in flight as there are worker threads. A failed
+	// chunk is rolled back on its own and reported in the summary.
+	private void doCommitPost(HttpServletRequest request, HttpServletResponse response, boolean sorted)
+			throws IOException {
+		long started = System.nanoTime();
+		CommitSummary summary = new CommitSummary();
+		int window = Math.max(1, raProperties.getParallelism().getThreads()) * 2;
+		Deque<Future<BatchResult>> futures = new ArrayDeque<>();
+		String invalid = null;
+		try {
+			TransactionChunker chunker = new TransactionChunker(
+					Math.max(1, raProperties.getAssisted().getChunkSize()), transaction -> {
+						if (futures.size() >= window) {
+							summary.add(getBatchResult(futures.removeFirst()));
+						}
+						int batch = summary.batches++;
+						futures.addLast(executorService.submit(() -> commit(batch, transaction)));
+					});
+			try {
+				forEachReport(request, sorted, chunker::add);
+				chunker.flush();
+			} catch (RuntimeException e) {
+				// the batches already submitted are still waited for, so the count of
+				// committed reports is known
+				logger.warn("Unable to convert the assisted CSV", e);
+				invalid = String.format("Unable to convert the assisted CSV: %s", e.getMessage());
+			}
+			while (!futures.isEmpty()) {
+				summary.add(getBatchResult(futures.removeFirst()));
+			}
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+
+		response.setContentType("application/fhir+json");
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		if (invalid != null) {
+			OperationOutcome outcome = new OperationOutcome();
+			outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+					.setCode(OperationOutcome.IssueType.INVALID)
+					.setDiagnostics(String.format("%s %d MeasureReports read before the error were committed.",
+							invalid, summary.committedReports));
+			response.setStatus(400);
+			response.getWriter().println(FhirContext.forR4Cached().newJsonParser().setPrettyPrint(true)
+					.encodeResourceToString(outcome));
+			return;
+		}
+		response.setStatus(200);
+		response.getWriter().println(FhirContext.forR4Cached().newJsonParser().setPrettyPrint(true)
+				.encodeResourceToString(summary.toParameters(
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started))));
+	}
+
+	private BatchResult commit(int batch, Bundle transaction) {
+		long started = System.nanoTime();
+		int unchanged = 0;
+		String error = null;
+		try {
+			unchanged = removeUnchanged(transaction);
+			if (transaction.hasEntry()) {
+				daoRegistry.getSystemDao().transaction(new SystemRequestDetails(), transaction);
+			}
+		} catch (Exception e) {
+			logger.warn("Unable to commit assisted batch {}", batch, e);
+			error = e.getMessage();
+		}
+		return new BatchResult(batch, transaction.getEntry().size(), unchanged,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), error);
+	}
+
+	// Reports stored with the same content hash are left as they are, so
+	// uploading a file again only writes the reports that changed
+	private int removeUnchanged(Bundle transaction) {
+		List<String> ids = new ArrayList<>();
+		transaction.getEntry().forEach(entry -> ids.add(entry.getResource().getIdPart()));
+		Map<String, String> storedHashes = new HashMap<>();
+		for (MeasureReport stored : search(MeasureReport.class, Searches.byIds(ids), new SystemRequestDetails())
+				.getAllResourcesTyped()) {
+			storedHashes.put(stored.getIdElement().getIdPart(), AssistedReportMapper.getContentHash(stored));
+		}
+		int before = transaction.getEntry().size();
+		transaction.getEntry().removeIf(entry -> {
+			String hash = storedHashes.get(entry.getResource().getIdPart());
+			return hash != null && hash.equals(AssistedReportMapper.getContentHash((MeasureReport) entry.getResource()));
+		});
+		return before - transaction.getEntry().size();
+	}
+
+	private BatchResult getBatchResult(Future<BatchResult> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while committing assisted MeasureReports", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Unable to commit assisted MeasureReports", e.getCause());
+		}
+	}
+
+	private void forEachReport(HttpServletRequest request, boolean sorted, Consumer<MeasureReport> consumer)
+			throws IOException {
+		AssistedReportMapper mapper = new AssistedReportMapper();
+		Consumer<MeasureReport> finished = report -> consumer.accept(mapper.finish(report));
+		if (sorted) {
+			groupConsecutive(rows(request.getReader()), mapper, finished);
+		} else {
+			groupBySpilling(rows(request.getReader()), mapper, finished);
+		}
+	}
+
+	private Iterator<AssistedRowData> rows(Reader reader) {
+		return new CsvToBeanBuilder<AssistedRowData>(reader).withType(AssistedRowData.class).build().iterator();
+	}
+
+	// Rows with the same key are expected next to each other, so only the
+	// report being built and the keys already seen are held in memory. A key
+	// that comes back after another one would produce a second report with the
+	// same id, so the file is rejected.
+	private void groupConsecutive(Iterator<AssistedRowData> rows, AssistedReportMapper mapper,
+			Consumer<MeasureReport> consumer) {
+		Set<AssistedReportMapper.Key> seen = new HashSet<>();
+		AssistedReportMapper.Key currentKey = null;
+		MeasureReport current = null;
+		while (rows.hasNext()) {
+			AssistedRowData row = rows.next();
+			AssistedReportMapper.Key key = AssistedReportMapper.Key.of(row);
+			if (current != null && key.equals(currentKey)) {
+				mapper.addGroup(row, current);
+				continue;
+			}
+			if (!seen.add(key)) {
+				throw new InvalidRequestException(String.format(
+						"The rows of %s for %s %s from %s to %s are not consecutive. Upload the file without sorted=true.",
+						key.getPatientId(), key.getModelId(), key.getModelVersion(), key.getPeriodStart(),
+						key.getPeriodEnd()));
+			}
+			if (current != null) {
+				consumer.accept(current);
+			}
+			currentKey = key;
+			current = mapper.createMeasureReport(row);
+		}
+		if (current != null) {
+			consumer.accept(current);
+		}
+	}
+
+	// Every row of a key lands in the same bucket file, so each bucket can be
+	// grouped on its own and only one bucket is held in memory at a time
+	private void groupBySpilling(Iterator<AssistedRowData> rows, AssistedReportMapper mapper,
+			Consumer<MeasureReport> consumer) throws IOException {
+		int bucketCount = Math.max(1, raProperties.getAssisted().getSpillBuckets());
+		Path directory = Files.createTempDirectory("ra-assisted-");
 		try {
-			start = formatter.parse(data.getPeriodStart());
-			end = formatter.parse(data.getPeriodEnd());
-		} catch (ParseException e) {
-			throw new RuntimeException(e);
+			CSVWriter[] buckets = new CSVWriter[bucketCount];
+			try {
+				while (rows.hasNext()) {
+					AssistedRowData row = rows.next();
+					int bucket = Math.floorMod(AssistedReportMapper.Key.of(row).hashCode(), bucketCount);
+					if (buckets[bucket] == null) {
+						buckets[bucket] = new CSVWriter(Files.newBufferedWriter(
+								directory.resolve(bucket + ".csv"), StandardCharsets.UTF_8));
+						buckets[bucket].writeNext(HEADER);
+					}
+					buckets[bucket].writeNext(toFields(row));
+				}
+			} finally {
+				for (CSVWriter bucket : buckets) {
+					if (bucket != null) {
+						bucket.close();
+					}
+				}
+			}
+
+			for (int bucket = 0; bucket < bucketCount; bucket++) {
+				Path file = directory.resolve(bucket + ".csv");
+				if (!Files.exists(file)) {
+					continue;
+				}
+				Map<AssistedReportMapper.Key, MeasureReport> reports = new LinkedHashMap<>();
+				try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+					Iterator<AssistedRowData> bucketRows = rows(reader);
+					while (bucketRows.hasNext()) {
+						AssistedRowData row = bucketRows.next();
+						AssistedReportMapper.Key key = AssistedReportMapper.Key.of(row);
+						MeasureReport report = reports.get(key);
+						if (report == null) {
+							reports.put(key, mapper.createMeasureReport(row));
+						} else {
+							mapper.addGroup(row, report);
+						}
+					}
+				}
+				reports.values().forEach(consumer);
+				Files.delete(file);
+			}
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	private String[] toFields(AssistedRowData row) {
+		return new String[] { row.getPeriodStart(), row.getPeriodEnd(), row.getModelId(), row.getModelVersion(),
+				row.getPatientId(), row.getCcCode(), row.getSuspectType(), row.getEvidenceStatus(),
+				row.getEvidenceStatusDate(), row.getHiearchicalStatus() };
+	}
+
+	private void deleteDirectory(Path directory) {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			logger.warn("Unable to delete {}", directory, e);
 		}
-		mr.setPeriod(new Period().setStart(start).setEnd(end));
-		addGroup(data, mr);
-		return mr;
 	}
 
-	private void addGroup(AssistedRowData data, MeasureReport mr) {
-		MeasureReport.MeasureReportGroupComponent group = new MeasureReport.MeasureReportGroupComponent();
-		group.setId("group-" + data.getCcCode());
-		group.setCode(new CodeableConcept(new Coding().setCode(data.getCcCode())
-				.setSystem(RAConstants.HCC_CODESYSTEM_URL).setVersion(data.getModelVersion())));
-		if (data.getSuspectType() != null && !data.getSuspectType().isBlank()) {
-			group.addExtension(createCodeableConceptExtension(RAConstants.SUSPECT_TYPE_URL,
-				RAConstants.SUSPECT_TYPE_SYSTEM, data.getSuspectType()));
+	private static class TransactionChunker {
+		private final int chunkSize;
+		private final ChunkConsumer consumer;
+		private Bundle transaction;
+
+		TransactionChunker(int chunkSize, ChunkConsumer consumer) {
+			this.chunkSize = chunkSize;
+			this.consumer = consumer;
 		}
-		if (data.getEvidenceStatus() != null && !data.getEvidenceStatus().isBlank()) {
-			group.addExtension(createCodeableConceptExtension(RAConstants.EVIDENCE_STATUS_URL,
-				RAConstants.EVIDENCE_STATUS_SYSTEM, data.getEvidenceStatus()));
+
+		void add(MeasureReport report) {
+			if (transaction == null) {
+				transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+			}
+			transaction.addEntry().setResource(report).setRequest(new Bundle.BundleEntryRequestComponent()
+					.setMethod(Bundle.HTTPVerb.PUT).setUrl(report.getIdElement().getValue()));
+			if (transaction.getEntry().size() >= chunkSize) {
+				flush();
+			}
 		}
-		if (data.getEvidenceStatusDate() != null && !data.getEvidenceStatusDate().isBlank()) {
-			group.addExtension(new Extension().setUrl(RAConstants.EVIDENCE_STATUS_DATE_URL)
-					.setValue(new DateType(data.getEvidenceStatusDate())));
+
+		void flush() {
+			if (transaction == null) {
+				return;
+			}
+			try {
+				consumer.accept(transaction);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			transaction = null;
 		}
-		if (data.getHiearchicalStatus() != null && !data.getHiearchicalStatus().isBlank()) {
-			group.addExtension(createCodeableConceptExtension(RAConstants.HIERARCHICAL_STATUS_URL,
-				RAConstants.HIERARCHICAL_STATUS_SYSTEM, data.getHiearchicalStatus()));
+	}
+
+	@FunctionalInterface
+	private interface ChunkConsumer {
+		void accept(Bundle transaction) throws IOException;
+	}
+
+	private static class BatchResult {
+		private final int batch;
+		private final int reports;
+		private final int unchanged;
+		private final long millis;
+		private final String error;
+
+		BatchResult(int batch, int reports, int unchanged, long millis, String error) {
+			this.batch = batch;
+			this.reports = reports;
+			this.unchanged = unchanged;
+			this.millis = millis;
+			this.error = error;
 		}
-		mr.addGroup(group);
 	}
 
-	private Extension createCodeableConceptExtension(String url, String system, String code) {
-		return new Extension().setUrl(url).setValue(new CodeableConcept(new Coding().setCode(code).setSystem(system)));
+	private static class CommitSummary {
+		private int batches;
+		private int committedReports;
+		private int failedReports;
+		private int unchangedReports;
+		private long commitMillis;
+		private long slowestBatchMillis;
+		private final List<BatchResult> failures = new ArrayList<>();
+
+		void add(BatchResult result) {
+			commitMillis += result.millis;
+			slowestBatchMillis = Math.max(slowestBatchMillis, result.millis);
+			unchangedReports += result.unchanged;
+			if (result.error == null) {
+				committedReports += result.reports;
+			} else {
+				failedReports += result.reports;
+				failures.add(result);
+			}
+		}
+
+		Parameters toParameters(long elapsedMillis) {
+			Parameters parameters = new Parameters();
+			parameters.addParameter("reports", committedReports + failedReports + unchangedReports);
+			parameters.addParameter("committed", committedReports);
+			parameters.addParameter("unchanged", unchangedReports);
+			parameters.addParameter("failed", failedReports);
+			parameters.addParameter("batches", batches);
+			parameters.addParameter("failedBatches", failures.size());
+			parameters.addParameter("elapsedMillis", Math.toIntExact(elapsedMillis));
+			parameters.addParameter("commitMillis", Math.toIntExact(commitMillis));
+			parameters.addParameter("slowestBatchMillis", Math.toIntExact(slowestBatchMillis));
+			for (BatchResult failure : failures) {
+				OperationOutcome outcome = new OperationOutcome();
+				outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+						.setCode(OperationOutcome.IssueType.EXCEPTION)
+						.setDiagnostics(String.format("Batch %d of %d MeasureReports was not committed: %s",
+								failure.batch, failure.reports, failure.error));
+				parameters.addParameter().setName("failure").setResource(outcome);
+			}
+			return parameters;
+		}
 	}
 }
@@ -0,0 +1,71 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+/**
+ * The identity and partition of the caller of an RA operation, taken on the
+ * request thread so the work can be done on other threads on the caller's
+ * behalf. RequestDetails is not thread-safe and a servlet request may be
+ * recycled once it is answered, so each unit of work gets its own
+ * SystemRequestDetails from {@link #newRequestDetails()}, carrying the caller's
+ * tenant, server base, headers, user data and read partition.
+ */
+public class CallerRequestDetails {
+	private final String tenantId;
+	private final String fhirServerBase;
+	private final Map<String, List<String>> headers;
+	private final Map<Object, Object> userData;
+	private final RequestPartitionId requestPartitionId;
+
+	private CallerRequestDetails(RequestDetails caller, RequestPartitionId requestPartitionId) {
+		this.tenantId = caller.getTenantId();
+		this.fhirServerBase = caller.getFhirServerBase();
+		this.headers = caller.getHeaders() == null ? Map.of() : new HashMap<>(caller.getHeaders());
+		this.userData = new HashMap<>(caller.getUserData());
+		this.requestPartitionId = requestPartitionId;
+	}
+
+	/**
+	 * Takes the identity of the caller and resolves its read partition. Must be
+	 * called on the request thread.
+	 *
+	 * @param caller                 the request details of the caller
+	 * @param requestPartitionHelper resolves the caller's partition, or null when
+	 *                               the server has none
+	 * @return the caller request details
+	 */
+	public static CallerRequestDetails of(RequestDetails caller, IRequestPartitionHelperSvc requestPartitionHelper) {
+		RequestPartitionId requestPartitionId = null;
+		if (caller instanceof SystemRequestDetails) {
+			requestPartitionId = ((SystemRequestDetails) caller).getRequestPartitionId();
+		}
+		if (requestPartitionId == null && requestPartitionHelper != null) {
+			requestPartitionId = requestPartitionHelper.determineGenericPartitionForRequest(caller);
+		}
+		return new CallerRequestDetails(caller, requestPartitionId);
+	}
+
+	public String getFhirServerBase() {
+		return fhirServerBase;
+	}
+
+	/**
+	 * @return new request details on the caller's behalf, for one thread
+	 */
+	public SystemRequestDetails newRequestDetails() {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setTenantId(tenantId);
+		requestDetails.setFhirServerBase(fhirServerBase);
+		requestDetails.setRequestPartitionId(requestPartitionId);
+		headers.forEach((name, values) -> values.forEach(value -> requestDetails.addHeader(name, value)));
+		requestDetails.getUserData().putAll(userData);
+		return requestDetails;
+	}
+}
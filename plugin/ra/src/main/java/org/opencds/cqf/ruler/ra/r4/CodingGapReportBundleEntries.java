@@ -0,0 +1,84 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The entries of a coding gap report Bundle, read in one pass over the Bundle.
+ * The RA operations look up the Composition, the MeasureReport, the
+ * DetectedIssues and the Composition author of each Bundle, so the Bundle is
+ * indexed once and shared by those lookups rather than walked for each.
+ */
+public class CodingGapReportBundleEntries {
+	private final Bundle bundle;
+	private final Map<String, Resource> byReference = new HashMap<>();
+	private final List<DetectedIssue> issues = new ArrayList<>();
+	private Composition composition;
+	private MeasureReport report;
+
+	public CodingGapReportBundleEntries(Bundle bundle) {
+		this.bundle = bundle;
+		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+			Resource resource = entry.getResource();
+			if (resource == null)
+				continue;
+			if (resource instanceof Composition && composition == null) {
+				composition = (Composition) resource;
+			} else if (resource instanceof MeasureReport && report == null) {
+				report = (MeasureReport) resource;
+			} else if (resource instanceof DetectedIssue) {
+				issues.add((DetectedIssue) resource);
+			}
+			// where entries share a key, the first one is kept
+			if (entry.hasFullUrl())
+				byReference.putIfAbsent(entry.getFullUrl(), resource);
+			if (resource.hasIdElement() && resource.getIdElement().hasIdPart()) {
+				byReference.putIfAbsent(resource.fhirType() + "/" + resource.getIdElement().getIdPart(), resource);
+				byReference.putIfAbsent(resource.getIdElement().getIdPart(), resource);
+			}
+		}
+	}
+
+	public Bundle getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * @return the first Composition of the Bundle, or null
+	 */
+	public Composition getComposition() {
+		return composition;
+	}
+
+	/**
+	 * @return the first MeasureReport of the Bundle, or null
+	 */
+	public MeasureReport getReport() {
+		return report;
+	}
+
+	/**
+	 * @return a new list of the DetectedIssues of the Bundle, in entry order
+	 */
+	public List<DetectedIssue> getIssues() {
+		return new ArrayList<>(issues);
+	}
+
+	/**
+	 * Returns the entry resources by fullUrl, by simple id and by id part.
+	 *
+	 * @return the entry resources by reference
+	 */
+	public Map<String, Resource> getByReference() {
+		return Collections.unmodifiableMap(byReference);
+	}
+}
@@ -0,0 +1,154 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.jobs.reindex.ReindexAppCtx;
+import ca.uhn.fhir.batch2.jobs.reindex.ReindexJobParameters;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Tells the RA operations when coding gap report Bundles can be looked up
+ * through the ra-subject and ra-report-date search parameters. Bundles stored
+ * before those search parameters were active are not indexed by them, so an
+ * indexed search would silently miss them. Until every coding gap report Bundle
+ * is indexed, callers scan the Bundles instead, and a reindex of the coding gap
+ * report Bundles is submitted once the search parameters are active.
+ * <p>
+ * Completion is judged from the data rather than from the job, by comparing
+ * the number of coding gap report Bundles with the number indexed by
+ * ra-subject, so it also holds for reindexes run by another server or before a
+ * restart. Once they match, new Bundles are indexed as they are written, and
+ * the answer is kept.
+ * <p>
+ * A reindex that ends with Bundles still not indexed, such as a Bundle the
+ * search parameters cannot index, is logged as a warning and submitted again
+ * after a delay that doubles with each job, up to an hour. Callers keep
+ * scanning in the meantime.
+ */
+public class CodingGapReportBundleReindexer implements DaoRegistryUser {
+	private static final Logger logger = LoggerFactory.getLogger(CodingGapReportBundleReindexer.class);
+
+	private static final long CHECK_INTERVAL_MILLIS = 10000;
+	private static final long MAX_REINDEX_DELAY_MILLIS = 3600000;
+
+	private final DaoRegistry daoRegistry;
+	private final ISearchParamRegistry searchParamRegistry;
+	private final IJobCoordinator jobCoordinator;
+
+	private volatile boolean indexed;
+	private long nextCheckMillis;
+	private String reindexJobId;
+	private int reindexJobs;
+	private long nextReindexMillis;
+
+	public CodingGapReportBundleReindexer(DaoRegistry daoRegistry, ISearchParamRegistry searchParamRegistry,
+			IJobCoordinator jobCoordinator) {
+		this.daoRegistry = daoRegistry;
+		this.searchParamRegistry = searchParamRegistry;
+		this.jobCoordinator = jobCoordinator;
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	/**
+	 * Returns whether every coding gap report Bundle is indexed by the ra-subject
+	 * and ra-report-date search parameters, and submits a reindex of the Bundles
+	 * if the search parameters are active but some Bundles are not indexed yet.
+	 * The Bundles are counted at most once every {@value #CHECK_INTERVAL_MILLIS}
+	 * ms until they are all indexed.
+	 *
+	 * @return true if the Bundles can be searched through the search parameters
+	 */
+	public boolean isIndexed() {
+		if (indexed)
+			return true;
+		synchronized (this) {
+			if (indexed || System.currentTimeMillis() < nextCheckMillis)
+				return indexed;
+			nextCheckMillis = System.currentTimeMillis() + CHECK_INTERVAL_MILLIS;
+			if (!isActive(RAConstants.CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_CODE)
+					|| !isActive(RAConstants.CODING_GAP_BUNDLE_REPORT_DATE_SEARCHPARAMETER_CODE))
+				return false;
+
+			ReferenceParam hasSubject = new ReferenceParam();
+			hasSubject.setMissing(false);
+			Integer bundles = count(getCodingGapReportBundles());
+			Integer indexedBundles = count(getCodingGapReportBundles()
+					.add(RAConstants.CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_CODE, hasSubject));
+			if (bundles != null && bundles.equals(indexedBundles)) {
+				indexed = true;
+			} else {
+				requestReindex(bundles, indexedBundles);
+			}
+			return indexed;
+		}
+	}
+
+	private void requestReindex(Integer bundles, Integer indexedBundles) {
+		if (jobCoordinator == null || isReindexRunning())
+			return;
+		long now = System.currentTimeMillis();
+		if (reindexJobs > 0 && nextReindexMillis == 0) {
+			// the last job ended without indexing every Bundle
+			long delay = Math.min(MAX_REINDEX_DELAY_MILLIS, CHECK_INTERVAL_MILLIS << Math.min(reindexJobs, 20));
+			nextReindexMillis = now + delay;
+			logger.warn("Coding gap report Bundles are still not all indexed after {} reindex jobs ({} of {}), "
+					+ "so they are scanned and reindexed again in {} s", reindexJobs, indexedBundles, bundles,
+					delay / 1000);
+		}
+		if (now < nextReindexMillis)
+			return;
+		nextReindexMillis = 0;
+		ReindexJobParameters parameters = new ReindexJobParameters();
+		parameters.addUrl("Bundle?_profile=" + UrlUtil.escapeUrlParam(RAConstants.CODING_GAP_BUNDLE_URL));
+		JobInstanceStartRequest request = new JobInstanceStartRequest();
+		request.setJobDefinitionId(ReindexAppCtx.JOB_REINDEX);
+		request.setParameters(parameters);
+		reindexJobId = jobCoordinator.startInstance(new SystemRequestDetails(), request).getInstanceId();
+		reindexJobs++;
+		logger.info("Submitted reindex job {} for the coding gap report Bundles ({} of {} indexed)", reindexJobId,
+				indexedBundles, bundles);
+	}
+
+	private boolean isReindexRunning() {
+		if (reindexJobId == null)
+			return false;
+		try {
+			return !jobCoordinator.getInstance(reindexJobId).getStatus().isEnded();
+		} catch (Exception e) {
+			// the instance was purged, so it has ended
+			return false;
+		}
+	}
+
+	private boolean isActive(String code) {
+		return searchParamRegistry.getActiveSearchParam("Bundle", code) != null;
+	}
+
+	private SearchParameterMap getCodingGapReportBundles() {
+		SearchParameterMap searchParameterMap = SearchParameterMap.newSynchronous()
+				.add("_profile", new UriParam(RAConstants.CODING_GAP_BUNDLE_URL));
+		searchParameterMap.setSummaryMode(SummaryEnum.COUNT);
+		return searchParameterMap;
+	}
+
+	private Integer count(SearchParameterMap searchParameterMap) {
+		return search(Bundle.class, searchParameterMap, new SystemRequestDetails()).size();
+	}
+}
@@ -0,0 +1,358 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+
+/**
+ * Computes the changes between two versions of a coding gap report Bundle as a
+ * Parameters, and applies them to rebuild the later version. The workflow
+ * steps change DetectedIssue statuses, MeasureReport groups and the status and
+ * sections of the Composition, so those changes are kept as the changed
+ * elements only. Any other changed entry is kept whole, and entries that did
+ * not change are not kept at all. Every diff is checked by applying it, and a
+ * Bundle that the compact form cannot rebuild is kept whole instead.
+ */
+class CodingGapReportDiff {
+	static final String BUNDLE = "bundle";
+	static final String ID = "id";
+	static final String TIMESTAMP = "timestamp";
+	static final String IDENTIFIER = "identifier";
+	static final String META = "meta";
+	static final String ENTRY = "entry";
+	static final String REMOVED = "removed";
+	static final String ISSUE = "issue";
+	static final String REPORT = "report";
+	static final String COMPOSITION = "composition";
+	static final String ORDER = "order";
+
+	private static final String KEY = "key";
+	private static final String FULL_URL = "fullUrl";
+	private static final String STATUS = "status";
+	private static final String RESOURCE = "resource";
+	private static final String REMOVED_GROUP = "removedGroup";
+
+	private CodingGapReportDiff() {
+	}
+
+	/**
+	 * Returns the changes that turn one version of a coding gap report Bundle into
+	 * the next.
+	 *
+	 * @param from the earlier version
+	 * @param to   the later version
+	 * @return the changes
+	 */
+	static Parameters diff(Bundle from, Bundle to) {
+		Parameters diff = new Parameters();
+		if (!Objects.equals(from.getIdElement().getIdPart(), to.getIdElement().getIdPart()))
+			diff.addParameter().setName(ID).setValue(new StringType(to.getIdElement().getIdPart()));
+		if (!Objects.equals(from.getTimestampElement().getValueAsString(), to.getTimestampElement().getValueAsString()))
+			diff.addParameter().setName(TIMESTAMP).setValue(to.getTimestampElement().copy());
+		if (!from.getIdentifier().equalsDeep(to.getIdentifier()))
+			diff.addParameter().setName(IDENTIFIER).setValue(to.getIdentifier().copy());
+		if (!from.getMeta().equalsDeep(to.getMeta()))
+			diff.addParameter().setName(META).setValue(to.getMeta().copy());
+
+		Map<String, Bundle.BundleEntryComponent> previous = byKey(from);
+		List<String> order = new ArrayList<>();
+		for (Bundle.BundleEntryComponent entry : to.getEntry()) {
+			String key = getKey(entry);
+			order.add(key);
+			Bundle.BundleEntryComponent old = previous.remove(key);
+			if (old == null || !old.getFullUrlElement().equalsDeep(entry.getFullUrlElement())) {
+				addEntry(diff, key, entry);
+			} else if (!old.equalsDeep(entry)) {
+				addChange(diff, key, old, entry);
+			}
+		}
+		previous.keySet().forEach(key -> diff.addParameter().setName(REMOVED).setValue(new StringType(key)));
+
+		// the order is only kept when applying the changes would not restore it
+		if (!order.equals(applyOrder(keys(from), diff))) {
+			Parameters.ParametersParameterComponent orderParameter = diff.addParameter().setName(ORDER);
+			order.forEach(key -> orderParameter.addPart().setName(KEY).setValue(new StringType(key)));
+		}
+
+		if (!apply(from, diff).equalsDeep(to)) {
+			diff = new Parameters();
+			diff.addParameter().setName(BUNDLE).setResource(to);
+		}
+		return diff;
+	}
+
+	/**
+	 * Applies changes returned by {@link #diff(Bundle, Bundle)} to a copy of the
+	 * earlier version.
+	 *
+	 * @param from the earlier version
+	 * @param diff the changes
+	 * @return the later version
+	 */
+	static Bundle apply(Bundle from, Parameters diff) {
+		if (diff.hasParameter(BUNDLE))
+			return ((Bundle) diff.getParameter(BUNDLE).getResource()).copy();
+		Bundle to = from.copy();
+		Map<String, Bundle.BundleEntryComponent> entries = byKey(to);
+		for (Parameters.ParametersParameterComponent parameter : diff.getParameter()) {
+			switch (parameter.getName()) {
+				case ID:
+					to.setId(parameter.getValue().primitiveValue());
+					break;
+				case TIMESTAMP:
+					to.setTimestampElement(((InstantType) parameter.getValue()).copy());
+					break;
+				case IDENTIFIER:
+					to.setIdentifier(((Identifier) parameter.getValue()).copy());
+					break;
+				case META:
+					to.setMeta(((Meta) parameter.getValue()).copy());
+					break;
+				case ENTRY:
+					Resource resource = getResource(parameter);
+					entries.put(getString(parameter, KEY), new Bundle.BundleEntryComponent()
+							.setFullUrlElement(getFullUrl(parameter))
+							.setResource(resource == null ? null : resource.copy()));
+					break;
+				case REMOVED:
+					entries.remove(parameter.getValue().primitiveValue());
+					break;
+				case ISSUE:
+					DetectedIssue issue = (DetectedIssue) entries.get(getString(parameter, KEY)).getResource();
+					applyIssue(issue, parameter);
+					break;
+				case REPORT:
+					MeasureReport report = (MeasureReport) entries.get(getString(parameter, KEY)).getResource();
+					applyReport(report, (MeasureReport) getResource(parameter), getStrings(parameter, REMOVED_GROUP));
+					break;
+				case COMPOSITION:
+					Composition composition = (Composition) entries.get(getString(parameter, KEY)).getResource();
+					applyComposition(composition, (Composition) getResource(parameter));
+					break;
+				default:
+					break;
+			}
+		}
+
+		List<Bundle.BundleEntryComponent> ordered = new ArrayList<>(entries.size());
+		for (String key : applyOrder(keys(from), diff)) {
+			ordered.add(entries.get(key));
+		}
+		to.setEntry(ordered);
+		return to;
+	}
+
+	private static void addEntry(Parameters diff, String key, Bundle.BundleEntryComponent entry) {
+		Parameters.ParametersParameterComponent parameter = diff.addParameter().setName(ENTRY);
+		parameter.addPart().setName(KEY).setValue(new StringType(key));
+		if (entry.hasFullUrl())
+			parameter.addPart().setName(FULL_URL).setValue(entry.getFullUrlElement().copy());
+		parameter.addPart().setName(RESOURCE).setResource(entry.getResource());
+	}
+
+	// Each change is checked by applying it to a copy of the earlier resource, so
+	// a change that the compact form does not cover falls back to the whole entry
+	private static void addChange(Parameters diff, String key, Bundle.BundleEntryComponent old,
+			Bundle.BundleEntryComponent entry) {
+		Parameters.ParametersParameterComponent change = null;
+		Resource resource = old.getResource();
+		boolean resourceOnly = !old.hasSearch() && !old.hasRequest() && !old.hasResponse() && !entry.hasSearch()
+				&& !entry.hasRequest() && !entry.hasResponse();
+		if (resourceOnly && resource instanceof DetectedIssue) {
+			change = issueChange((DetectedIssue) resource, (DetectedIssue) entry.getResource());
+		} else if (resourceOnly && resource instanceof MeasureReport) {
+			change = reportChange((MeasureReport) resource, (MeasureReport) entry.getResource());
+		} else if (resourceOnly && resource instanceof Composition) {
+			change = compositionChange((Composition) resource, (Composition) entry.getResource());
+		}
+		if (change == null) {
+			addEntry(diff, key, entry);
+		} else {
+			change.getPart().add(0, new Parameters.ParametersParameterComponent().setName(KEY)
+					.setValue(new StringType(key)));
+			diff.addParameter(change);
+		}
+	}
+
+	private static Parameters.ParametersParameterComponent issueChange(DetectedIssue old, DetectedIssue issue) {
+		Parameters.ParametersParameterComponent change = new Parameters.ParametersParameterComponent()
+				.setName(ISSUE);
+		if (issue.hasStatus())
+			change.addPart().setName(STATUS).setValue(new CodeType(issue.getStatus().toCode()));
+		if (!old.getMeta().equalsDeep(issue.getMeta()))
+			change.addPart().setName(META).setValue(issue.getMeta().copy());
+		DetectedIssue candidate = old.copy();
+		applyIssue(candidate, change);
+		return candidate.equalsDeep(issue) ? change : null;
+	}
+
+	private static Parameters.ParametersParameterComponent reportChange(MeasureReport old, MeasureReport report) {
+		Map<String, MeasureReport.MeasureReportGroupComponent> previous = new HashMap<>();
+		for (MeasureReport.MeasureReportGroupComponent group : old.getGroup()) {
+			if (!group.hasId() || previous.put(group.getId(), group) != null)
+				return null;
+		}
+		MeasureReport partial = new MeasureReport();
+		if (!old.getMeta().equalsDeep(report.getMeta()))
+			partial.setMeta(report.getMeta().copy());
+		for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+			if (!group.hasId())
+				return null;
+			MeasureReport.MeasureReportGroupComponent oldGroup = previous.remove(group.getId());
+			if (oldGroup == null || !oldGroup.equalsDeep(group))
+				partial.addGroup(group.copy());
+		}
+		List<String> removedGroups = new ArrayList<>(previous.keySet());
+
+		Parameters.ParametersParameterComponent change = new Parameters.ParametersParameterComponent()
+				.setName(REPORT);
+		change.addPart().setName(RESOURCE).setResource(partial);
+		removedGroups.forEach(id -> change.addPart().setName(REMOVED_GROUP).setValue(new StringType(id)));
+		MeasureReport candidate = old.copy();
+		applyReport(candidate, partial, removedGroups);
+		return candidate.equalsDeep(report) ? change : null;
+	}
+
+	private static Parameters.ParametersParameterComponent compositionChange(Composition old,
+			Composition composition) {
+		Composition partial = new Composition();
+		partial.setStatusElement(composition.getStatusElement().copy());
+		if (!old.getMeta().equalsDeep(composition.getMeta()))
+			partial.setMeta(composition.getMeta().copy());
+		composition.getSection().forEach(section -> partial.addSection(section.copy()));
+
+		Parameters.ParametersParameterComponent change = new Parameters.ParametersParameterComponent()
+				.setName(COMPOSITION);
+		change.addPart().setName(RESOURCE).setResource(partial);
+		Composition candidate = old.copy();
+		applyComposition(candidate, partial);
+		return candidate.equalsDeep(composition) ? change : null;
+	}
+
+	private static void applyIssue(DetectedIssue issue, Parameters.ParametersParameterComponent change) {
+		for (Parameters.ParametersParameterComponent part : change.getPart()) {
+			if (STATUS.equals(part.getName())) {
+				issue.setStatus(DetectedIssue.DetectedIssueStatus.fromCode(part.getValue().primitiveValue()));
+			} else if (META.equals(part.getName())) {
+				issue.setMeta(((Meta) part.getValue()).copy());
+			}
+		}
+	}
+
+	// Changed groups replace the group with the same id in place and new groups
+	// are added at the end, as the workflow steps do
+	private static void applyReport(MeasureReport report, MeasureReport partial, List<String> removedGroups) {
+		if (partial.hasMeta())
+			report.setMeta(partial.getMeta().copy());
+		report.getGroup().removeIf(group -> removedGroups.contains(group.getId()));
+		for (MeasureReport.MeasureReportGroupComponent group : partial.getGroup()) {
+			int index = indexOfGroup(report, group.getId());
+			if (index < 0) {
+				report.addGroup(group.copy());
+			} else {
+				report.getGroup().set(index, group.copy());
+			}
+		}
+	}
+
+	private static void applyComposition(Composition composition, Composition partial) {
+		composition.setStatusElement(partial.getStatusElement().copy());
+		if (partial.hasMeta())
+			composition.setMeta(partial.getMeta().copy());
+		List<Composition.SectionComponent> sections = new ArrayList<>();
+		partial.getSection().forEach(section -> sections.add(section.copy()));
+		composition.setSection(sections);
+	}
+
+	private static int indexOfGroup(MeasureReport report, String id) {
+		for (int i = 0; i < report.getGroup().size(); i++) {
+			if (id.equals(report.getGroup().get(i).getId()))
+				return i;
+		}
+		return -1;
+	}
+
+	// Removed entries are dropped and new entries are added at the end, unless the
+	// changes carry the order
+	private static List<String> applyOrder(List<String> keys, Parameters diff) {
+		List<String> order = new ArrayList<>(keys);
+		for (Parameters.ParametersParameterComponent parameter : diff.getParameter()) {
+			if (ORDER.equals(parameter.getName())) {
+				return getStrings(parameter, KEY);
+			} else if (REMOVED.equals(parameter.getName())) {
+				order.remove(parameter.getValue().primitiveValue());
+			} else if (ENTRY.equals(parameter.getName())) {
+				String key = getString(parameter, KEY);
+				if (!order.contains(key))
+					order.add(key);
+			}
+		}
+		return order;
+	}
+
+	private static Map<String, Bundle.BundleEntryComponent> byKey(Bundle bundle) {
+		Map<String, Bundle.BundleEntryComponent> entries = new LinkedHashMap<>();
+		bundle.getEntry().forEach(entry -> entries.put(getKey(entry), entry));
+		return entries;
+	}
+
+	private static List<String> keys(Bundle bundle) {
+		return new ArrayList<>(byKey(bundle).keySet());
+	}
+
+	private static String getKey(Bundle.BundleEntryComponent entry) {
+		Resource resource = entry.getResource();
+		return resource != null && resource.getIdElement().hasIdPart()
+				? resource.fhirType() + "/" + resource.getIdElement().getIdPart()
+				: entry.getFullUrl();
+	}
+
+	private static String getString(Parameters.ParametersParameterComponent parameter, String name) {
+		for (Parameters.ParametersParameterComponent part : parameter.getPart()) {
+			if (name.equals(part.getName()))
+				return part.getValue().primitiveValue();
+		}
+		return null;
+	}
+
+	private static List<String> getStrings(Parameters.ParametersParameterComponent parameter, String name) {
+		List<String> values = new ArrayList<>();
+		for (Parameters.ParametersParameterComponent part : parameter.getPart()) {
+			if (name.equals(part.getName()))
+				values.add(part.getValue().primitiveValue());
+		}
+		return values;
+	}
+
+	private static UriType getFullUrl(Parameters.ParametersParameterComponent parameter) {
+		for (Parameters.ParametersParameterComponent part : parameter.getPart()) {
+			if (FULL_URL.equals(part.getName()))
+				return (UriType) part.getValue().copy();
+		}
+		return null;
+	}
+
+	private static Resource getResource(Parameters.ParametersParameterComponent parameter) {
+		for (Parameters.ParametersParameterComponent part : parameter.getPart()) {
+			if (RESOURCE.equals(part.getName()))
+				return part.getResource();
+		}
+		return null;
+	}
+}
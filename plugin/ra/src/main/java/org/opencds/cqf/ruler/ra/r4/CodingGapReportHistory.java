@@ -0,0 +1,240 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.ExpungeOptions;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Keeps the history of the coding gap report Bundles of each MeasureReport as
+ * one full base Bundle followed by the changes made by each workflow step,
+ * computed by {@link CodingGapReportDiff}. The base and the steps are stored as
+ * Binary resources with ids derived from the MeasureReport id and the version
+ * number, so the storage of a report grows with the size of its changes rather
+ * than with the number of steps, and any version can be rebuilt from the base
+ * and the steps before it.
+ * <p>
+ * Versions are numbered from 0, the base. The current Bundle is updated with
+ * its version as read before the history, and each version of the history is
+ * only created, never replaced, so when two workflow calls record a step of the
+ * same report at once, the later transaction fails the version check and is
+ * rolled back instead of replacing the step of the earlier one. This holds for
+ * the first step too, whose base and current Bundle must not exist yet. Only the
+ * latest version of the current Bundle is kept once its step is written, since
+ * the history holds the earlier ones, so expunge must be enabled on the server.
+ */
+public class CodingGapReportHistory implements DaoRegistryUser {
+	private static final Logger logger = LoggerFactory.getLogger(CodingGapReportHistory.class);
+
+	static final String CONTENT_TYPE = "application/fhir+json";
+
+	private static final int VERSIONS_PER_SEARCH = 20;
+
+	// No stored resource has version 0, so a PUT matching it only creates
+	private static final String IF_NOT_EXISTS = "W/\"0\"";
+
+	private final DaoRegistry daoRegistry;
+
+	public CodingGapReportHistory(DaoRegistry daoRegistry) {
+		this.daoRegistry = daoRegistry;
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	/**
+	 * Builds the transaction entries that store a coding gap report Bundle and add
+	 * it to the history of its MeasureReport. The Bundle is stored under an id
+	 * derived from the MeasureReport id, so each step updates the current Bundle
+	 * rather than adding one. The history gets the Bundle itself for a report
+	 * without history, and its changes from the latest version otherwise. The
+	 * update of the current Bundle is conditional on the version read here, or on
+	 * its absence for the first step, and the version of the history must not
+	 * exist yet, so the transaction fails if another step of the report was
+	 * written since.
+	 *
+	 * @param codingGapReportBundle the coding gap report Bundle, which is not
+	 *                              modified
+	 * @return the entries, or none if the Bundle has no MeasureReport
+	 */
+	public List<Bundle.BundleEntryComponent> record(Bundle codingGapReportBundle) {
+		IIdType reportId = getReportId(codingGapReportBundle);
+		if (reportId == null)
+			return Collections.emptyList();
+		Bundle current = codingGapReportBundle.copy();
+		current.setId(RAConstants.CURRENT_REPORT_ID_PREFIX + getKey(reportId));
+
+		List<Bundle.BundleEntryComponent> entries = new ArrayList<>();
+		// read before the history, so a step written in between fails the version
+		// check rather than being replaced
+		String currentVersion = readCurrentVersion(current.getIdElement().getIdPart());
+		List<Binary> versions = readVersions(reportId);
+		String content = getParser().encodeResourceToString(current);
+		if (!versions.isEmpty()) {
+			// compared as it will be read back, so ids and versions are in the same form
+			Parameters diff = CodingGapReportDiff.diff(rebuild(versions, versions.size() - 1),
+					getParser().parseResource(Bundle.class, content));
+			content = diff.hasParameter() ? getParser().encodeResourceToString(diff) : null;
+		}
+		if (content != null) {
+			Binary binary = new Binary();
+			binary.setId(getVersionId(reportId, versions.size()));
+			binary.setContentType(CONTENT_TYPE);
+			binary.setSecurityContext(new Reference(new IdType("MeasureReport", reportId.getIdPart())));
+			binary.setData(content.getBytes(StandardCharsets.UTF_8));
+			entries.add(putEntry(binary, IF_NOT_EXISTS));
+		}
+		entries.add(putEntry(current, currentVersion == null ? IF_NOT_EXISTS : "W/\"" + currentVersion + "\""));
+		return entries;
+	}
+
+	/**
+	 * Removes the earlier versions of current Bundles once the steps that updated
+	 * them are written, as the history already holds those versions.
+	 *
+	 * @param currentIds the ids of the current Bundles
+	 */
+	public void expungeOldVersions(Collection<IIdType> currentIds) {
+		if (currentIds.isEmpty())
+			return;
+		IFhirResourceDao<Bundle> dao = getDaoRegistry().getResourceDao(Bundle.class);
+		ExpungeOptions options = new ExpungeOptions().setExpungeOldVersions(true);
+		for (IIdType currentId : currentIds) {
+			try {
+				dao.expunge(currentId.toUnqualifiedVersionless(), options, new SystemRequestDetails());
+			} catch (Exception e) {
+				// the step is written, so its earlier versions are left for the next step
+				logger.warn("Unable to expunge the earlier versions of {}", currentId.getValue(), e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of versions in the history of a MeasureReport.
+	 *
+	 * @param reportId the MeasureReport id
+	 * @return the number of versions, 0 if there is no history
+	 */
+	public int getVersionCount(IIdType reportId) {
+		return readVersions(reportId).size();
+	}
+
+	/**
+	 * Rebuilds a version of the coding gap report Bundle of a MeasureReport.
+	 *
+	 * @param reportId the MeasureReport id
+	 * @param version  the version, where 0 is the base
+	 * @return the Bundle, or null if there is no such version
+	 */
+	public Bundle getVersion(IIdType reportId, int version) {
+		List<Binary> versions = readVersions(reportId);
+		return version < 0 || version >= versions.size() ? null : rebuild(versions, version);
+	}
+
+	/**
+	 * Rebuilds the latest version of the coding gap report Bundle of a
+	 * MeasureReport.
+	 *
+	 * @param reportId the MeasureReport id
+	 * @return the Bundle, or null if there is no history
+	 */
+	public Bundle getLatest(IIdType reportId) {
+		List<Binary> versions = readVersions(reportId);
+		return versions.isEmpty() ? null : rebuild(versions, versions.size() - 1);
+	}
+
+	private String readCurrentVersion(String currentId) {
+		List<Bundle> found = search(Bundle.class, Searches.byIds(Collections.singletonList(currentId)))
+				.getAllResourcesTyped();
+		return found.isEmpty() ? null : found.get(0).getIdElement().getVersionIdPart();
+	}
+
+	private Bundle.BundleEntryComponent putEntry(Resource resource, String ifMatch) {
+		Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent().setResource(resource);
+		entry.getRequest().setMethod(Bundle.HTTPVerb.PUT)
+				.setUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart()).setIfMatch(ifMatch);
+		return entry;
+	}
+
+	private Bundle rebuild(List<Binary> versions, int version) {
+		Bundle bundle = parse(versions.get(0), Bundle.class);
+		for (int i = 1; i <= version; i++) {
+			bundle = CodingGapReportDiff.apply(bundle, parse(versions.get(i), Parameters.class));
+		}
+		return bundle;
+	}
+
+	// Versions are numbered without gaps, so they are read a search at a time until
+	// one is missing
+	private List<Binary> readVersions(IIdType reportId) {
+		List<Binary> versions = new ArrayList<>();
+		while (true) {
+			List<String> ids = new ArrayList<>(VERSIONS_PER_SEARCH);
+			for (int i = 0; i < VERSIONS_PER_SEARCH; i++) {
+				ids.add(getVersionId(reportId, versions.size() + i));
+			}
+			Map<String, Binary> found = new HashMap<>();
+			search(Binary.class, Searches.byIds(ids)).getAllResourcesTyped()
+					.forEach(binary -> found.put(binary.getIdElement().getIdPart(), binary));
+			for (String id : ids) {
+				Binary binary = found.get(id);
+				if (binary == null)
+					return versions;
+				versions.add(binary);
+			}
+		}
+	}
+
+	private <T extends Resource> T parse(Binary binary, Class<T> type) {
+		return getParser().parseResource(type, new String(binary.getData(), StandardCharsets.UTF_8));
+	}
+
+	// Entry resources keep their own ids rather than taking the entry fullUrl
+	private IParser getParser() {
+		return getFhirContext().newJsonParser().setOverrideResourceIdWithBundleEntryFullUrl(false);
+	}
+
+	private IIdType getReportId(Bundle codingGapReportBundle) {
+		for (Bundle.BundleEntryComponent entry : codingGapReportBundle.getEntry()) {
+			if (entry.getResource() instanceof MeasureReport && entry.getResource().getIdElement().hasIdPart())
+				return entry.getResource().getIdElement();
+		}
+		return null;
+	}
+
+	private String getVersionId(IIdType reportId, int version) {
+		return RAConstants.HISTORY_ID_PREFIX + getKey(reportId) + "-" + version;
+	}
+
+	// Fits the 64 character id limit whatever the length of the report id
+	private String getKey(IIdType reportId) {
+		return UUID.nameUUIDFromBytes(("MeasureReport/" + reportId.getIdPart()).getBytes(StandardCharsets.UTF_8))
+				.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+
+public class CodingGapReportHistoryProvider extends DaoRegistryOperationProvider {
+
+	@Autowired(required = false)
+	private CodingGapReportHistory codingGapReportHistory;
+
+	/**
+	 * Returns a version of the coding gap report Bundle of a MeasureReport from
+	 * the history kept when hapi.fhir.ra.history.enabled is set, rebuilt from the
+	 * base Bundle and the changes of each workflow step before it.
+	 *
+	 * @param requestDetails metadata about the current request being processed.
+	 *                       Generally auto-populated by the HAPI FHIR server
+	 *                       framework.
+	 * @param theId          the MeasureReport id
+	 * @param version        the version, where 0 is the base; the latest if not
+	 *                       given
+	 * @return a Parameters with the number of versions and, if there is any, the
+	 *         requested version of the coding gap report Bundle
+	 */
+	@Description(shortDefinition = "$ra.coding-gap-history operation", value = "Returns a version of the coding gap report Bundle of a MeasureReport from the history of the RA workflow steps.")
+	@Operation(name = "$ra.coding-gap-history", idempotent = true, type = MeasureReport.class)
+	public Parameters history(
+			RequestDetails requestDetails,
+			@IdParam IdType theId,
+			@OperationParam(name = RAConstants.VERSION) IntegerType version) {
+		if (codingGapReportHistory == null) {
+			throw new MethodNotAllowedException(
+					"$ra.coding-gap-history is not enabled on this server; set hapi.fhir.ra.history.enabled");
+		}
+
+		int versions = codingGapReportHistory.getVersionCount(theId);
+		Parameters result = new Parameters();
+		result.addParameter().setName(RAConstants.VERSIONS_PARAM_NAME).setValue(new IntegerType(versions));
+		if (version == null || version.getValue() == null) {
+			Bundle latest = codingGapReportHistory.getLatest(theId);
+			if (latest != null) {
+				result.addParameter(part(RAConstants.RETURN_PARAM_NAME, latest));
+			}
+			return result;
+		}
+
+		Bundle bundle = codingGapReportHistory.getVersion(theId, version.getValue());
+		if (bundle == null) {
+			throw new InvalidRequestException(String.format(
+					"Version %d is not in the coding gap report history of %s, which has %d versions",
+					version.getValue(), theId.toUnqualifiedVersionless().getValue(), versions));
+		}
+		result.addParameter(part(RAConstants.RETURN_PARAM_NAME, bundle));
+		return result;
+	}
+}
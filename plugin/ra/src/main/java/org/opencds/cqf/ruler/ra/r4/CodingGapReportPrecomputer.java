@@ -0,0 +1,232 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.utility.Operations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Keeps a coding gap report Bundle for every MeasureReport up to date in the
+ * background, so $ra.coding-gaps can read the stored Bundle instead of building
+ * it. MeasureReport and DetectedIssue changes reported by the resource change
+ * listener registry queue their subject. A subject that is already queued is not
+ * queued again, and a single worker rebuilds the Bundles of all of a subject's
+ * MeasureReports. When the bounded queue is full the subject is dropped and its
+ * reports are built on demand until its next change.
+ * <p>
+ * A stored Bundle is only served while every resource it embeds from the server
+ * is unchanged: the MeasureReport, the evidence it references and the
+ * Composition author. Changes to the evidence or the author do not queue the
+ * subject, so their Bundles are built on demand until the report changes. The
+ * Composition and the DetectedIssues of a stored Bundle are built from the
+ * report alone.
+ * <p>
+ * Stored Bundles have an id derived from their MeasureReport id and carry the
+ * {@link RAConstants#PRECOMPUTED_TAG_CODE} tag, which keeps them out of the
+ * coding gap report Bundles searched by approve, resolve and remediate.
+ */
+public class CodingGapReportPrecomputer implements IResourceChangeListener, RiskAdjustmentUser {
+	private static final Logger logger = LoggerFactory.getLogger(CodingGapReportPrecomputer.class);
+
+	private final DaoRegistry daoRegistry;
+	private final RAProperties raProperties;
+	private final CompositionAuthorCache compositionAuthorCache;
+	private final Set<String> queuedSubjects = ConcurrentHashMap.newKeySet();
+	private final ThreadPoolExecutor executor;
+
+	public CodingGapReportPrecomputer(DaoRegistry daoRegistry, RAProperties raProperties,
+			CompositionAuthorCache compositionAuthorCache) {
+		this.daoRegistry = daoRegistry;
+		this.raProperties = raProperties;
+		this.compositionAuthorCache = compositionAuthorCache;
+		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, raProperties.getPrecompute().getQueueCapacity())),
+				new ThreadFactoryBuilder().setNameFormat("ra-precompute-%d").setDaemon(true).build());
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the stored coding gap report Bundle of a MeasureReport if it was
+	 * built from the current version of the report, its evidence and the
+	 * configured Composition author. The versions of the embedded evidence are
+	 * checked with one search per resource type.
+	 *
+	 * @param serverBase the base url used for Bundle entry fullUrls
+	 * @param report     the MeasureReport, as read from the server
+	 * @return a copy of the stored Bundle, or null if there is none or it is stale
+	 */
+	public Bundle getPrecomputed(String serverBase, MeasureReport report) {
+		Bundle bundle;
+		try {
+			bundle = read(getPrecomputedId(report.getIdElement()));
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			return null;
+		}
+		if (!isCurrent(bundle, report)) {
+			return null;
+		}
+		Bundle copy = bundle.copy();
+		copy.setMeta(RAConstants.CODING_GAP_REPORT_BUNDLE_META.copy());
+		copy.getEntry().forEach(entry -> entry.setFullUrl(Operations.getFullUrl(serverBase, entry.getResource())));
+		return copy;
+	}
+
+	private boolean isCurrent(Bundle bundle, MeasureReport report) {
+		CodingGapReportBundleEntries entries = getCodingGapReportBundleEntries(bundle);
+		MeasureReport stored = entries.getReport();
+		if (stored == null || !report.getMeta().hasVersionId()
+				|| !report.getMeta().getVersionId().equals(stored.getMeta().getVersionId())) {
+			return false;
+		}
+		Composition composition = entries.getComposition();
+		if (composition == null || !Ids.simple(compositionAuthorCache.get().getId())
+				.equals(composition.getAuthorFirstRep().getReference())) {
+			return false;
+		}
+
+		// the Composition and the DetectedIssues are built, so they have no version
+		Map<String, String> versions = new HashMap<>();
+		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+			Resource resource = entry.getResource();
+			if (resource == null || resource instanceof MeasureReport || !resource.getMeta().hasVersionId())
+				continue;
+			versions.put(resource.fhirType() + "/" + resource.getIdElement().getIdPart(),
+					resource.getMeta().getVersionId());
+		}
+		Map<String, Resource> current = new HashMap<>();
+		readResources(versions.keySet().stream().map(IdType::new).collect(Collectors.toList()), current);
+		return versions.entrySet().stream().allMatch(version -> current.containsKey(version.getKey())
+				&& version.getValue().equals(current.get(version.getKey()).getMeta().getVersionId()));
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> collection) {
+		// existing reports are built on demand until they change
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+		if (iResourceChangeEvent == null || iResourceChangeEvent.isEmpty())
+			return;
+		List<IIdType> changed = new ArrayList<>();
+		if (iResourceChangeEvent.getCreatedResourceIds() != null)
+			changed.addAll(iResourceChangeEvent.getCreatedResourceIds());
+		if (iResourceChangeEvent.getUpdatedResourceIds() != null)
+			changed.addAll(iResourceChangeEvent.getUpdatedResourceIds());
+		if (iResourceChangeEvent.getDeletedResourceIds() != null) {
+			for (IIdType deleted : iResourceChangeEvent.getDeletedResourceIds()) {
+				if ("MeasureReport".equals(deleted.getResourceType()))
+					deletePrecomputed(deleted);
+			}
+		}
+
+		Map<String, Resource> resources = new HashMap<>();
+		readResources(changed, resources);
+		Set<String> subjects = new LinkedHashSet<>();
+		for (Resource resource : resources.values()) {
+			if (resource instanceof MeasureReport && ((MeasureReport) resource).hasSubject()) {
+				subjects.add(((MeasureReport) resource).getSubject().getReference());
+			} else if (resource instanceof DetectedIssue && ((DetectedIssue) resource).hasPatient()) {
+				subjects.add(((DetectedIssue) resource).getPatient().getReference());
+			}
+		}
+		subjects.forEach(this::queue);
+	}
+
+	private void queue(String subject) {
+		if (!queuedSubjects.add(subject))
+			return;
+		try {
+			executor.execute(() -> {
+				// removed before the rebuild so changes made during it queue the subject again
+				queuedSubjects.remove(subject);
+				try {
+					precompute(subject);
+				} catch (Exception e) {
+					logger.warn("Unable to precompute the coding gap reports for {}", subject, e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			queuedSubjects.remove(subject);
+			logger.warn("The coding gap report queue is full, {} will be built on demand", subject);
+		}
+	}
+
+	void precompute(String subject) {
+		CompositionAuthorCache.CompositionAuthor compositionAuthor = compositionAuthorCache.get();
+		String serverBase = Strings.nullToEmpty(
+				raProperties.getReport() == null ? null : raProperties.getReport().getEndpoint());
+		Map<String, Resource> resourceCache = new HashMap<>();
+		for (MeasureReport report : search(MeasureReport.class, SearchParameterMap.newSynchronous()
+				.add(MeasureReport.SP_SUBJECT, new ReferenceParam(subject))).getAllResourcesTyped()) {
+			if (!report.hasPeriod())
+				continue;
+			List<DetectedIssue> issues = buildOriginalIssues(report);
+			Composition composition = buildComposition(subject, report, issues, compositionAuthor.getId());
+			Bundle bundle = buildCodingGapReportBundle(serverBase, composition, issues, report,
+					compositionAuthor.getResource(), resourceCache);
+			bundle.setMeta(bundle.getMeta().copy().addTag(RAConstants.PRECOMPUTED_TAG_SYSTEM,
+					RAConstants.PRECOMPUTED_TAG_CODE, null));
+			bundle.setId(getPrecomputedId(report.getIdElement()));
+			update(bundle);
+		}
+	}
+
+	private void deletePrecomputed(IIdType reportId) {
+		try {
+			delete(getPrecomputedId(reportId));
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			// nothing was stored for the report
+		}
+	}
+
+	// Fits the 64 character id limit whatever the length of the report id
+	private IdType getPrecomputedId(IIdType reportId) {
+		return new IdType("Bundle", RAConstants.REPORT_ID_PREFIX + UUID.nameUUIDFromBytes(
+				("MeasureReport/" + reportId.getIdPart()).getBytes(StandardCharsets.UTF_8)));
+	}
+}
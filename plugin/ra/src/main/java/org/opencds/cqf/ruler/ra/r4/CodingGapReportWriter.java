@@ -0,0 +1,148 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+/**
+ * Writes the coding gap report Bundles built by an RA workflow operation, along
+ * with the resources the operation modified, through one system transaction per
+ * chunk of patients. A patient's resources are always in the same transaction
+ * as its Bundle, so the stored Composition, DetectedIssues and MeasureReport
+ * never disagree with the most recent Bundle of the subject. A chunk that fails
+ * is rolled back on its own and reported in the summary, and the chunks after
+ * it are still written.
+ * <p>
+ * The resources are copied into the transaction, so the Bundles returned by the
+ * operation and the shared meta constants are not changed by the write. When a
+ * {@link CodingGapReportHistory} is given, each Bundle updates the current
+ * Bundle of its MeasureReport and is added to the report's history in the same
+ * transaction, rather than being created as a new Bundle. A chunk holding a
+ * step that another call wrote first fails like any other, and once a chunk
+ * is written the earlier versions of its current Bundles are expunged.
+ */
+class CodingGapReportWriter {
+	private static final Logger logger = LoggerFactory.getLogger(CodingGapReportWriter.class);
+
+	private final DaoRegistry daoRegistry;
+	private final int chunkSize;
+	private final CodingGapReportHistory history;
+	private final Map<String, Integer> written = new TreeMap<>();
+	private final List<String> failures = new ArrayList<>();
+	private final Map<String, Integer> pending = new TreeMap<>();
+	private final List<IIdType> pendingCurrentIds = new ArrayList<>();
+
+	private Bundle transaction = newTransaction();
+	private int pendingPatients;
+	private int patients;
+	private int failedPatients;
+	private int transactions;
+
+	CodingGapReportWriter(DaoRegistry daoRegistry, int chunkSize, CodingGapReportHistory history) {
+		this.daoRegistry = daoRegistry;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.history = history;
+	}
+
+	/**
+	 * Adds the Bundle of one patient and the resources the operation modified for
+	 * it, and writes the current chunk once it is full.
+	 *
+	 * @param codingGapReportBundle the coding gap report Bundle, created as a new
+	 *                              Bundle
+	 * @param modified              the modified resources, updated in place
+	 */
+	void add(Bundle codingGapReportBundle, List<? extends Resource> modified) {
+		for (Resource resource : modified) {
+			transaction.addEntry().setResource(resource.copy()).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+					.setUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+			pending.merge(resource.fhirType(), 1, Integer::sum);
+		}
+		List<Bundle.BundleEntryComponent> recorded = history == null ? Collections.emptyList()
+				: history.record(codingGapReportBundle);
+		if (recorded.isEmpty()) {
+			transaction.addEntry().setResource(codingGapReportBundle.copy()).getRequest()
+					.setMethod(Bundle.HTTPVerb.POST).setUrl("Bundle");
+			pending.merge("Bundle", 1, Integer::sum);
+		}
+		for (Bundle.BundleEntryComponent entry : recorded) {
+			transaction.addEntry(entry);
+			pending.merge(entry.getResource().fhirType(), 1, Integer::sum);
+			if (entry.getResource() instanceof Bundle)
+				pendingCurrentIds.add(new IdType("Bundle", entry.getResource().getIdElement().getIdPart()));
+		}
+		if (++pendingPatients >= chunkSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the patients added since the last chunk was written.
+	 */
+	void flush() {
+		if (pendingPatients == 0) {
+			return;
+		}
+		transactions++;
+		try {
+			daoRegistry.getSystemDao().transaction(new SystemRequestDetails(), transaction);
+			patients += pendingPatients;
+			pending.forEach((type, count) -> written.merge(type, count, Integer::sum));
+			if (history != null)
+				history.expungeOldVersions(pendingCurrentIds);
+		} catch (Exception e) {
+			logger.warn("Unable to persist chunk {} of {} coding gap reports", transactions, pendingPatients, e);
+			failedPatients += pendingPatients;
+			failures.add(String.format("Chunk %d of %d coding gap reports was not persisted: %s", transactions,
+					pendingPatients, e.getMessage()));
+		}
+		transaction = newTransaction();
+		pending.clear();
+		pendingCurrentIds.clear();
+		pendingPatients = 0;
+	}
+
+	/**
+	 * Writes any remaining patients and summarizes what was written.
+	 *
+	 * @return the persisted parameter, with a count of the patients and of each
+	 *         resource type written, the transactions, the failed patients, and
+	 *         an OperationOutcome for each chunk that failed
+	 */
+	Parameters.ParametersParameterComponent finish() {
+		flush();
+		Parameters.ParametersParameterComponent summary = new Parameters.ParametersParameterComponent()
+				.setName(RAConstants.PERSISTED_PARAM_NAME);
+		summary.addPart().setName("patients").setValue(new IntegerType(patients));
+		written.forEach((type, count) -> summary.addPart().setName(type).setValue(new IntegerType(count)));
+		summary.addPart().setName("transactions").setValue(new IntegerType(transactions));
+		summary.addPart().setName("failed").setValue(new IntegerType(failedPatients));
+		for (String failure : failures) {
+			OperationOutcome outcome = new OperationOutcome();
+			outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+					.setCode(OperationOutcome.IssueType.EXCEPTION).setDiagnostics(failure);
+			summary.addPart().setName("failure").setResource(outcome);
+		}
+		return summary;
+	}
+
+	private static Bundle newTransaction() {
+		return new Bundle().setType(Bundle.BundleType.TRANSACTION);
+	}
+}
@@ -0,0 +1,411 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import jakarta.servlet.ServletRegistration;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.utility.Operations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Asynchronous variant of the $ra.coding-gaps operation, following the FHIR
+ * <a href="https://hl7.org/fhir/R4/async.html">asynchronous request
+ * pattern</a>. Reports are written to NDJSON files as they are built, one file
+ * per resource type, so memory use does not grow with the size of the subject.
+ * <ul>
+ * <li><code>GET|POST /ra-coding-gaps?periodStart=&amp;periodEnd=&amp;subject=</code>
+ * with <code>Prefer: respond-async</code> starts a job and returns its status
+ * url in the Content-Location header</li>
+ * <li><code>GET /ra-coding-gaps/{job}</code> returns 202 while the job runs and
+ * the output manifest once it is complete</li>
+ * <li><code>GET /ra-coding-gaps/{job}/{type}.ndjson</code> downloads an output
+ * file</li>
+ * <li><code>DELETE /ra-coding-gaps/{job}</code> cancels the job and deletes its
+ * files</li>
+ * </ul>
+ * Jobs that have ended, and their files, are deleted once they are older than
+ * the export retention. Files left in the export directory by a previous run
+ * are deleted the same way.
+ * <p>
+ * The servlet is only registered when hapi.fhir.ra.export.enabled is set. It is
+ * registered beside the FHIR servlet rather than behind it, so its requests do
+ * not pass through the RestfulServer interceptors, and authorization, consent
+ * and audit interceptors are not applied. The reports are built on the
+ * caller's behalf: the headers of the kick-off request are carried into the
+ * job, and its reads are done in the partition resolved for that request.
+ * Deployments that rely on those interceptors should leave the export disabled
+ * or protect /ra-coding-gaps, and use the synchronous $ra.coding-gaps operation
+ * instead.
+ */
+public class CodingGapsExportServlet extends HttpServlet {
+	private static final Logger logger = LoggerFactory.getLogger(CodingGapsExportServlet.class);
+
+	private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+	private static final Pattern JOB_ID = Pattern.compile("[0-9a-f\\-]{36}");
+	private static final Pattern FILE_NAME = Pattern.compile("(Bundle|OperationOutcome)\\.ndjson");
+	private static final long SWEEP_INTERVAL_MILLIS = 60000;
+
+	@Autowired
+	private transient RACodingGapsProvider raCodingGapsProvider;
+
+	@Autowired
+	private transient RAProperties raProperties;
+
+	@Autowired
+	private transient RestfulServer restfulServer;
+
+	private final transient ObjectMapper objectMapper = new ObjectMapper();
+	private final transient Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+	private transient ExecutorService jobExecutor;
+	private transient ScheduledExecutorService sweeper;
+
+	@Override
+	public void init() {
+		// Jobs run one at a time; each one fans its patients out on the RA executor
+		jobExecutor = Executors.newSingleThreadExecutor(
+				new ThreadFactoryBuilder().setNameFormat("ra-coding-gaps-export-%d").setDaemon(true).build());
+		sweeper = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("ra-coding-gaps-export-sweep-%d").setDaemon(true).build());
+		long sweepIntervalMillis = Math.max(1000,
+				Math.min(raProperties.getExport().getRetentionMillis(), SWEEP_INTERVAL_MILLIS));
+		sweeper.scheduleWithFixedDelay(this::sweep, 0, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		sweeper.shutdownNow();
+		jobExecutor.shutdownNow();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String[] path = getPath(request);
+		if (path.length == 0) {
+			kickOff(request, response);
+		} else if (path.length == 1) {
+			status(path[0], response);
+		} else if (path.length == 2) {
+			download(path[0], path[1], response);
+		} else {
+			sendError(response, 404, "Unknown path " + request.getPathInfo());
+		}
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (getPath(request).length != 0) {
+			sendError(response, 404, "Unknown path " + request.getPathInfo());
+			return;
+		}
+		kickOff(request, response);
+	}
+
+	@Override
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String[] path = getPath(request);
+		ExportJob job = path.length == 1 ? jobs.remove(path[0]) : null;
+		if (job == null) {
+			sendError(response, 404, "Unknown job " + request.getPathInfo());
+			return;
+		}
+		job.future.cancel(true);
+		deleteDirectory(job.directory);
+		response.setStatus(202);
+	}
+
+	private void kickOff(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String prefer = request.getHeader("Prefer");
+		if (prefer == null || !prefer.contains("respond-async")) {
+			sendError(response, 400, "The Prefer: respond-async header is required.");
+			return;
+		}
+
+		String periodStart = request.getParameter(RAConstants.PERIOD_START);
+		String periodEnd = request.getParameter(RAConstants.PERIOD_END);
+		String subject = request.getParameter(RAConstants.SUBJECT);
+		try {
+			validateParameter(RAConstants.PERIOD_START, periodStart, Operations.FHIR_DATE);
+			validateParameter(RAConstants.PERIOD_END, periodEnd, Operations.FHIR_DATE);
+			validateParameter(RAConstants.SUBJECT, subject, Operations.PATIENT_OR_GROUP_REFERENCE);
+			raCodingGapsProvider.validateConfiguration(null);
+		} catch (Exception e) {
+			sendError(response, 400, e.getMessage());
+			return;
+		}
+
+		CallerRequestDetails caller;
+		try {
+			caller = raCodingGapsProvider.getCallerRequestDetails(getCallerRequestDetails(request));
+		} catch (BaseServerResponseException e) {
+			sendError(response, e.getStatusCode(), e.getMessage());
+			return;
+		}
+		raCodingGapsProvider.ensureSupplementalDataElementSearchParameter(caller.newRequestDetails());
+		raCodingGapsProvider.ensureCodingGapReportBundleSearchParameters(caller.newRequestDetails());
+
+		String jobId = UUID.randomUUID().toString();
+		String statusUrl = request.getRequestURL().toString().replaceAll("/+$", "") + "/" + jobId;
+		ExportJob job = new ExportJob(request.getRequestURL() + "?" + Strings.nullToEmpty(request.getQueryString()),
+				statusUrl, Paths.get(raProperties.getExport().getDirectory(), jobId));
+		job.future = jobExecutor.submit(() -> run(job, caller, periodStart, periodEnd, subject));
+		jobs.put(jobId, job);
+
+		response.setStatus(202);
+		response.setHeader("Content-Location", statusUrl);
+	}
+
+	private void run(ExportJob job, CallerRequestDetails caller, String periodStart, String periodEnd,
+			String subject) {
+		IParser parser = raCodingGapsProvider.getFhirContext().newJsonParser().setPrettyPrint(false);
+		try {
+			Files.createDirectories(job.directory);
+			try (Writer bundles = Files.newBufferedWriter(job.directory.resolve("Bundle.ndjson"),
+					StandardCharsets.UTF_8);
+					Writer errors = Files.newBufferedWriter(job.directory.resolve("OperationOutcome.ndjson"),
+							StandardCharsets.UTF_8)) {
+				raCodingGapsProvider.forEachCodingGapReport(caller, periodStart, periodEnd, subject,
+						resource -> {
+							if (Thread.currentThread().isInterrupted()) {
+								throw new CancellationException();
+							}
+							boolean isError = resource instanceof OperationOutcome;
+							write(isError ? errors : bundles, parser, resource);
+							(isError ? job.errorCount : job.bundleCount).incrementAndGet();
+						});
+			}
+			job.transactionTime = Instant.now();
+		} catch (CancellationException e) {
+			logger.info("Coding gaps export {} was cancelled", job.statusUrl);
+		} catch (Exception e) {
+			logger.error("Coding gaps export {} failed", job.statusUrl, e);
+			job.failure = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+		} finally {
+			job.endTime = Instant.now();
+		}
+	}
+
+	// The request details the FHIR servlet would give the operation, without its
+	// interceptors having run. They are only read on this thread.
+	private RequestDetails getCallerRequestDetails(HttpServletRequest request) {
+		ServletRequestDetails requestDetails = new ServletRequestDetails(restfulServer.getInterceptorService());
+		requestDetails.setServer(restfulServer);
+		requestDetails.setServletRequest(request);
+		requestDetails.setRequestType(RequestTypeEnum.valueOf(request.getMethod()));
+		requestDetails.setFhirServerBase(getFhirServerBase(request));
+		return requestDetails;
+	}
+
+	// The base the synchronous operation gets from its request details: the
+	// configured server address, or the url the FHIR servlet is mapped to on the
+	// host of this request
+	private String getFhirServerBase(HttpServletRequest request) {
+		if (restfulServer.getServerAddressStrategy() instanceof HardcodedServerAddressStrategy) {
+			String address = ((HardcodedServerAddressStrategy) restfulServer.getServerAddressStrategy()).getValue();
+			if (!Strings.isNullOrEmpty(address)) {
+				return address.replaceAll("/+$", "");
+			}
+		}
+		String requestUrl = request.getRequestURL().toString();
+		String path = request.getServletPath() + Strings.nullToEmpty(request.getPathInfo());
+		String root = requestUrl.endsWith(path) ? requestUrl.substring(0, requestUrl.length() - path.length())
+				: requestUrl.replace(request.getServletPath(), "");
+		ServletRegistration registration = getServletContext()
+				.getServletRegistration(restfulServer.getServletName());
+		String mapping = registration == null ? "" : registration.getMappings().stream().findFirst().orElse("");
+		return root + mapping.replaceAll("/?\\*$", "").replaceAll("/+$", "");
+	}
+
+	// Removes the jobs that ended before the retention, and the files in the
+	// export directory that no job owns and that were last modified before it
+	private void sweep() {
+		Instant cutoff = Instant.now().minusMillis(raProperties.getExport().getRetentionMillis());
+		try {
+			jobs.entrySet().removeIf(entry -> {
+				ExportJob job = entry.getValue();
+				if (job.endTime == null || !job.endTime.isBefore(cutoff)) {
+					return false;
+				}
+				deleteDirectory(job.directory);
+				return true;
+			});
+			Path exportDirectory = Paths.get(raProperties.getExport().getDirectory());
+			if (!Files.isDirectory(exportDirectory)) {
+				return;
+			}
+			try (Stream<Path> directories = Files.list(exportDirectory)) {
+				directories.filter(directory -> JOB_ID.matcher(directory.getFileName().toString()).matches()
+						&& !jobs.containsKey(directory.getFileName().toString())
+						&& isModifiedBefore(directory, cutoff)).forEach(this::deleteDirectory);
+			}
+		} catch (Exception e) {
+			logger.warn("Unable to remove expired coding gaps exports", e);
+		}
+	}
+
+	private boolean isModifiedBefore(Path path, Instant cutoff) {
+		try {
+			return Files.getLastModifiedTime(path).toInstant().isBefore(cutoff);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void write(Writer writer, IParser parser, Resource resource) {
+		try {
+			parser.encodeResourceToWriter(resource, writer);
+			writer.write('\n');
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void status(String jobId, HttpServletResponse response) throws IOException {
+		ExportJob job = jobs.get(jobId);
+		if (job == null) {
+			sendError(response, 404, "Unknown job " + jobId);
+			return;
+		}
+		if (job.failure != null) {
+			sendError(response, 500, job.failure);
+			return;
+		}
+		if (job.transactionTime == null) {
+			response.setStatus(202);
+			response.setHeader("X-Progress", String.format("%d bundles written", job.bundleCount.get()));
+			response.setHeader("Retry-After", "5");
+			return;
+		}
+
+		ObjectNode manifest = objectMapper.createObjectNode();
+		manifest.put("transactionTime", job.transactionTime.toString());
+		manifest.put("request", job.request);
+		manifest.put("requiresAccessToken", false);
+		ArrayNode output = manifest.putArray("output");
+		if (job.bundleCount.get() > 0) {
+			output.addObject().put("type", "Bundle").put("url", job.statusUrl + "/Bundle.ndjson")
+					.put("count", job.bundleCount.get());
+		}
+		ArrayNode error = manifest.putArray("error");
+		if (job.errorCount.get() > 0) {
+			error.addObject().put("type", "OperationOutcome").put("url", job.statusUrl + "/OperationOutcome.ndjson")
+					.put("count", job.errorCount.get());
+		}
+
+		response.setStatus(200);
+		response.setContentType("application/json");
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		objectMapper.writeValue(response.getWriter(), manifest);
+	}
+
+	private void download(String jobId, String fileName, HttpServletResponse response) throws IOException {
+		ExportJob job = jobs.get(jobId);
+		if (job == null || job.transactionTime == null || !FILE_NAME.matcher(fileName).matches()) {
+			sendError(response, 404, String.format("Unknown file %s/%s", jobId, fileName));
+			return;
+		}
+		Path file = job.directory.resolve(fileName);
+		response.setStatus(200);
+		response.setContentType(NDJSON_CONTENT_TYPE);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		response.setContentLengthLong(Files.size(file));
+		Files.copy(file, response.getOutputStream());
+	}
+
+	private String[] getPath(HttpServletRequest request) {
+		String pathInfo = request.getPathInfo();
+		if (pathInfo == null || pathInfo.equals("/")) {
+			return new String[0];
+		}
+		String[] path = pathInfo.substring(1).split("/");
+		if (!JOB_ID.matcher(path[0]).matches()) {
+			return new String[] { "", "", "" };
+		}
+		return path;
+	}
+
+	private void validateParameter(String name, String value, Pattern pattern) {
+		checkArgument(!Strings.isNullOrEmpty(value), "Parameter '%s' is required.", name);
+		Operations.validatePattern(name, value, pattern);
+	}
+
+	private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/fhir+json");
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		response.getWriter().println(raCodingGapsProvider.getFhirContext().newJsonParser().setPrettyPrint(true)
+				.encodeResourceToString(raCodingGapsProvider.generateIssue("error", message)));
+	}
+
+	private void deleteDirectory(Path directory) {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			logger.warn("Unable to delete {}", directory, e);
+		}
+	}
+
+	private static class ExportJob {
+		private final String request;
+		private final String statusUrl;
+		private final Path directory;
+		private final AtomicLong bundleCount = new AtomicLong();
+		private final AtomicLong errorCount = new AtomicLong();
+		private Future<?> future;
+		private volatile Instant transactionTime;
+		private volatile Instant endTime;
+		private volatile String failure;
+
+		ExportJob(String request, String statusUrl, Path directory) {
+			this.request = request;
+			this.statusUrl = statusUrl;
+			this.directory = directory;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collection;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.ra.RAProperties;
+
+import com.google.common.base.Strings;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+
+/**
+ * Holds the Organization configured as the coding gap Composition author. It is
+ * read once and kept until the Organization changes or the configured author
+ * does, so each request gets its author from here instead of re-reading it or
+ * sharing it through provider fields.
+ */
+public class CompositionAuthorCache implements IResourceChangeListener, DaoRegistryUser {
+
+	private final DaoRegistry daoRegistry;
+	private final RAProperties raProperties;
+
+	private volatile CompositionAuthor cached;
+	private long generation;
+
+	public CompositionAuthorCache(DaoRegistry daoRegistry, RAProperties raProperties) {
+		this.daoRegistry = daoRegistry;
+		this.raProperties = raProperties;
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	/**
+	 * Returns the configured Composition author, reading it if it is not cached.
+	 *
+	 * @return the author id and resource
+	 * @throws IllegalArgumentException if no author is configured
+	 * @throws ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException if the
+	 *                                  author is not loaded in the server
+	 */
+	public CompositionAuthor get() {
+		checkArgument(
+				raProperties.getComposition() != null
+						&& !Strings.isNullOrEmpty(raProperties.getComposition().getCompositionSectionAuthor()),
+				"The composition.ra_composition_section_author setting is required for the $ra.coding-gaps operation.");
+		String configured = raProperties.getComposition().getCompositionSectionAuthor();
+
+		CompositionAuthor current = cached;
+		if (current != null && current.configured.equals(configured)) {
+			return current;
+		}
+
+		long readGeneration;
+		synchronized (this) {
+			readGeneration = generation;
+		}
+		IdType id = new IdType(configured);
+		CompositionAuthor resolved = new CompositionAuthor(configured, id, read(id));
+		synchronized (this) {
+			// an invalidation during the read means the resource may already be stale
+			if (readGeneration == generation) {
+				cached = resolved;
+			}
+		}
+		return resolved;
+	}
+
+	public synchronized void invalidate() {
+		generation++;
+		cached = null;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> collection) {
+		// the author is read on first use
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+		CompositionAuthor current = cached;
+		if (current == null || iResourceChangeEvent == null)
+			return;
+		if (contains(iResourceChangeEvent.getCreatedResourceIds(), current.id)
+				|| contains(iResourceChangeEvent.getUpdatedResourceIds(), current.id)
+				|| contains(iResourceChangeEvent.getDeletedResourceIds(), current.id)) {
+			invalidate();
+		}
+	}
+
+	private boolean contains(Collection<IIdType> ids, IdType id) {
+		if (ids == null)
+			return false;
+		for (IIdType changed : ids) {
+			if (id.getIdPart().equals(changed.getIdPart())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static class CompositionAuthor {
+		private final String configured;
+		private final IdType id;
+		private final Resource resource;
+
+		CompositionAuthor(String configured, IdType id, Resource resource) {
+			this.configured = configured;
+			this.id = id;
+			this.resource = resource;
+		}
+
+		public IdType getId() {
+			return id;
+		}
+
+		public Resource getResource() {
+			return resource;
+		}
+	}
+}
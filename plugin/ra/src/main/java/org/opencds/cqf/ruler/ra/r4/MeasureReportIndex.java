@@ -0,0 +1,210 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.behavior.r4.MeasureReportUser;
+
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+
+/**
+ * Keeps the subject, measure and period of every MeasureReport in memory, so RA
+ * operations can find the reports of a subject without searching and only read
+ * the reports they keep. The index is filled from the ids passed to
+ * {@link #handleInit(Collection)} and kept up to date by the MeasureReport
+ * changes reported by the resource change listener registry, so it trails the
+ * server by up to the refresh interval. Until it is filled, lookups return null
+ * and callers search instead.
+ */
+public class MeasureReportIndex implements IResourceChangeListener, MeasureReportUser {
+
+	private final DaoRegistry daoRegistry;
+	// subject id -> the reports of the subject, replaced rather than modified
+	private final Map<String, List<Entry>> reportsBySubject = new ConcurrentHashMap<>();
+	// report id -> subject id
+	private final Map<String, String> subjectsByReport = new ConcurrentHashMap<>();
+	private volatile boolean initialized;
+
+	public MeasureReportIndex(DaoRegistry daoRegistry) {
+		this.daoRegistry = daoRegistry;
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return daoRegistry;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * Returns the ids of a subject's MeasureReports whose period overlaps the given
+	 * period, in the order the reports were indexed.
+	 *
+	 * @param subject       the subject reference or id
+	 * @param periodStart   the start of the period
+	 * @param periodEnd     the end of the period
+	 * @param measureFilter keeps the reports whose measure reference matches, or
+	 *                      null to keep all of them
+	 * @return the report ids, or null if the index is not filled yet
+	 */
+	public List<IdType> find(String subject, String periodStart, String periodEnd, Predicate<String> measureFilter) {
+		if (!initialized)
+			return null;
+		IdType subjectId = new IdType(subject);
+		List<Entry> entries = reportsBySubject.getOrDefault(subjectId.getIdPart(), Collections.emptyList());
+		DateRangeParam range = new DateRangeParam(periodStart, periodEnd);
+		long low = range.getLowerBoundAsInstant() == null ? Long.MIN_VALUE
+				: range.getLowerBoundAsInstant().getTime();
+		long high = range.getUpperBoundAsInstant() == null ? Long.MAX_VALUE
+				: range.getUpperBoundAsInstant().getTime();
+
+		List<IdType> ids = new ArrayList<>();
+		for (Entry entry : entries) {
+			if (subjectId.hasResourceType() && !subjectId.getResourceType().equals(entry.subjectType))
+				continue;
+			if (entry.periodEnd < low || entry.periodStart > high)
+				continue;
+			if (measureFilter != null && (entry.measure == null || !measureFilter.test(entry.measure)))
+				continue;
+			ids.add(new IdType("MeasureReport", entry.reportId));
+		}
+		return ids;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> collection) {
+		if (collection != null) {
+			for (List<IIdType> batch : Lists.partition(new ArrayList<>(collection), MAX_IDS_PER_SEARCH)) {
+				index(batch);
+			}
+		}
+		initialized = true;
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent iResourceChangeEvent) {
+		if (iResourceChangeEvent == null || iResourceChangeEvent.isEmpty())
+			return;
+		if (iResourceChangeEvent.getDeletedResourceIds() != null)
+			iResourceChangeEvent.getDeletedResourceIds().forEach(id -> remove(id.getIdPart()));
+		List<IIdType> changed = new ArrayList<>();
+		if (iResourceChangeEvent.getCreatedResourceIds() != null)
+			changed.addAll(iResourceChangeEvent.getCreatedResourceIds());
+		if (iResourceChangeEvent.getUpdatedResourceIds() != null)
+			changed.addAll(iResourceChangeEvent.getUpdatedResourceIds());
+		for (List<IIdType> batch : Lists.partition(changed, MAX_IDS_PER_SEARCH)) {
+			index(batch);
+		}
+	}
+
+	private void index(List<IIdType> ids) {
+		Map<String, Resource> resources = new HashMap<>();
+		readResources(ids, resources);
+		for (Resource resource : resources.values()) {
+			if (resource instanceof MeasureReport)
+				put((MeasureReport) resource);
+		}
+	}
+
+	private synchronized void put(MeasureReport report) {
+		String reportId = report.getIdElement().getIdPart();
+		if (!report.hasSubject() || !report.getSubject().hasReference()) {
+			remove(reportId);
+			return;
+		}
+		IdType subjectId = new IdType(report.getSubject().getReference());
+		Entry entry = new Entry(reportId, subjectId.getResourceType(),
+				report.hasMeasure() ? report.getMeasure() : null,
+				report.hasPeriod() && report.getPeriod().hasStart()
+						? low(report.getPeriod().getStartElement()) : Long.MIN_VALUE,
+				report.hasPeriod() && report.getPeriod().hasEnd()
+						? high(report.getPeriod().getEndElement()) : Long.MAX_VALUE);
+
+		String previousSubject = subjectsByReport.put(reportId, subjectId.getIdPart());
+		if (previousSubject != null && !previousSubject.equals(subjectId.getIdPart()))
+			removeEntry(previousSubject, reportId);
+
+		// replaced in place so an updated report keeps its position
+		List<Entry> entries = new ArrayList<>(
+				reportsBySubject.getOrDefault(subjectId.getIdPart(), Collections.emptyList()));
+		int index = indexOf(entries, reportId);
+		if (index < 0) {
+			entries.add(entry);
+		} else {
+			entries.set(index, entry);
+		}
+		reportsBySubject.put(subjectId.getIdPart(), Collections.unmodifiableList(entries));
+	}
+
+	private synchronized void remove(String reportId) {
+		String subject = subjectsByReport.remove(reportId);
+		if (subject != null)
+			removeEntry(subject, reportId);
+	}
+
+	private void removeEntry(String subject, String reportId) {
+		List<Entry> entries = new ArrayList<>(reportsBySubject.getOrDefault(subject, Collections.emptyList()));
+		int index = indexOf(entries, reportId);
+		if (index < 0)
+			return;
+		entries.remove(index);
+		if (entries.isEmpty()) {
+			reportsBySubject.remove(subject);
+		} else {
+			reportsBySubject.put(subject, Collections.unmodifiableList(entries));
+		}
+	}
+
+	private int indexOf(List<Entry> entries, String reportId) {
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).reportId.equals(reportId))
+				return i;
+		}
+		return -1;
+	}
+
+	private long low(BaseDateTimeType date) {
+		return date.getValue() == null ? Long.MIN_VALUE : date.getValue().getTime();
+	}
+
+	// The last instant covered by the date at its precision, as the period search
+	// parameter indexes it
+	private long high(BaseDateTimeType date) {
+		return date.getValue() == null ? Long.MAX_VALUE
+				: date.getPrecision().add(date.getValue(), 1).getTime() - 1;
+	}
+
+	private static class Entry {
+		private final String reportId;
+		private final String subjectType;
+		private final String measure;
+		private final long periodStart;
+		private final long periodEnd;
+
+		Entry(String reportId, String subjectType, String measure, long periodStart, long periodEnd) {
+			this.reportId = reportId;
+			this.subjectType = subjectType;
+			this.measure = measure;
+			this.periodStart = periodStart;
+			this.periodEnd = periodEnd;
+		}
+	}
+}
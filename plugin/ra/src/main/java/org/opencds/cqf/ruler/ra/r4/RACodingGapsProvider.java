@@ -1,12 +1,21 @@
 package org.opencds.cqf.ruler.ra.r4;
 
-import static com.google.common.base.Preconditions.checkArgument;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
@@ -17,32 +26,54 @@ import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.utility.Ids;
 import org.opencds.cqf.ruler.behavior.ConfigurationUser;
 import org.opencds.cqf.ruler.behavior.ResourceCreator;
 import org.opencds.cqf.ruler.behavior.r4.ParameterUser;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
+import org.opencds.cqf.ruler.ra.RAConfig;
 import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.ra.RAProperties;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.beans.factory.annotation.Qualifier;
 
-import com.google.common.base.Strings;
+import com.google.common.collect.Iterators;
 
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
 import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
 @Configurable
 public class RACodingGapsProvider extends DaoRegistryOperationProvider
 		implements ParameterUser, ConfigurationUser, ResourceCreator, RiskAdjustmentUser {
 
+	private static final Logger logger = LoggerFactory.getLogger(RACodingGapsProvider.class);
+
 	@Autowired
 	private RAProperties raProperties;
 
-	private IdType compositionSectionAuthor;
-	private Resource author;
+	@Autowired
+	@Qualifier(RAConfig.RA_EXECUTOR_SERVICE)
+	private ExecutorService executorService;
+
+	@Autowired
+	private CompositionAuthorCache compositionAuthorCache;
+
+	@Autowired(required = false)
+	private CodingGapReportPrecomputer codingGapReportPrecomputer;
+
+	@Autowired(required = false)
+	private MeasureReportIndex measureReportIndex;
+
+	@Autowired(required = false)
+	private IRequestPartitionHelperSvc requestPartitionHelper;
 
 	/**
 	 * Implements the <a href=
@@ -81,34 +112,145 @@ public class RACodingGapsProvider extends DaoRegistryOperationProvider
 		}
 
 		ensureSupplementalDataElementSearchParameter(requestDetails);
+		ensureCodingGapReportBundleSearchParameters(requestDetails);
 
 		Parameters result = newResource(Parameters.class,
 				RAConstants.REPORT_ID_PREFIX + UUID.randomUUID());
 
-		getPatientListFromSubject(subject).forEach(
-				patient -> {
-					List<MeasureReport> reports = getMeasureReports(
-							patient.getIdElement().getIdPart(), periodStart.getValueAsString(),
-							periodEnd.getValueAsString());
-					if (reports.isEmpty()) {
-						result.addParameter(part(
-								RAConstants.RETURN_PARAM_NAME,
-								buildMissingMeasureReportCodingGapReportBundle(requestDetails.getFhirServerBase(), patient)));
-					} else {
-						reports.forEach(report -> {
-							List<DetectedIssue> issues = buildOriginalIssues(report);
-							Composition composition = buildComposition(subject, report, issues, compositionSectionAuthor);
-							Bundle bundle = buildCodingGapReportBundle(requestDetails.getFhirServerBase(), composition, issues,
-									report, author);
-							result.addParameter(part(RAConstants.RETURN_PARAM_NAME,
-									bundle.setId(UUID.randomUUID().toString())));
-						});
-					}
-				});
+		forEachCodingGapReport(getCallerRequestDetails(requestDetails), periodStart.getValueAsString(),
+				periodEnd.getValueAsString(), subject,
+				resource -> result.addParameter(part(RAConstants.RETURN_PARAM_NAME, resource)));
 
 		return result;
 	}
 
+	/**
+	 * Builds the coding gap reports of every patient in the subject and hands them
+	 * to the consumer one at a time, in patient order. Patients are evaluated in
+	 * chunks on the RA executor, with at most twice as many chunks in flight as
+	 * there are worker threads, so only those chunks' reports are held in memory
+	 * at once. The consumer is always called on the calling thread.
+	 * <p>
+	 * The Composition author is taken from the {@link CompositionAuthorCache} once
+	 * per call and shared by all of the call's chunks.
+	 * <p>
+	 * The subject, its Patients and their MeasureReports are read on the caller's
+	 * behalf, with its identity and partition, each chunk with its own request
+	 * details.
+	 *
+	 * @param caller      the caller, whose server base is used for Bundle entry
+	 *                    fullUrls
+	 * @param periodStart the start of the clinical evaluation period
+	 * @param periodEnd   the end of the clinical evaluation period
+	 * @param subject     a Patient or Patient Group
+	 * @param consumer    receives each coding gap report Bundle, or an
+	 *                    OperationOutcome for each patient that failed
+	 */
+	public void forEachCodingGapReport(CallerRequestDetails caller, String periodStart, String periodEnd,
+			String subject, Consumer<Resource> consumer) {
+		CompositionAuthorCache.CompositionAuthor compositionAuthor = compositionAuthorCache.get();
+		IdType sectionAuthor = compositionAuthor.getId();
+		Resource reportAuthor = compositionAuthor.getResource();
+		// Group members are read as the chunks are taken, so only the chunks in
+		// flight are held in memory
+		Iterator<List<IdType>> chunks = Iterators.partition(
+				getPatientIdsFromSubject(subject, caller.newRequestDetails()),
+				Math.max(1, raProperties.getParallelism().getChunkSize()));
+		if (!chunks.hasNext()) {
+			return;
+		}
+		List<IdType> first = chunks.next();
+		if (!chunks.hasNext()) {
+			buildCodingGapReportBundles(caller, first, periodStart, periodEnd, sectionAuthor,
+					reportAuthor).forEach(consumer);
+			return;
+		}
+
+		// Chunks are submitted in patient order and their results are consumed in
+		// the same order, so the output does not depend on scheduling
+		int window = Math.max(1, raProperties.getParallelism().getThreads()) * 2;
+		Deque<Future<List<Resource>>> futures = new ArrayDeque<>();
+		try {
+			for (List<IdType> chunk = first; chunk != null; chunk = chunks.hasNext() ? chunks.next() : null) {
+				List<IdType> patients = chunk;
+				if (futures.size() >= window) {
+					getChunkResult(futures.removeFirst()).forEach(consumer);
+				}
+				futures.addLast(executorService.submit(() -> buildCodingGapReportBundles(caller, patients,
+						periodStart, periodEnd, sectionAuthor, reportAuthor)));
+			}
+			while (!futures.isEmpty()) {
+				getChunkResult(futures.removeFirst()).forEach(consumer);
+			}
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private List<Resource> buildCodingGapReportBundles(CallerRequestDetails caller, List<IdType> patients,
+			String periodStart, String periodEnd, IdType sectionAuthor, Resource reportAuthor) {
+		String serverBase = caller.getFhirServerBase();
+		RequestDetails requestDetails = caller.newRequestDetails();
+		List<Resource> bundles = new ArrayList<>();
+		// Shared by the reports of the chunk so common resources are read once
+		Map<String, Resource> resourceCache = new HashMap<>();
+		for (IdType patient : patients) {
+			String patientReference = Ids.simple(patient);
+			try {
+				List<MeasureReport> reports = getMeasureReports(
+						patient.getIdPart(), periodStart, periodEnd, requestDetails);
+				if (reports.isEmpty()) {
+					bundles.add(buildMissingMeasureReportCodingGapReportBundle(serverBase,
+							read(patient, requestDetails)));
+					continue;
+				}
+				List<Resource> patientBundles = new ArrayList<>();
+				for (MeasureReport report : reports) {
+					Bundle precomputed = codingGapReportPrecomputer == null ? null
+							: codingGapReportPrecomputer.getPrecomputed(serverBase, report);
+					if (precomputed != null) {
+						patientBundles.add(precomputed.setId(UUID.randomUUID().toString()));
+						continue;
+					}
+					List<DetectedIssue> issues = buildOriginalIssues(report);
+					Composition composition = buildComposition(patientReference, report, issues, sectionAuthor);
+					Bundle bundle = buildCodingGapReportBundle(serverBase, composition, issues, report, reportAuthor,
+							resourceCache);
+					patientBundles.add(bundle.setId(UUID.randomUUID().toString()));
+				}
+				bundles.addAll(patientBundles);
+			} catch (Exception e) {
+				logger.warn("Unable to build the coding gap report for {}", patientReference, e);
+				bundles.add(generateIssue("error",
+						String.format("Unable to build the coding gap report for %s: %s", patientReference,
+								e.getMessage())));
+			}
+		}
+		return bundles;
+	}
+
+	private List<Resource> getChunkResult(Future<List<Resource>> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while building coding gap reports", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Unable to build coding gap reports", e.getCause());
+		}
+	}
+
+	/**
+	 * Takes the identity and read partition of the caller, on the request thread,
+	 * for the work done on its behalf.
+	 *
+	 * @param requestDetails the request details of the caller
+	 * @return the caller request details
+	 */
+	public CallerRequestDetails getCallerRequestDetails(RequestDetails requestDetails) {
+		return CallerRequestDetails.of(requestDetails, requestPartitionHelper);
+	}
+
 	public void validateParameters(RequestDetails requestDetails) {
 		Operations.validateCardinality(requestDetails, RAConstants.PERIOD_START, 1);
 		Operations.validateCardinality(requestDetails, RAConstants.PERIOD_END, 1);
@@ -120,13 +262,13 @@ public class RACodingGapsProvider extends DaoRegistryOperationProvider
 
 	@Override
 	public void validateConfiguration(RequestDetails theRequestDetails) {
-		checkArgument(
-				raProperties.getComposition() != null
-						&& !Strings.isNullOrEmpty(raProperties.getComposition().getCompositionSectionAuthor()),
-				"The composition.ra_composition_section_author setting is required for the $ra.coding-gaps operation.");
-		compositionSectionAuthor = new IdType(raProperties.getComposition().getCompositionSectionAuthor());
 		// This will throw a ResourceNotFound exception if the Organization resource is
 		// not loaded in the server
-		author = read(compositionSectionAuthor);
+		compositionAuthorCache.get();
+	}
+
+	@Override
+	public MeasureReportIndex getMeasureReportIndex() {
+		return measureReportIndex;
 	}
 }
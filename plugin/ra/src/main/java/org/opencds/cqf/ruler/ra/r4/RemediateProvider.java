@@ -6,10 +6,16 @@ import org.opencds.cqf.fhir.utility.Ids;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.DetectedIssue;
@@ -19,7 +25,9 @@ import org.hl7.fhir.r4.model.Resource;
 import org.opencds.cqf.ruler.behavior.r4.ParameterUser;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
@@ -27,12 +35,22 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public class RemediateProvider extends DaoRegistryOperationProvider implements RiskAdjustmentUser, ParameterUser {
 
+	@Autowired
+	private RAProperties raProperties;
+
+	@Autowired(required = false)
+	private CodingGapReportHistory codingGapReportHistory;
+
+	@Autowired(required = false)
+	private CodingGapReportBundleReindexer codingGapReportBundleReindexer;
+
 	@Operation(name = "$ra.remediate-coding-gaps", idempotent = true, type = MeasureReport.class)
 	public Parameters remediate(
 			RequestDetails requestDetails,
 			@OperationParam(name = RAConstants.PERIOD_START, typeName = "date") IPrimitiveType<Date> periodStart,
 			@OperationParam(name = RAConstants.PERIOD_END, typeName = "date") IPrimitiveType<Date> periodEnd,
-			@OperationParam(name = RAConstants.SUBJECT) String subject) {
+			@OperationParam(name = RAConstants.SUBJECT) String subject,
+			@OperationParam(name = RAConstants.PERSIST) BooleanType persist) {
 
 		try {
 			validateParameters(requestDetails);
@@ -41,26 +59,59 @@ public class RemediateProvider extends DaoRegistryOperationProvider implements R
 					generateIssue(RAConstants.INVALID_PARAMETERS_SEVERITY, e.getMessage())));
 		}
 
-		List<Bundle> codingGapReportBundles = new ArrayList<>();
-		getPatientListFromSubject(subject).forEach(
-				patient -> {
-					Bundle b = getMostRecentCodingGapReportBundle(subject, periodStart.getValue(),
-							periodEnd.getValue());
-					MeasureReport mr = getReportFromBundle(b);
-					Composition composition = getCompositionFromBundle(b);
-					List<DetectedIssue> issues = getIssuesFromBundle(b);
-					Resource author = getAuthorFromBundle(b, composition);
-					issues.addAll(getAssociatedIssues(Ids.simple(mr)));
-					updateComposition(composition, mr, issues);
-					codingGapReportBundles.add(
-							buildCodingGapReportBundle(requestDetails.getFhirServerBase(), composition, issues, mr, author));
-				});
+		// rejected with GET before anything is written
+		CodingGapReportWriter writer = isPersistRequested(requestDetails, persist)
+				? new CodingGapReportWriter(getDaoRegistry(), raProperties.getPersist().getChunkSize(),
+						codingGapReportHistory)
+				: null;
+
+		ensureCodingGapReportBundleSearchParameters(requestDetails);
+
+		// Keyed by patient, in member order, with null entries for patients that have
+		// no coding gap report in the period
+		Map<String, CodingGapReportBundleEntries> mostRecentBundles = new LinkedHashMap<>();
+		getPatientIdsFromSubject(subject).forEachRemaining(patient -> {
+			Bundle b = getMostRecentCodingGapReportBundle(Ids.simple(patient), periodStart.getValue(),
+					periodEnd.getValue());
+			mostRecentBundles.put(Ids.simple(patient), b == null ? null : getCodingGapReportBundleEntries(b));
+		});
+		// The clinical evaluation issues of every report are searched together
+		Map<String, List<DetectedIssue>> associatedIssues = getAssociatedIssues(mostRecentBundles.values()
+				.stream().filter(Objects::nonNull).map(entries -> Ids.simple(entries.getReport()))
+				.collect(Collectors.toList()));
+
+		List<Resource> codingGapReportBundles = new ArrayList<>();
+		Map<String, Resource> resourceCache = new HashMap<>();
+		for (Map.Entry<String, CodingGapReportBundleEntries> mostRecentBundle : mostRecentBundles.entrySet()) {
+			CodingGapReportBundleEntries entries = mostRecentBundle.getValue();
+			if (entries == null) {
+				codingGapReportBundles.add(generateIssue("error", String.format(
+						"No coding gap report Bundle was found for %s in the period %s to %s",
+						mostRecentBundle.getKey(), periodStart.getValueAsString(), periodEnd.getValueAsString())));
+				continue;
+			}
+			MeasureReport mr = entries.getReport();
+			Composition composition = entries.getComposition();
+			List<DetectedIssue> issues = entries.getIssues();
+			Resource author = getAuthorFromBundle(entries, composition);
+			issues.addAll(associatedIssues.get(Ids.simple(mr)));
+			updateComposition(composition, mr, issues);
+			Bundle codingGapReportBundle = buildCodingGapReportBundle(requestDetails.getFhirServerBase(), composition,
+					issues, mr, author, resourceCache);
+			codingGapReportBundles.add(codingGapReportBundle);
+			if (writer != null) {
+				writer.add(codingGapReportBundle, List.of(composition));
+			}
+		}
 
 		Parameters result = new Parameters();
 		result.setId(RAConstants.REMEDIATE_ID_PREFIX + UUID.randomUUID());
-		for (Bundle codingGapReportBundle : codingGapReportBundles) {
+		for (Resource codingGapReportBundle : codingGapReportBundles) {
 			result.addParameter(part(RAConstants.RETURN_PARAM_NAME, codingGapReportBundle));
 		}
+		if (writer != null) {
+			result.addParameter(writer.finish());
+		}
 
 		return result;
 	}
@@ -74,4 +125,9 @@ public class RemediateProvider extends DaoRegistryOperationProvider implements R
 		Operations.validateSingularPattern(requestDetails, RAConstants.SUBJECT,
 				Operations.PATIENT_OR_GROUP_REFERENCE);
 	}
+
+	@Override
+	public CodingGapReportBundleReindexer getCodingGapReportBundleReindexer() {
+		return codingGapReportBundleReindexer;
+	}
 }
@@ -1,11 +1,21 @@
 package org.opencds.cqf.ruler.ra.r4;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.Extension;
@@ -15,32 +25,54 @@ import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Meta;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.OperationOutcome;
-
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.opencds.cqf.fhir.utility.monad.Either3;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
 import org.opencds.cqf.ruler.behavior.r4.MeasureReportUser;
+import org.opencds.cqf.ruler.behavior.r4.ParameterUser;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
+import org.opencds.cqf.ruler.ra.RAConfig;
 import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.beans.factory.annotation.Qualifier;
 
+import ca.uhn.fhir.cr.r4.IMeasureServiceFactory;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
 import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
 
 @Configurable
-public class RiskAdjustmentProvider extends DaoRegistryOperationProvider implements MeasureReportUser {
+public class RiskAdjustmentProvider extends DaoRegistryOperationProvider
+		implements MeasureReportUser, ParameterUser {
+
+	private static final Logger logger = LoggerFactory.getLogger(RiskAdjustmentProvider.class);
 
 	@Autowired
-	ca.uhn.fhir.cr.r4.measure.MeasureOperationsProvider measureEvaluateProvider;
+	IMeasureServiceFactory measureServiceFactory;
 
-	private String visited;
+	@Autowired
+	private RAProperties raProperties;
+
+	@Autowired
+	@Qualifier(RAConfig.RA_EXECUTOR_SERVICE)
+	private ExecutorService executorService;
+
+	@Autowired(required = false)
+	private IRequestPartitionHelperSvc requestPartitionHelper;
 
 	@Operation(name = "$davinci-ra.evaluate-measure", idempotent = true, type = Measure.class)
 	public Parameters evaluateRiskConditionCategory(
@@ -51,21 +83,106 @@ public class RiskAdjustmentProvider extends DaoRegistryOperationProvider impleme
 			@OperationParam(name = RAConstants.SUBJECT) String subject) {
 
 		try {
-			Operations.validateCardinality(requestDetails, RAConstants.PERIOD_START, 1);
-			Operations.validateCardinality(requestDetails, RAConstants.PERIOD_END, 1);
-			Operations.validateCardinality(requestDetails, RAConstants.SUBJECT, 1);
+			validateParameters(requestDetails);
 		} catch (Exception e) {
 			return parameters(part(RAConstants.INVALID_PARAMETERS_NAME,
 					generateIssue(RAConstants.INVALID_PARAMETERS_SEVERITY, e.getMessage())));
 		}
 
 		ensureSupplementalDataElementSearchParameter(requestDetails);
-		// measure report
-		MeasureReport unprocessedReport = measureEvaluateProvider.evaluateMeasure(
-				theId, periodStart.getValueAsString(), periodEnd.getValueAsString(), null, subject,
-				null, null, null, null, null, null, requestDetails);
 
 		Parameters riskAdjustmentParameters = new Parameters();
+		if (subject == null || !subject.startsWith("Group/")) {
+			riskAdjustmentParameters.addParameter(evaluateSubject(Eithers.forMiddle3(theId),
+					periodStart.getValueAsString(),
+					periodEnd.getValueAsString(), subject, requestDetails));
+			return riskAdjustmentParameters;
+		}
+
+		// This will throw a ResourceNotFound exception before any member is evaluated
+		// if the Measure is not loaded in the server. The Measure is read once and
+		// handed to every member evaluation.
+		Measure measure = read(theId, requestDetails);
+		CallerRequestDetails caller = CallerRequestDetails.of(requestDetails, requestPartitionHelper);
+		forEachMemberResult(measure, periodStart.getValueAsString(), periodEnd.getValueAsString(),
+				getPatientIdsFromSubject(subject, caller.newRequestDetails()), caller,
+				riskAdjustmentParameters::addParameter);
+		return riskAdjustmentParameters;
+	}
+
+	@Override
+	public void validateParameters(RequestDetails requestDetails) {
+		Operations.validateCardinality(requestDetails, RAConstants.PERIOD_START, 1);
+		Operations.validateCardinality(requestDetails, RAConstants.PERIOD_END, 1);
+		Operations.validateCardinality(requestDetails, RAConstants.SUBJECT, 1);
+	}
+
+	/**
+	 * Evaluates the Measure for each member on the RA executor and hands the
+	 * member results to the consumer in member order, as soon as each one and
+	 * those before it are done. At most twice as many members as there are worker
+	 * threads are in flight at once. The consumer is always called on the calling
+	 * thread.
+	 * <p>
+	 * RequestDetails is not thread-safe, so each member is evaluated with its own
+	 * request details from the caller, which carry the caller's tenant, headers,
+	 * user data and the read partition resolved once on the request thread.
+	 * <p>
+	 * The operation answers with one Parameters, so the results of every member
+	 * are held in memory until the last member is done. Groups are expected to be
+	 * sized so their results fit in one response; larger populations should be
+	 * split into several Groups, or their coding gaps read through the NDJSON
+	 * export at /ra-coding-gaps.
+	 */
+	private void forEachMemberResult(Measure measure, String periodStart, String periodEnd, Iterator<IdType> members,
+			CallerRequestDetails caller, Consumer<Parameters.ParametersParameterComponent> consumer) {
+		String measureId = measure.getIdElement().getIdPart();
+		int window = Math.max(1, raProperties.getParallelism().getThreads()) * 2;
+		Deque<Future<Parameters.ParametersParameterComponent>> futures = new ArrayDeque<>();
+		try {
+			while (members.hasNext()) {
+				IdType member = members.next();
+				if (futures.size() >= window) {
+					consumer.accept(getMemberResult(futures.removeFirst()));
+				}
+				String memberReference = Ids.simple(member);
+				futures.addLast(executorService.submit(() -> {
+					try {
+						return evaluateSubject(Eithers.forRight3(measure), periodStart, periodEnd, memberReference,
+								caller.newRequestDetails());
+					} catch (Exception e) {
+						logger.warn("Unable to evaluate {} for {}", measureId, memberReference, e);
+						return new Parameters.ParametersParameterComponent().setName(memberReference)
+								.setResource(generateIssue("error", String.format("Unable to evaluate %s for %s: %s",
+										measureId, memberReference, e.getMessage())));
+					}
+				}));
+			}
+			while (!futures.isEmpty()) {
+				consumer.accept(getMemberResult(futures.removeFirst()));
+			}
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private Parameters.ParametersParameterComponent getMemberResult(
+			Future<Parameters.ParametersParameterComponent> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while evaluating Group members", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Unable to evaluate Group members", e.getCause());
+		}
+	}
+
+	private Parameters.ParametersParameterComponent evaluateSubject(Either3<CanonicalType, IdType, Measure> measure,
+			String periodStart, String periodEnd, String subject, RequestDetails requestDetails) {
+		MeasureReport unprocessedReport = measureServiceFactory.create(requestDetails).evaluate(
+				measure, periodStart, periodEnd, null, subject,
+				null, null, null, null, null, null, null, null);
 
 		RiskAdjustmentReturnElement riskAdjustmentReturnElement = new RiskAdjustmentReturnElement(
 				unprocessedReport.getSubject().getReference(),
@@ -73,37 +190,55 @@ public class RiskAdjustmentProvider extends DaoRegistryOperationProvider impleme
 
 		resolveRiskAdjustmentReport(riskAdjustmentReturnElement);
 
-		riskAdjustmentParameters.addParameter()
+		return new Parameters.ParametersParameterComponent()
 				.setName(riskAdjustmentReturnElement.reference)
 				.setResource(riskAdjustmentReturnElement.getRiskAdjustmentOutcome());
+	}
 
-		return riskAdjustmentParameters;
+	// Package-private so the post-processing can be timed without evaluating a
+	// Measure
+	Resource processReport(MeasureReport unprocessedReport) {
+		RiskAdjustmentReturnElement riskAdjustmentReturnElement = new RiskAdjustmentReturnElement(
+				unprocessedReport.getSubject().getReference(), unprocessedReport);
+		resolveRiskAdjustmentReport(riskAdjustmentReturnElement);
+		return riskAdjustmentReturnElement.error == null ? riskAdjustmentReturnElement.processedReport
+				: riskAdjustmentReturnElement.error;
 	}
 
 	private void resolveRiskAdjustmentReport(RiskAdjustmentReturnElement riskAdjustmentReturnElement) {
-
-
+		// The evidence date is the same for every group of the report
+		Extension evidenceStatusDate = resolveEvidenceStatusDate(riskAdjustmentReturnElement);
 		for (MeasureReport.MeasureReportGroupComponent group : riskAdjustmentReturnElement.unprocessedReport.getGroup()) {
 			CodeableConcept hccCode = group.getCode();
-			visited = null;
+			riskAdjustmentReturnElement.visited = null;
 			for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
 				CodeableConcept stratifierPopCode = stratifier.getCodeFirstRep();
+				String population = stratifierPopCode.hasCoding() ? stratifierPopCode.getCodingFirstRep().getCode()
+						: null;
+				if (!RAConstants.HISTORIC_CODE.equals(population) && !RAConstants.SUSPECTED_CODE.equals(population)
+						&& !RAConstants.NET_NEW_CODE.equals(population)) {
+					continue;
+				}
 
 				for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
 					CodeableConcept value = stratum.getValue();
+					// only the strata that include the subject are resolved
+					if (value == null || !value.hasText() || !value.getText().equalsIgnoreCase("true")) {
+						continue;
+					}
 					Quantity score = stratum.getMeasureScore();
 
-					if (stratifierPopCode.hasCoding() && stratifierPopCode.getCodingFirstRep().getCode().equals(RAConstants.HISTORIC_CODE)) {
+					if (population.equals(RAConstants.HISTORIC_CODE)) {
 
-						resolveGroup(riskAdjustmentReturnElement, new Historic(hccCode, value, score, resolveEvidenceStatusDate(riskAdjustmentReturnElement)));
+						resolveGroup(riskAdjustmentReturnElement, new Historic(hccCode, value, score, evidenceStatusDate));
 
-					} else if (stratifierPopCode.hasCoding() && stratifierPopCode.getCodingFirstRep().getCode().equals(RAConstants.SUSPECTED_CODE)) {
+					} else if (population.equals(RAConstants.SUSPECTED_CODE)) {
 
-						resolveGroup(riskAdjustmentReturnElement, new Suspected(hccCode, value, score, resolveEvidenceStatusDate(riskAdjustmentReturnElement)));
+						resolveGroup(riskAdjustmentReturnElement, new Suspected(hccCode, value, score, evidenceStatusDate));
 
-					} else if (stratifierPopCode.hasCoding() && stratifierPopCode.getCodingFirstRep().getCode().equals(RAConstants.NET_NEW_CODE)) {
+					} else {
 
-						resolveGroup(riskAdjustmentReturnElement, new NetNew(hccCode, value, score, resolveEvidenceStatusDate(riskAdjustmentReturnElement)));
+						resolveGroup(riskAdjustmentReturnElement, new NetNew(hccCode, value, score, evidenceStatusDate));
 					}
 				}
 			}
@@ -114,17 +249,17 @@ public class RiskAdjustmentProvider extends DaoRegistryOperationProvider impleme
 			RiskAdjustmentGroup riskAdjustmentGroup) {
 		if (riskAdjustmentGroup.value != null && riskAdjustmentGroup.value.hasText()
 				&& riskAdjustmentGroup.value.getText().equalsIgnoreCase("true")) {
-			if (visited != null) {
+			if (riskAdjustmentReturnElement.visited != null) {
 				riskAdjustmentReturnElement.createIssue(
 						String.format(
 								"Disjoint populations found. The %s and %s populations cannot be included in the same group",
-								visited, riskAdjustmentGroup.name));
+								riskAdjustmentReturnElement.visited, riskAdjustmentGroup.name));
 			} else if (riskAdjustmentGroup instanceof NetNew && riskAdjustmentGroup.score.hasValue()
 					&& riskAdjustmentGroup.score.getValue().intValue() == 0) {
 				riskAdjustmentReturnElement.createIssue("Invalid open gap detected for net-new population");
 			} else {
 				riskAdjustmentReturnElement.processedReport.addGroup(riskAdjustmentGroup.resolveGroup());
-				visited = riskAdjustmentGroup.name;
+				riskAdjustmentReturnElement.visited = riskAdjustmentGroup.name;
 			}
 		}
 	}
@@ -209,22 +344,50 @@ public class RiskAdjustmentProvider extends DaoRegistryOperationProvider impleme
 		}
 	}
 
+	// Holds all of the state of one evaluation; the provider itself is shared
+	// between requests and must stay stateless
 	private class RiskAdjustmentReturnElement {
 		String reference;
 		MeasureReport unprocessedReport;
 		MeasureReport processedReport;
 		OperationOutcome error;
+		// the population already included for the group being resolved
+		String visited;
 
 		RiskAdjustmentReturnElement(String reference, MeasureReport unprocessedReport) {
 			this.reference = reference;
 			this.unprocessedReport = unprocessedReport;
-			this.processedReport = new MeasureReport();
-			this.unprocessedReport.copyValues(this.processedReport);
-			//this.processedReport.getGroup().clear();
+			this.processedReport = shallowCopy(unprocessedReport);
 			this.processedReport.setMeta(
 					new Meta().addProfile(RAConstants.PATIENT_REPORT_URL));
 		}
 
+		// The unprocessed report is discarded once it is resolved, so the processed
+		// report takes its elements as they are rather than a deep copy of them. The
+		// group list is the only one that is added to, so it is the only one copied.
+		private MeasureReport shallowCopy(MeasureReport report) {
+			MeasureReport copy = new MeasureReport();
+			copy.setIdElement(report.getIdElement());
+			copy.setImplicitRulesElement(report.getImplicitRulesElement());
+			copy.setLanguageElement(report.getLanguageElement());
+			copy.setText(report.getText());
+			copy.setContained(report.getContained());
+			copy.setExtension(report.getExtension());
+			copy.setModifierExtension(report.getModifierExtension());
+			copy.setIdentifier(report.getIdentifier());
+			copy.setStatusElement(report.getStatusElement());
+			copy.setTypeElement(report.getTypeElement());
+			copy.setMeasureElement(report.getMeasureElement());
+			copy.setSubject(report.getSubject());
+			copy.setDateElement(report.getDateElement());
+			copy.setReporter(report.getReporter());
+			copy.setPeriod(report.getPeriod());
+			copy.setImprovementNotation(report.getImprovementNotation());
+			copy.setGroup(new ArrayList<>(report.getGroup()));
+			copy.setEvaluatedResource(report.getEvaluatedResource());
+			return copy;
+		}
+
 		void createIssue(String issue) {
 			this.error = generateIssue(RAConstants.INVALID_PARAMETERS_SEVERITY, issue);
 		}
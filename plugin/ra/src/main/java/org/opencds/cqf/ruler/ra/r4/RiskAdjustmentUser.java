@@ -4,21 +4,29 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.Enumerations.SearchParamType;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.MeasureReport;
@@ -26,101 +34,269 @@ import org.hl7.fhir.r4.model.Meta;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.SearchParameter;
+import org.hl7.fhir.r4.model.SearchParameter.XPathUsageType;
 import org.hl7.fhir.r4.model.StringType;
 import org.opencds.cqf.fhir.utility.Canonicals;
 import org.opencds.cqf.fhir.utility.Ids;
 import org.opencds.cqf.ruler.behavior.r4.MeasureReportUser;
 import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.utility.Operations;
+import org.opencds.cqf.ruler.utility.Searches;
+
+import com.google.common.collect.Lists;
 
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.SortOrderEnum;
 import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import ca.uhn.fhir.rest.param.UriOrListParam;
 import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.BundleUtil;
 
 public interface RiskAdjustmentUser extends MeasureReportUser {
 
+	/**
+	 * Returns the MeasureReport index used to find the reports of a subject, or
+	 * null to search for them.
+	 *
+	 * @return the index
+	 */
+	default MeasureReportIndex getMeasureReportIndex() {
+		return null;
+	}
+
+	/**
+	 * Returns the reindexer that tells whether coding gap report Bundles can be
+	 * searched through their subject and report date search parameters, or null
+	 * to always scan them.
+	 *
+	 * @return the reindexer
+	 */
+	default CodingGapReportBundleReindexer getCodingGapReportBundleReindexer() {
+		return null;
+	}
+
 	default List<MeasureReport> getMeasureReports(
 			String subject, String periodStart, String periodEnd) {
+		return getMeasureReports(subject, periodStart, periodEnd, null);
+	}
+
+	/**
+	 * Returns the MeasureReports of a subject in a period, read with the given
+	 * request details. Where the index is used, it only gives the ids, and the
+	 * reports themselves are read with the request details.
+	 *
+	 * @param subject        the subject reference
+	 * @param periodStart    the start of the period
+	 * @param periodEnd      the end of the period
+	 * @param requestDetails multi-tenancy information
+	 * @return the MeasureReports
+	 */
+	default List<MeasureReport> getMeasureReports(
+			String subject, String periodStart, String periodEnd, RequestDetails requestDetails) {
+		List<MeasureReport> indexed = getIndexedMeasureReports(subject, periodStart, periodEnd, null,
+				requestDetails);
+		if (indexed != null)
+			return indexed;
 		return search(MeasureReport.class,
 				SearchParameterMap.newSynchronous()
 						.add(MeasureReport.SP_SUBJECT, new ReferenceParam(subject))
-						.add(MeasureReport.SP_PERIOD, new DateRangeParam(periodStart, periodEnd)))
+						.add(MeasureReport.SP_PERIOD, new DateRangeParam(periodStart, periodEnd)),
+				requestDetails)
 				.getAllResourcesTyped();
 	}
 
 	default List<MeasureReport> getMeasureReportsWithMeasureReference(
 			String subject, String periodStart, String periodEnd, List<String> measureReference) {
+		Predicate<String> measureFilter = measure -> {
+			for (String ref : measureReference) {
+				if (measure.endsWith(ref))
+					return true;
+			}
+			return false;
+		};
+		List<MeasureReport> indexed = getIndexedMeasureReports(subject, periodStart, periodEnd, measureFilter, null);
+		if (indexed != null)
+			return indexed;
 		return getMeasureReports(subject, periodStart, periodEnd).stream().filter(
-				report -> {
-					if (report.hasMeasure()) {
-						for (String ref : measureReference) {
-							if (report.getMeasure().endsWith(ref))
-								return true;
-						}
-					}
-					return false;
-				}).collect(Collectors.toList());
+				report -> report.hasMeasure() && measureFilter.test(report.getMeasure())).collect(Collectors.toList());
+	}
+
+	// Only the reports the index keeps are read, in index order
+	private List<MeasureReport> getIndexedMeasureReports(String subject, String periodStart, String periodEnd,
+			Predicate<String> measureFilter, RequestDetails requestDetails) {
+		MeasureReportIndex index = getMeasureReportIndex();
+		List<IdType> ids = index == null ? null : index.find(subject, periodStart, periodEnd, measureFilter);
+		if (ids == null)
+			return null;
+		Map<String, Resource> resources = new HashMap<>();
+		readResources(ids, resources, requestDetails);
+		List<MeasureReport> reports = new ArrayList<>(ids.size());
+		for (IdType id : ids) {
+			Resource resource = resources.get(Ids.simple(id));
+			if (resource instanceof MeasureReport)
+				reports.add((MeasureReport) resource);
+		}
+		return reports;
 	}
 
-	default List<Bundle> getMostRecentCodingGapReportBundles(String subject) {
-		// Something like the following should work, but the composition search
-		// parameter doesn't appear to be implemented
-		// return search(Bundle.class, SearchParameterMap.newSynchronous()
-		// .add(Bundle.SP_TYPE, new TokenParam("document"))
-		// .add(Bundle.SP_COMPOSITION, new ReferenceParam("Composition",
-		// Composition.SP_SUBJECT, subject))
-		// .setSort(new SortSpec(Bundle.SP_TIMESTAMP,
-		// SortOrderEnum.DESC))).getAllResourcesTyped();
-		return search(Bundle.class, SearchParameterMap.newSynchronous()
+	/**
+	 * Returns whether the results of an RA workflow operation are to be stored.
+	 * The operations can be invoked with GET, which must not change data, so
+	 * persist is only accepted on a POST.
+	 *
+	 * @param requestDetails metadata about the current request being processed
+	 * @param persist        the persist parameter of the operation, or null
+	 * @return true if persist is set
+	 * @throws InvalidRequestException if persist is set on a GET request
+	 */
+	default boolean isPersistRequested(RequestDetails requestDetails, BooleanType persist) {
+		if (persist == null || !persist.booleanValue())
+			return false;
+		if (requestDetails.getRequestType() == RequestTypeEnum.GET) {
+			throw new InvalidRequestException(
+					"The " + RAConstants.PERSIST + " parameter changes data and is not supported with GET; use POST");
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the Bundle search parameters used to look up coding gap report
+	 * Bundles by the subject of their Composition and the date of their
+	 * MeasureReports, if they are not already present on the server.
+	 *
+	 * @param requestDetails metadata about the current request being processed
+	 */
+	default void ensureCodingGapReportBundleSearchParameters(RequestDetails requestDetails) {
+		ensureBundleSearchParameter(requestDetails, RAConstants.CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_URL,
+				RAConstants.CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_CODE, "RACodingGapBundleSubject",
+				SearchParamType.REFERENCE, "Bundle.entry[0].resource.as(Composition).subject",
+				"Returns coding gap report Bundles by the subject of their Composition.");
+		ensureBundleSearchParameter(requestDetails, RAConstants.CODING_GAP_BUNDLE_REPORT_DATE_SEARCHPARAMETER_URL,
+				RAConstants.CODING_GAP_BUNDLE_REPORT_DATE_SEARCHPARAMETER_CODE, "RACodingGapBundleReportDate",
+				SearchParamType.DATE, "Bundle.entry.resource.ofType(MeasureReport).date",
+				"Returns coding gap report Bundles by the date of their MeasureReports.");
+	}
+
+	private void ensureBundleSearchParameter(RequestDetails requestDetails, String url, String code, String name,
+			SearchParamType type, String expression, String description) {
+		ensureSearchParameter(url,
+				() -> createBundleSearchParameter(requestDetails, url, code, name, type, expression, description));
+	}
+
+	private void createBundleSearchParameter(RequestDetails requestDetails, String url, String code, String name,
+			SearchParamType type, String expression, String description) {
+		if (!search(SearchParameter.class, Searches.byUrl(url), requestDetails).isEmpty())
+			return;
+
+		SearchParameter searchParameter = new SearchParameter()
+				.setUrl(url)
+				.setName(name)
+				.setStatus(PublicationStatus.ACTIVE)
+				.setDescription(description)
+				.addBase("Bundle")
+				.setCode(code)
+				.setType(type)
+				.setExpression(expression)
+				.setXpathUsage(XPathUsageType.NORMAL);
+
+		searchParameter.setId("ra-coding-gap-bundle-" + code.replace("ra-", ""));
+
+		create(searchParameter, requestDetails);
+	}
+
+	default SearchParameterMap getCodingGapReportBundleSearch() {
+		return SearchParameterMap.newSynchronous()
 				.add(Bundle.SP_TYPE, new TokenParam("document"))
 				.add("_profile", new UriParam(RAConstants.CODING_GAP_BUNDLE_URL))
-				.setSort(new SortSpec(Bundle.SP_TIMESTAMP, SortOrderEnum.DESC)))
-				.getAllResourcesTyped();
+				// Bundles precomputed for $ra.coding-gaps are not part of a subject's history
+				.add("_tag", new TokenParam(RAConstants.PRECOMPUTED_TAG_SYSTEM, RAConstants.PRECOMPUTED_TAG_CODE)
+						.setModifier(TokenParamModifier.NOT))
+				.setSort(new SortSpec(Bundle.SP_TIMESTAMP, SortOrderEnum.DESC));
+	}
+
+	default List<Bundle> getMostRecentCodingGapReportBundles(String subject) {
+		return getMostRecentCodingGapReportBundles(subject, null, null, null);
+	}
+
+	/**
+	 * Searches the coding gap report Bundles of a subject, newest first, through
+	 * the subject and report date search parameters created by
+	 * {@link #ensureCodingGapReportBundleSearchParameters(RequestDetails)}. Until
+	 * the {@link CodingGapReportBundleReindexer} reports that every coding gap
+	 * report Bundle is indexed by those search parameters, every coding gap report
+	 * Bundle is scanned and filtered instead.
+	 *
+	 * @param subject     the subject of the Composition
+	 * @param periodStart the earliest MeasureReport date, or null for any
+	 * @param periodEnd   the latest MeasureReport date, or null for any
+	 * @param count       the maximum number of Bundles to return, or null for all
+	 * @return the matching Bundles ordered by timestamp, newest first
+	 */
+	default List<Bundle> getMostRecentCodingGapReportBundles(String subject, Date periodStart, Date periodEnd,
+			Integer count) {
+		CodingGapReportBundleReindexer reindexer = getCodingGapReportBundleReindexer();
+		if (reindexer == null || !reindexer.isIndexed()) {
+			return search(Bundle.class, getCodingGapReportBundleSearch()).getAllResourcesTyped().stream()
+					.filter(bundle -> isCodingGapReportBundleFor(bundle, subject, periodStart, periodEnd))
+					.limit(count == null ? Long.MAX_VALUE : count)
+					.collect(Collectors.toList());
+		}
+
+		SearchParameterMap searchParameterMap = getCodingGapReportBundleSearch()
+				.add(RAConstants.CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_CODE, new ReferenceParam(subject));
+		if (periodStart != null && periodEnd != null) {
+			searchParameterMap.add(RAConstants.CODING_GAP_BUNDLE_REPORT_DATE_SEARCHPARAMETER_CODE,
+					new DateRangeParam(periodStart, periodEnd));
+		}
+		if (count != null) {
+			searchParameterMap.setCount(count);
+		}
+
+		return search(Bundle.class, searchParameterMap).getAllResourcesTyped();
+	}
+
+	default boolean isCodingGapReportBundleFor(Bundle bundle, String subject, Date periodStart, Date periodEnd) {
+		return bundle.hasEntry() && bundle.getEntryFirstRep().hasResource()
+				&& bundle.getEntryFirstRep().getResource() instanceof Composition
+				&& ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference()
+						.endsWith(subject)
+				&& (periodStart == null || periodEnd == null || bundle.getEntry().stream().anyMatch(
+						entry -> entry.hasResource() && entry.getResource() instanceof MeasureReport
+								&& ((MeasureReport) entry.getResource()).hasDate()
+								&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodStart) >= 0
+								&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodEnd) <= 0));
 	}
 
 	default Bundle getMostRecentCodingGapReportBundle(String subject) {
-		return getMostRecentCodingGapReportBundles(subject).stream().filter(
-				bundle -> bundle.hasEntry() && bundle.getEntryFirstRep().hasResource()
-						&& bundle.getEntryFirstRep().getResource() instanceof Composition
-						&& ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference()
-								.endsWith(subject))
-				.collect(Collectors.toList()).stream().findFirst().orElse(null);
+		return getMostRecentCodingGapReportBundles(subject, null, null, 1).stream().findFirst().orElse(null);
 	}
 
 	default Bundle getMostRecentCodingGapReportBundle(String subject, Date periodStart, Date periodEnd) {
-		return getMostRecentCodingGapReportBundles(subject).stream().filter(
-				bundle -> bundle.hasEntry() && bundle.getEntryFirstRep().hasResource()
-						&& bundle.getEntryFirstRep().getResource() instanceof Composition
-						&& ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference()
-								.endsWith(subject)
-						&& bundle.getEntry().stream().anyMatch(
-								entry -> entry.hasResource() && entry.getResource() instanceof MeasureReport
-										&& ((MeasureReport) entry.getResource()).hasDate()
-										&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodStart) >= 0
-										&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodEnd) <= 0))
-				.collect(Collectors.toList()).stream().findFirst().orElse(null);
+		return getMostRecentCodingGapReportBundles(subject, periodStart, periodEnd, 1).stream().findFirst()
+				.orElse(null);
 	}
 
 	default Bundle getMostRecentCodingGapReportBundle(String subject, String measureId, Date periodStart,
 			Date periodEnd) {
-		return getMostRecentCodingGapReportBundles(subject).stream().filter(
-				bundle -> bundle.hasEntry() && bundle.getEntryFirstRep().hasResource()
-						&& bundle.getEntryFirstRep().getResource() instanceof Composition
-						&& ((Composition) bundle.getEntryFirstRep().getResource()).getSubject().getReference()
-								.endsWith(subject)
-						&& bundle.getEntry().stream().anyMatch(
-								entry -> entry.hasResource() && entry.getResource() instanceof MeasureReport
-										&& ((MeasureReport) entry.getResource()).hasMeasure()
-										&& ((MeasureReport) entry.getResource()).getMeasure().endsWith(measureId)
-										&& ((MeasureReport) entry.getResource()).hasDate()
-										&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodStart) >= 0
-										&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodEnd) <= 0))
-				.collect(Collectors.toList()).stream().findFirst().orElse(null);
+		// The measure is not indexed, so filter the subject's Bundles for the period
+		return getMostRecentCodingGapReportBundles(subject, periodStart, periodEnd, null).stream().filter(
+				bundle -> bundle.getEntry().stream().anyMatch(
+						entry -> entry.hasResource() && entry.getResource() instanceof MeasureReport
+								&& ((MeasureReport) entry.getResource()).hasMeasure()
+								&& ((MeasureReport) entry.getResource()).getMeasure().endsWith(measureId)
+								&& ((MeasureReport) entry.getResource()).hasDate()
+								&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodStart) >= 0
+								&& ((MeasureReport) entry.getResource()).getDate().compareTo(periodEnd) <= 0))
+				.findFirst().orElse(null);
 	}
 
 	default List<MeasureReport> getReportsFromBundles(List<Bundle> bundles) {
@@ -131,22 +307,35 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 		return reports;
 	}
 
+	/**
+	 * Reads the entries of a coding gap report Bundle once, to be shared by the
+	 * Composition, MeasureReport, DetectedIssue and author lookups of the Bundle.
+	 *
+	 * @param bundle the coding gap report Bundle
+	 * @return the entries of the Bundle
+	 */
+	default CodingGapReportBundleEntries getCodingGapReportBundleEntries(Bundle bundle) {
+		return new CodingGapReportBundleEntries(bundle);
+	}
+
 	default Composition getCompositionFromBundle(Bundle bundle) {
-		return BundleUtil.toListOfResourcesOfType(
-				getFhirContext(), bundle, Composition.class).stream().findFirst().orElse(null);
+		return getCodingGapReportBundleEntries(bundle).getComposition();
 	}
 
 	default MeasureReport getReportFromBundle(Bundle bundle) {
-		return BundleUtil.toListOfResourcesOfType(
-				getFhirContext(), bundle, MeasureReport.class).stream().findFirst().orElse(null);
+		return getCodingGapReportBundleEntries(bundle).getReport();
 	}
 
 	default List<DetectedIssue> getIssuesFromBundle(Bundle bundle) {
-		return BundleUtil.toListOfResourcesOfType(getFhirContext(), bundle, DetectedIssue.class);
+		return getCodingGapReportBundleEntries(bundle).getIssues();
 	}
 
 	default List<DetectedIssue> getMostRecentIssuesFromBundle(Bundle bundle) {
-		List<DetectedIssue> issues = BundleUtil.toListOfResourcesOfType(getFhirContext(), bundle, DetectedIssue.class);
+		return getMostRecentIssuesFromBundle(getCodingGapReportBundleEntries(bundle));
+	}
+
+	default List<DetectedIssue> getMostRecentIssuesFromBundle(CodingGapReportBundleEntries entries) {
+		List<DetectedIssue> issues = entries.getIssues();
 		// Sort issues by lastUpdated date
 		issues.sort((issue1, issue2) -> {
 			if (issue1.hasMeta() && issue1.getMeta().hasLastUpdated()
@@ -155,7 +344,7 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 			}
 			throw new IllegalArgumentException(String.format(
 					"All DetectedIssue resources within %s must have the lastUpdated meta property",
-					bundle.getIdElement()));
+					entries.getBundle().getIdElement()));
 		});
 		return issues;
 	}
@@ -194,10 +383,51 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 	}
 
 	default List<DetectedIssue> getAllIssues(String measureReportReference) {
-		List<DetectedIssue> allIssues = new ArrayList<>();
-		allIssues.addAll(getOriginalIssues(measureReportReference));
-		allIssues.addAll(getAssociatedIssues(measureReportReference));
-		return allIssues;
+		return search(DetectedIssue.class, SearchParameterMap.newSynchronous()
+				.add(DetectedIssue.SP_IMPLICATED, new ReferenceParam(measureReportReference))
+				.add("_profile", new UriOrListParam()
+						.addOr(new UriParam(RAConstants.ORIGINAL_ISSUE_PROFILE_URL))
+						.addOr(new UriParam(RAConstants.CLINICAL_EVALUATION_ISSUE_PROFILE_URL))))
+				.getAllResourcesTyped();
+	}
+
+	/**
+	 * Gets the clinical evaluation issues of many MeasureReports, searching
+	 * {@link MeasureReportUser#MAX_IDS_PER_SEARCH} reports at a time.
+	 *
+	 * @param measureReportReferences the MeasureReport references, as Type/id
+	 * @return the issues of each report, in the order of the references
+	 */
+	default Map<String, List<DetectedIssue>> getAssociatedIssues(Collection<String> measureReportReferences) {
+		return getIssuesByReport(measureReportReferences, RAConstants.CLINICAL_EVALUATION_ISSUE_PROFILE_URL);
+	}
+
+	private Map<String, List<DetectedIssue>> getIssuesByReport(Collection<String> measureReportReferences,
+			String... profiles) {
+		Map<String, List<DetectedIssue>> issuesByReport = new LinkedHashMap<>();
+		measureReportReferences.forEach(reference -> issuesByReport.put(reference, new ArrayList<>()));
+
+		UriOrListParam profileParam = new UriOrListParam();
+		for (String profile : profiles) {
+			profileParam.addOr(new UriParam(profile));
+		}
+		for (List<String> batch : Lists.partition(new ArrayList<>(issuesByReport.keySet()), MAX_IDS_PER_SEARCH)) {
+			ReferenceOrListParam implicatedParam = new ReferenceOrListParam();
+			batch.forEach(reference -> implicatedParam.addOr(new ReferenceParam(reference)));
+			for (DetectedIssue issue : search(DetectedIssue.class, SearchParameterMap.newSynchronous()
+					.add(DetectedIssue.SP_IMPLICATED, implicatedParam)
+					.add("_profile", profileParam)).getAllResourcesTyped()) {
+				// an issue is listed once for each report of the batch that it implicates
+				Set<String> implicated = new HashSet<>();
+				for (Reference reference : issue.getImplicated()) {
+					String key = reference.getReferenceElement().toUnqualifiedVersionless().getValue();
+					if (issuesByReport.containsKey(key) && implicated.add(key)) {
+						issuesByReport.get(key).add(issue);
+					}
+				}
+			}
+		}
+		return issuesByReport;
 	}
 
 	default List<Reference> getEvidenceById(String groupId, MeasureReport report) {
@@ -221,21 +451,30 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 	}
 
 	default Resource getAuthorFromBundle(Bundle bundle, Composition composition) {
+		return getAuthorFromBundle(getCodingGapReportBundleEntries(bundle), composition);
+	}
+
+	default Resource getAuthorFromBundle(CodingGapReportBundleEntries entries, Composition composition) {
 		checkArgument(
 				composition.hasAuthor() && composition.getAuthorFirstRep() != null,
 				String.format("The author element is required for the composition (id=%s).",
 						composition.hasIdElement() ? composition.getIdElement().getIdPart() : "null"));
 
 		Reference author = composition.getAuthor().get(0);
-		Optional<Bundle.BundleEntryComponent> authorResource = bundle.getEntry().stream()
-				.filter(entry -> entry.getResource().hasIdElement() && entry.getResource().getIdElement().getIdPart()
-						.equals(author.getReferenceElement().getIdPart()))
-				.findFirst();
+		Map<String, Resource> byReference = entries.getByReference();
+		IIdType authorId = author.getReferenceElement();
+		// an exact fullUrl or simple id match first, then any entry with the same id
+		Resource authorResource = author.hasReference() ? byReference.get(author.getReference()) : null;
+		if (authorResource == null && authorId.hasResourceType() && authorId.hasIdPart())
+			authorResource = byReference.get(Ids.simple(authorId));
+		if (authorResource == null && authorId.hasIdPart())
+			authorResource = byReference.get(authorId.getIdPart());
+		Bundle bundle = entries.getBundle();
 		checkArgument(
-				authorResource.isPresent(),
+				authorResource != null,
 				String.format("The author resource is a required entry in the bundle (id=%s).",
 						bundle.hasIdElement() ? bundle.getIdElement().getIdPart() : "null"));
-		return authorResource.get().getResource();
+		return authorResource;
 	}
 
 	default DetectedIssue buildOriginalIssueStart(MeasureReport report, String groupId) {
@@ -430,12 +669,32 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 
 	default Bundle buildCodingGapReportBundle(String serverBase, Composition composition, List<DetectedIssue> issues,
 			MeasureReport report, Resource author) {
+		return buildCodingGapReportBundle(serverBase, composition, issues, report, author, new HashMap<>());
+	}
+
+	/**
+	 * Builds a coding gap report Bundle. The evidence of the issues and the
+	 * evaluated resources of the report are read together, with one search per
+	 * resource type, into a resource map that can be shared by every Bundle
+	 * built for the same request.
+	 *
+	 * @param serverBase    the base url used for Bundle entry fullUrls
+	 * @param composition   the Composition
+	 * @param issues        the DetectedIssues
+	 * @param report        the MeasureReport
+	 * @param author        the Composition author, or null
+	 * @param resourceCache the resources already read for this request, keyed by
+	 *                      simple id
+	 * @return the coding gap report Bundle
+	 */
+	default Bundle buildCodingGapReportBundle(String serverBase, Composition composition, List<DetectedIssue> issues,
+			MeasureReport report, Resource author, Map<String, Resource> resourceCache) {
 		Bundle codingGapReportBundle = startCodingGapReportBundle();
 		codingGapReportBundle.addEntry(getBundleEntry(serverBase, composition));
-		Map<String, Resource> evaluatedResources = new HashMap<>();
+		List<IIdType> referencedIds = new ArrayList<>();
 		for (DetectedIssue issue : issues) {
 			codingGapReportBundle.addEntry(getBundleEntry(serverBase, issue));
-			evaluatedResources.putAll(getEvidenceResources(issue));
+			referencedIds.addAll(getEvidenceIds(issue));
 		}
 		codingGapReportBundle.addEntry(getBundleEntry(serverBase, report));
 
@@ -443,10 +702,18 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 			codingGapReportBundle.addEntry(getBundleEntry(serverBase, author));
 		}
 
-		getEvaluatedResources(report, evaluatedResources);
-
-		for (Map.Entry<String, Resource> evaluatedResourcesSet : evaluatedResources.entrySet()) {
-			codingGapReportBundle.addEntry(getBundleEntry(serverBase, evaluatedResourcesSet.getValue()));
+		report.getEvaluatedResource().forEach(
+				evaluatedResource -> referencedIds.add(evaluatedResource.getReferenceElement()));
+		readResources(referencedIds, resourceCache);
+
+		Set<String> added = new HashSet<>();
+		for (IIdType referencedId : referencedIds) {
+			if (referencedId.getResourceType() == null || !added.add(Ids.simple(referencedId)))
+				continue;
+			Resource resource = resourceCache.get(Ids.simple(referencedId));
+			if (resource != null) {
+				codingGapReportBundle.addEntry(getBundleEntry(serverBase, resource));
+			}
 		}
 
 		return codingGapReportBundle;
@@ -458,19 +725,24 @@ public interface RiskAdjustmentUser extends MeasureReportUser {
 		return codingGapReportBundle;
 	}
 
-	default Map<String, Resource> getEvidenceResources(DetectedIssue issue) {
-		Map<String, Resource> evidenceResources = new HashMap<>();
+	default List<IIdType> getEvidenceIds(DetectedIssue issue) {
+		List<IIdType> evidenceIds = new ArrayList<>();
 		for (DetectedIssue.DetectedIssueEvidenceComponent evidence : issue.getEvidence()) {
 			if (evidence.hasDetail()) {
 				for (Reference detail : evidence.getDetail()) {
 					if (detail.getReference().startsWith("MeasureReport/"))
 						continue;
-					evidenceResources.put(Ids.simple(new IdType(detail.getReference())),
-							read(new IdType(detail.getReference())));
+					evidenceIds.add(new IdType(detail.getReference()));
 				}
 			}
 		}
 
+		return evidenceIds;
+	}
+
+	default Map<String, Resource> getEvidenceResources(DetectedIssue issue) {
+		Map<String, Resource> evidenceResources = new HashMap<>();
+		readResources(getEvidenceIds(issue), evidenceResources);
 		return evidenceResources;
 	}
 
@@ -3,18 +3,24 @@ package org.opencds.cqf.ruler.ra.r4;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.booleanPart;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.SearchParameter;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.ra.RAProperties;
 import org.opencds.cqf.ruler.test.RestIntegrationTest;
 import org.opencds.cqf.ruler.test.utility.Urls;
@@ -22,6 +28,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.annotation.DirtiesContext;
 
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
 @DirtiesContext
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
 		RAConfig.class }, properties = { "hapi.fhir.fhir_version=r4",
@@ -85,5 +93,136 @@ class ApproveProviderIT extends RestIntegrationTest {
 						}
 					}
 				});
+
+		// check that the coding gap report Bundle search parameters were created
+		Bundle searchParameters = getClient().search().forResource(SearchParameter.class)
+				.where(SearchParameter.URL.matches().values(
+						RAConstants.CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_URL,
+						RAConstants.CODING_GAP_BUNDLE_REPORT_DATE_SEARCHPARAMETER_URL))
+				.returnBundle(Bundle.class).execute();
+		assertEquals(2, searchParameters.getEntry().size());
+	}
+
+	@DirtiesContext
+	@Test
+	void testApprovePersist() {
+		loadApproveResources();
+
+		Parameters result = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.approve-coding-gaps").withParameters(approveParameters(true))
+				.returnResourceType(Parameters.class).execute();
+
+		assertEquals(2, result.getParameter().size());
+		Parameters.ParametersParameterComponent persisted = result.getParameter(RAConstants.PERSISTED_PARAM_NAME);
+		assertEquals(1, getCount(persisted, "patients"));
+		assertEquals(1, getCount(persisted, "Bundle"));
+		assertEquals(0, getCount(persisted, "failed"));
+
+		// the stored DetectedIssues match the returned Bundle
+		Bundle raBundle = (Bundle) result.getParameter(RAConstants.RETURN_PARAM_NAME).getResource();
+		int issues = 0;
+		for (Bundle.BundleEntryComponent entry : raBundle.getEntry()) {
+			if (entry.getResource() instanceof DetectedIssue) {
+				DetectedIssue returned = (DetectedIssue) entry.getResource();
+				DetectedIssue stored = getClient().read().resource(DetectedIssue.class)
+						.withId(returned.getIdElement().getIdPart()).execute();
+				assertEquals(returned.getStatus(), stored.getStatus());
+				issues++;
+			}
+		}
+		assertTrue(issues > 0);
+		assertEquals(issues, getCount(persisted, "DetectedIssue"));
+		// the new Bundle is stored next to the one it was built from
+		assertEquals(2, countCodingGapReportBundles());
+	}
+
+	@DirtiesContext
+	@Test
+	void testApprovePersistWithGetRejected() {
+		loadApproveResources();
+
+		assertThrows(InvalidRequestException.class, () -> getClient().operation().onType(MeasureReport.class)
+				.named("$ra.approve-coding-gaps").withParameters(approveParameters(true))
+				.useHttpGet().returnResourceType(Parameters.class).execute());
+		assertEquals(1, countCodingGapReportBundles());
+	}
+
+	@DirtiesContext
+	@Test
+	void testApproveGroupMemberWithoutReport() {
+		loadApproveResources();
+		// ra-patient03 has no coding gap report Bundle
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+
+		Parameters result = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.approve-coding-gaps").withParameters(approveParameters("Group/ra-group02", false))
+				.returnResourceType(Parameters.class).execute();
+
+		assertEquals(2, result.getParameter().size());
+		assertTrue(result.getParameter().get(0).getResource() instanceof Bundle);
+		assertMissingReport(result.getParameter().get(1), "Patient/ra-patient03");
+		assertEquals(1, countCodingGapReportBundles());
+	}
+
+	@DirtiesContext
+	@Test
+	void testApprovePersistGroupMemberWithoutReport() {
+		loadApproveResources();
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+
+		Parameters result = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.approve-coding-gaps").withParameters(approveParameters("Group/ra-group02", true))
+				.returnResourceType(Parameters.class).execute();
+
+		assertEquals(3, result.getParameter().size());
+		assertTrue(result.getParameter().get(0).getResource() instanceof Bundle);
+		assertMissingReport(result.getParameter().get(1), "Patient/ra-patient03");
+		Parameters.ParametersParameterComponent persisted = result.getParameter(RAConstants.PERSISTED_PARAM_NAME);
+		assertEquals(1, getCount(persisted, "patients"));
+		assertEquals(0, getCount(persisted, "failed"));
+		// the member with a report is still stored
+		assertEquals(2, countCodingGapReportBundles());
+	}
+
+	private void assertMissingReport(Parameters.ParametersParameterComponent parameter, String patient) {
+		assertTrue(parameter.getResource() instanceof OperationOutcome);
+		String text = ((OperationOutcome) parameter.getResource()).getIssueFirstRep().getDetails().getText();
+		assertTrue(text.startsWith("No coding gap report Bundle was found for " + patient), text);
+	}
+
+	private void loadApproveResources() {
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("Bundle-ra-remediate-result-closure.json");
+	}
+
+	private Parameters approveParameters(boolean persist) {
+		return approveParameters("Patient/ra-patient02", persist);
+	}
+
+	private Parameters approveParameters(String subject, boolean persist) {
+		return parameters(
+				stringPart("periodStart", "2021-01-01"),
+				stringPart("periodEnd", "2021-12-31"),
+				stringPart("subject", subject),
+				stringPart("measureId", "Measure-RAModelExample01"),
+				booleanPart(RAConstants.PERSIST, persist));
+	}
+
+	private int countCodingGapReportBundles() {
+		return getClient().search().forResource(Bundle.class).withProfile(RAConstants.CODING_GAP_BUNDLE_URL)
+				.returnBundle(Bundle.class).execute().getEntry().size();
+	}
+
+	private int getCount(Parameters.ParametersParameterComponent summary, String name) {
+		return summary.getPart().stream().filter(part -> name.equals(part.getName())).findFirst()
+				.map(part -> ((IntegerType) part.getValue()).getValue()).orElse(0);
 	}
 }
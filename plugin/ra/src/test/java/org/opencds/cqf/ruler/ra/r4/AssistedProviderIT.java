@@ -9,7 +9,9 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -21,7 +23,10 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -36,7 +41,8 @@ import ca.uhn.fhir.context.FhirContext;
 @DirtiesContext
 @ExtendWith(SpringExtension.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = { RAConfig.class }, properties = {
-		"hapi.fhir.fhir_version=r4", "hapi.fhir.ra_enabled=true", "hapi.fhir.cr.enabled=true" })
+		"hapi.fhir.fhir_version=r4", "hapi.fhir.ra_enabled=true", "hapi.fhir.cr.enabled=true",
+		"hapi.fhir.ra.assisted.commitEnabled=true" })
 class AssistedProviderIT extends RestIntegrationTest {
 	private String serverBase;
 
@@ -101,6 +107,150 @@ class AssistedProviderIT extends RestIntegrationTest {
 		}
 	}
 
+	@Test
+	void testAssistedServerStreamRequest() {
+		String row = "2021-01-01,2021-09-30,https://build.fhir.org/ig/HL7/davinci-ra/Measure-RAModelExample01,24,%s,%s,historic,open-gap,2020-07-15,applied-not-superseded\n";
+		StringBuilder csv = new StringBuilder(
+				"periodStart,periodEnd,modelId,modelVersion,patientId,ccCode,suspectType,evidenceStatus,evidenceStatusDate,hiearchicalStatus\n");
+		// rows of the two patients are interleaved, so they are grouped after spilling
+		for (int i = 0; i < 5; i++) {
+			csv.append(String.format(row, "ra-patient01", 18 + i));
+			csv.append(String.format(row, "ra-patient02", 18 + i));
+		}
+		csv.append(String.format(row, "ra-patient01", 59));
+
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpPost request = new HttpPost(serverBase + "?stream=true");
+			request.setEntity(new StringEntity(csv.toString()));
+			request.addHeader("Content-Type", "text/csv");
+
+			CloseableHttpResponse response = httpClient.execute(request);
+			Map<String, Integer> groups = new HashMap<>();
+			for (String line : EntityUtils.toString(response.getEntity()).split("\n")) {
+				if (line.isBlank()) {
+					continue;
+				}
+				Bundle bundle = (Bundle) FhirContext.forR4Cached().newJsonParser().parseResource(line);
+				assertEquals(Bundle.BundleType.TRANSACTION, bundle.getType());
+				for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+					MeasureReport mr = (MeasureReport) entry.getResource();
+					groups.put(mr.getSubject().getReference(), mr.getGroup().size());
+				}
+			}
+			assertEquals(2, groups.size());
+			assertEquals(6, groups.get("Patient/ra-patient01"));
+			assertEquals(5, groups.get("Patient/ra-patient02"));
+		} catch (IOException ioe) {
+			fail(ioe.getMessage());
+		}
+	}
+
+	@Test
+	void testAssistedServerStreamRequestWithInvalidDate() {
+		String csv = "periodStart,periodEnd,modelId,modelVersion,patientId,ccCode,suspectType,evidenceStatus,evidenceStatusDate,hiearchicalStatus\n"
+				+ "2021-01-01,2021-13-45,https://build.fhir.org/ig/HL7/davinci-ra/Measure-RAModelExample01,24,ra-patient01,18,historic,open-gap,2020-07-15,applied-not-superseded\n";
+
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpPost request = new HttpPost(serverBase + "?stream=true&sorted=true");
+			request.setEntity(new StringEntity(csv));
+			request.addHeader("Content-Type", "text/csv");
+
+			CloseableHttpResponse response = httpClient.execute(request);
+			assertEquals(400, response.getStatusLine().getStatusCode());
+			IBaseResource outcome = FhirContext.forR4Cached().newJsonParser()
+					.parseResource(EntityUtils.toString(response.getEntity()));
+			assertTrue(outcome instanceof OperationOutcome);
+		} catch (IOException ioe) {
+			fail(ioe.getMessage());
+		}
+	}
+
+	@Test
+	void testAssistedServerUnsortedRowsRejected() {
+		String row = "2021-01-01,2021-09-30,https://build.fhir.org/ig/HL7/davinci-ra/Measure-RAModelExample01,24,%s,%s,historic,open-gap,2020-07-15,applied-not-superseded\n";
+		// the rows of ra-patient01 are split by a row of ra-patient02
+		String csv = "periodStart,periodEnd,modelId,modelVersion,patientId,ccCode,suspectType,evidenceStatus,evidenceStatusDate,hiearchicalStatus\n"
+				+ String.format(row, "ra-patient01", 18) + String.format(row, "ra-patient02", 18)
+				+ String.format(row, "ra-patient01", 19);
+
+		for (String mode : new String[] { "stream", "commit" }) {
+			try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+				HttpPost request = new HttpPost(serverBase + "?" + mode + "=true&sorted=true");
+				request.setEntity(new StringEntity(csv));
+				request.addHeader("Content-Type", "text/csv");
+
+				CloseableHttpResponse response = httpClient.execute(request);
+				assertEquals(400, response.getStatusLine().getStatusCode(), mode);
+				IBaseResource outcome = FhirContext.forR4Cached().newJsonParser()
+						.parseResource(EntityUtils.toString(response.getEntity()));
+				assertTrue(outcome instanceof OperationOutcome, mode);
+			} catch (IOException ioe) {
+				fail(ioe.getMessage());
+			}
+		}
+	}
+
+	@Test
+	void testAssistedServerCommitInvalidDate() {
+		String csv = "periodStart,periodEnd,modelId,modelVersion,patientId,ccCode,suspectType,evidenceStatus,evidenceStatusDate,hiearchicalStatus\n"
+				+ "2021-01-01,not-a-date,https://build.fhir.org/ig/HL7/davinci-ra/Measure-RAModelExample01,24,ra-patient01,18,historic,open-gap,2020-07-15,applied-not-superseded\n";
+
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpPost request = new HttpPost(serverBase + "?commit=true&sorted=true");
+			request.setEntity(new StringEntity(csv));
+			request.addHeader("Content-Type", "text/csv");
+
+			CloseableHttpResponse response = httpClient.execute(request);
+			assertEquals(400, response.getStatusLine().getStatusCode());
+			IBaseResource outcome = FhirContext.forR4Cached().newJsonParser()
+					.parseResource(EntityUtils.toString(response.getEntity()));
+			assertTrue(outcome instanceof OperationOutcome);
+			assertTrue(((OperationOutcome) outcome).getIssueFirstRep().getDiagnostics()
+					.contains("0 MeasureReports read before the error were committed"));
+		} catch (IOException ioe) {
+			fail(ioe.getMessage());
+		}
+	}
+
+	@Test
+	void testAssistedServerCommitRequest() {
+		Parameters summary = commit();
+		assertEquals(1, ((IntegerType) summary.getParameter("reports").getValue()).getValue());
+		assertEquals(1, ((IntegerType) summary.getParameter("committed").getValue()).getValue());
+		assertEquals(0, ((IntegerType) summary.getParameter("unchanged").getValue()).getValue());
+		assertEquals(0, ((IntegerType) summary.getParameter("failed").getValue()).getValue());
+		assertEquals(1, ((IntegerType) summary.getParameter("batches").getValue()).getValue());
+		assertTrue(summary.getParameters("failure").isEmpty());
+
+		// the same file again maps to the same report, which is left unchanged
+		summary = commit();
+		assertEquals(1, ((IntegerType) summary.getParameter("reports").getValue()).getValue());
+		assertEquals(0, ((IntegerType) summary.getParameter("committed").getValue()).getValue());
+		assertEquals(1, ((IntegerType) summary.getParameter("unchanged").getValue()).getValue());
+
+		Bundle reports = getClient().search().forResource(MeasureReport.class)
+				.where(MeasureReport.SUBJECT.hasId("Patient/ra-patient01")).returnBundle(Bundle.class).execute();
+		assertEquals(1, reports.getEntry().size());
+		MeasureReport report = (MeasureReport) reports.getEntryFirstRep().getResource();
+		assertEquals(11, report.getGroup().size());
+		assertEquals("1", report.getMeta().getVersionId());
+	}
+
+	private Parameters commit() {
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpPost request = new HttpPost(serverBase + "?commit=true&sorted=true");
+			request.setEntity(
+					new FileEntity(new File(Objects.requireNonNull(this.getClass().getResource("test.csv")).toURI())));
+			request.addHeader("Content-Type", "text/csv");
+
+			CloseableHttpResponse response = httpClient.execute(request);
+			String result = EntityUtils.toString(response.getEntity());
+			return (Parameters) FhirContext.forR4Cached().newJsonParser().parseResource(result);
+		} catch (IOException | URISyntaxException e) {
+			return fail(e.getMessage());
+		}
+	}
+
 	void validateResult(String result) {
 		IBaseResource resource = FhirContext.forR4Cached().newJsonParser().parseResource(result);
 		assertTrue(resource instanceof Bundle);
@@ -0,0 +1,137 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.opencsv.bean.CsvToBeanBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Checks the assisted row to MeasureReport mapping against the expected
+ * reports of a fixture file. The throughput over a synthetic file of patients
+ * with one row per condition category is only timed with the benchmark
+ * profile. CSV parsing is done up front so only the mapping is measured.
+ */
+class AssistedReportMapperBenchmarkTest {
+	private static final Logger logger = LoggerFactory.getLogger(AssistedReportMapperBenchmarkTest.class);
+
+	private static final int PATIENTS = 2000;
+	private static final int ROWS_PER_PATIENT = 10;
+	private static final int ITERATIONS = 5;
+	private static final String[] SUSPECT_TYPES = { "historic", "suspected", "net-new" };
+	private static final String[] EVIDENCE_STATUSES = { "closed-gap", "open-gap", "pending" };
+	private static final String[] HIERARCHICAL_STATUSES = { "applied-superseded", "applied-not-superseded" };
+
+	private final IParser parser = FhirContext.forR4Cached().newJsonParser();
+
+	@Test
+	void testMapping() throws IOException {
+		List<AssistedRowData> rows;
+		try (Reader reader = fixture("assisted-mapper.csv")) {
+			rows = rows(reader);
+		}
+		Bundle expected;
+		try (Reader reader = fixture("assisted-mapper-expected.json")) {
+			expected = parser.parseResource(Bundle.class, reader);
+		}
+
+		List<MeasureReport> reports = map(rows, new AssistedReportMapper()).values().stream()
+				.sorted(Comparator.comparing(report -> report.getSubject().getReference()))
+				.collect(Collectors.toList());
+		assertEquals(expected.getEntry().size(), reports.size());
+		SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+		for (int i = 0; i < reports.size(); i++) {
+			MeasureReport report = reports.get(i).copy();
+			assertEquals("2021-01-01", formatter.format(report.getPeriod().getStart()));
+			assertEquals("2021-12-31", formatter.format(report.getPeriod().getEnd()));
+			// ids and generation dates are checked elsewhere, and the period is
+			// encoded in the local time zone
+			report.setId((String) null);
+			report.setDate(null);
+			report.setPeriod(null);
+			assertTrue(expected.getEntry().get(i).getResource().equalsDeep(report),
+					parser.encodeResourceToString(report));
+		}
+	}
+
+	@Test
+	@Tag("benchmark")
+	void testMappingThroughput() {
+		List<AssistedRowData> rows = rows(new StringReader(syntheticCsv()));
+		assertEquals(PATIENTS, map(rows, new AssistedReportMapper()).size());
+
+		long best = Long.MAX_VALUE;
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			long start = System.nanoTime();
+			map(rows, new AssistedReportMapper());
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		logger.info("Assisted mapping of {} rows: {} rows/s (best of {} runs)", rows.size(),
+				rows.size() * TimeUnit.SECONDS.toNanos(1) / Math.max(1, best), ITERATIONS);
+	}
+
+	private Reader fixture(String name) {
+		InputStream stream = getClass().getResourceAsStream(name);
+		assertTrue(stream != null, name);
+		return new InputStreamReader(stream, StandardCharsets.UTF_8);
+	}
+
+	private String syntheticCsv() {
+		StringBuilder csv = new StringBuilder(
+				"periodStart,periodEnd,modelId,modelVersion,patientId,ccCode,suspectType,evidenceStatus,evidenceStatusDate,hiearchicalStatus\n");
+		for (int patient = 0; patient < PATIENTS; patient++) {
+			for (int row = 0; row < ROWS_PER_PATIENT; row++) {
+				csv.append("2021-01-01,2021-12-31,https://build.fhir.org/ig/HL7/davinci-ra/Measure-RAModelExample01,24,")
+						.append("ra-patient").append(patient).append(',')
+						.append(18 + row).append(',')
+						.append(SUSPECT_TYPES[row % SUSPECT_TYPES.length]).append(',')
+						.append(EVIDENCE_STATUSES[(patient + row) % EVIDENCE_STATUSES.length]).append(',')
+						.append("2021-0").append(1 + row % 9).append("-15,")
+						.append(HIERARCHICAL_STATUSES[row % HIERARCHICAL_STATUSES.length]).append('\n');
+			}
+		}
+		return csv.toString();
+	}
+
+	private List<AssistedRowData> rows(Reader reader) {
+		return new CsvToBeanBuilder<AssistedRowData>(reader).withType(AssistedRowData.class).build().parse();
+	}
+
+	private Map<AssistedReportMapper.Key, MeasureReport> map(List<AssistedRowData> rows,
+			AssistedReportMapper mapper) {
+		Map<AssistedReportMapper.Key, MeasureReport> reports = new HashMap<>();
+		for (AssistedRowData row : rows) {
+			MeasureReport report = reports.get(AssistedReportMapper.Key.of(row));
+			if (report == null) {
+				reports.put(AssistedReportMapper.Key.of(row), mapper.createMeasureReport(row));
+			} else {
+				mapper.addGroup(row, report);
+			}
+		}
+		return reports;
+	}
+}
@@ -0,0 +1,88 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
+
+import java.time.Duration;
+
+import org.awaitility.Awaitility;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.test.utility.Urls;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
+
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = { "hapi.fhir.fhir_version=r4",
+				"hapi.fhir.ra_enabled=true", "hapi.fhir.cr.enabled=true" })
+class CodingGapReportBundleReindexerIT extends RestIntegrationTest {
+
+	@Autowired
+	private RAProperties myRaProperties;
+
+	@Autowired
+	private CodingGapReportBundleReindexer myReindexer;
+
+	@BeforeEach
+	public void beforeEach() {
+		String ourServerBase = Urls.getUrl(myRaProperties.getReport().getEndpoint(), getPort());
+		myRaProperties.getReport().setEndpoint(ourServerBase);
+	}
+
+	@Test
+	void testBundleStoredBeforeSearchParametersIsFound() {
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient02.json");
+		// stored before the first RA workflow operation creates the search parameters
+		loadResource("Bundle-ra-remediate-result-closure.json");
+
+		// found by the scan while the Bundle is not indexed
+		assertEquals(1, approve().getParameter().size());
+
+		Awaitility.await().atMost(Duration.ofSeconds(120)).pollInterval(Duration.ofSeconds(1))
+				.until(myReindexer::isIndexed);
+
+		// the reindex indexed the Bundle, so the indexed search finds it
+		Bundle indexed = getClient().search().forResource(Bundle.class)
+				.where(new ReferenceClientParam(RAConstants.CODING_GAP_BUNDLE_SUBJECT_SEARCHPARAMETER_CODE)
+						.hasId("Patient/ra-patient02"))
+				.returnBundle(Bundle.class).execute();
+		assertEquals(1, indexed.getEntry().size());
+
+		Parameters result = approve();
+		assertEquals(1, result.getParameter().size());
+		assertTrue(result.getParameterFirstRep().getResource() instanceof Bundle);
+		Bundle approved = (Bundle) result.getParameterFirstRep().getResource();
+		assertEquals("Patient/ra-patient02",
+				((Composition) approved.getEntryFirstRep().getResource()).getSubject().getReference());
+	}
+
+	private Parameters approve() {
+		return getClient().operation().onType(MeasureReport.class)
+				.named("$ra.approve-coding-gaps").withParameters(parameters(
+						stringPart("periodStart", "2021-01-01"),
+						stringPart("periodEnd", "2021-12-31"),
+						stringPart("subject", "Patient/ra-patient02"),
+						stringPart("measureId", "Measure-RAModelExample01")))
+				.returnResourceType(Parameters.class).execute();
+	}
+}
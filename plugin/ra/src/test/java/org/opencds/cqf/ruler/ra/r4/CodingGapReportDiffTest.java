@@ -0,0 +1,124 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConstants;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+class CodingGapReportDiffTest {
+	private static final int GROUPS = 20;
+
+	private final IParser parser = FhirContext.forR4Cached().newJsonParser()
+			.setOverrideResourceIdWithBundleEntryFullUrl(false);
+
+	@Test
+	void testWorkflowStep() {
+		Bundle from = bundle();
+		Bundle to = from.copy();
+		((DetectedIssue) to.getEntry().get(2).getResource()).setStatus(DetectedIssue.DetectedIssueStatus.FINAL);
+		((MeasureReport) to.getEntry().get(1).getResource()).getGroup().get(3)
+				.getExtensionByUrl(RAConstants.EVIDENCE_STATUS_URL).setValue(RAConstants.CLOSED_GAP_CONCEPT.copy());
+		((Composition) to.getEntry().get(0).getResource()).setStatus(Composition.CompositionStatus.FINAL);
+
+		Parameters diff = roundTrip(CodingGapReportDiff.diff(from, to));
+		assertFalse(diff.hasParameter(CodingGapReportDiff.BUNDLE));
+		assertFalse(diff.hasParameter(CodingGapReportDiff.ENTRY));
+		assertTrue(diff.hasParameter(CodingGapReportDiff.ISSUE));
+		assertTrue(diff.hasParameter(CodingGapReportDiff.REPORT));
+		assertTrue(diff.hasParameter(CodingGapReportDiff.COMPOSITION));
+		assertTrue(CodingGapReportDiff.apply(from, diff).equalsDeep(to));
+
+		// only the changed group is kept
+		MeasureReport partial = (MeasureReport) diff.getParameter(CodingGapReportDiff.REPORT).getPart().stream()
+				.filter(Parameters.ParametersParameterComponent::hasResource).findFirst().orElseThrow().getResource();
+		assertEquals(1, partial.getGroup().size());
+	}
+
+	@Test
+	void testAddedAndRemovedEntries() {
+		Bundle from = bundle();
+		Bundle to = from.copy();
+		to.getEntry().remove(2);
+		DetectedIssue added = issue("issue-added");
+		to.addEntry().setFullUrl("DetectedIssue/issue-added").setResource(added);
+		to.getEntry().add(0, to.getEntry().remove(to.getEntry().size() - 1));
+
+		Parameters diff = roundTrip(CodingGapReportDiff.diff(from, to));
+		assertFalse(diff.hasParameter(CodingGapReportDiff.BUNDLE));
+		assertTrue(diff.hasParameter(CodingGapReportDiff.REMOVED));
+		assertTrue(diff.hasParameter(CodingGapReportDiff.ORDER));
+		assertTrue(CodingGapReportDiff.apply(from, diff).equalsDeep(to));
+	}
+
+	@Test
+	void testUnchanged() {
+		Bundle from = bundle();
+		Parameters diff = CodingGapReportDiff.diff(from, from.copy());
+		assertFalse(diff.hasParameter());
+		assertTrue(CodingGapReportDiff.apply(from, diff).equalsDeep(from));
+	}
+
+	private Bundle bundle() {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.DOCUMENT);
+		bundle.setId("coding-gaps-ra-patient01");
+		bundle.getMeta().addProfile(RAConstants.CODING_GAP_BUNDLE_URL);
+
+		MeasureReport report = new MeasureReport();
+		report.setId("ra-measurereport01");
+		report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+		report.setSubject(new Reference("Patient/ra-patient01"));
+		for (int g = 0; g < GROUPS; g++) {
+			report.addGroup().setId("group-" + g)
+					.setCode(new CodeableConcept(new Coding().setSystem(RAConstants.HCC_CODESYSTEM_URL)
+							.setVersion("24").setCode(String.valueOf(g + 1))))
+					.addExtension(RAConstants.SUSPECT_TYPE_HISTORIC_EXT.copy())
+					.addExtension(RAConstants.EVIDENCE_STATUS_OPEN_EXT.copy());
+		}
+
+		Composition composition = new Composition();
+		composition.setId("ra-composition01");
+		composition.setStatus(Composition.CompositionStatus.PRELIMINARY);
+		Composition.SectionComponent section = composition.addSection();
+		section.addEntry(new Reference("MeasureReport/ra-measurereport01"));
+		section.addEntry(new Reference("DetectedIssue/issue-0"));
+		section.addEntry(new Reference("DetectedIssue/issue-1"));
+
+		add(bundle, composition);
+		add(bundle, report);
+		add(bundle, issue("issue-0"));
+		add(bundle, issue("issue-1"));
+		return bundle;
+	}
+
+	private DetectedIssue issue(String id) {
+		DetectedIssue issue = new DetectedIssue();
+		issue.setId(id);
+		issue.setStatus(DetectedIssue.DetectedIssueStatus.PRELIMINARY);
+		issue.setPatient(new Reference("Patient/ra-patient01"));
+		return issue;
+	}
+
+	private void add(Bundle bundle, Resource resource) {
+		bundle.addEntry().setFullUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+				.setResource(resource);
+	}
+
+	// diffs are stored as JSON, so they are checked as they are read back
+	private Parameters roundTrip(Parameters diff) {
+		return parser.parseResource(Parameters.class, parser.encodeResourceToString(diff));
+	}
+}
@@ -0,0 +1,118 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.booleanPart;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.test.utility.Urls;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = { "hapi.fhir.fhir_version=r4", "hapi.fhir.ra_enabled=true",
+				"hapi.fhir.cr.enabled=true", "hapi.fhir.expunge_enabled=true", "hapi.fhir.ra.history.enabled=true" })
+class CodingGapReportHistoryIT extends RestIntegrationTest {
+	private static final IdType REPORT_ID = new IdType("MeasureReport", "ra-measurereport03");
+
+	@Autowired
+	private RAProperties myRaProperties;
+
+	@BeforeEach
+	void beforeEach() {
+		String ourServerBase = Urls.getUrl(myRaProperties.getReport().getEndpoint(), getPort());
+		myRaProperties.getReport().setEndpoint(ourServerBase);
+	}
+
+	@Test
+	void testPersistedStepsAreKept() {
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+		loadResource("Bundle-ra-remediate-result-closure.json");
+
+		Parameters approved = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.approve-coding-gaps").withParameters(parameters(
+						stringPart("periodStart", "2021-01-01"),
+						stringPart("periodEnd", "2021-12-31"),
+						stringPart("subject", "Patient/ra-patient02"),
+						stringPart("measureId", "Measure-RAModelExample01"),
+						booleanPart(RAConstants.PERSIST, true)))
+				.returnResourceType(Parameters.class).execute();
+		assertEquals(0, getCount(approved.getParameter(RAConstants.PERSISTED_PARAM_NAME), "failed"));
+
+		Parameters history = history(null);
+		assertEquals(1, ((IntegerType) history.getParameter(RAConstants.VERSIONS_PARAM_NAME).getValue()).getValue());
+		assertEquals(Composition.CompositionStatus.PRELIMINARY, getComposition(history).getStatus());
+
+		// resolve starts from the Bundle stored by approve
+		Parameters resolved = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.resolve-coding-gaps").withParameters(parameters(
+						stringPart("periodStart", "2021-01-01"),
+						stringPart("periodEnd", "2021-12-31"),
+						stringPart("subject", "Patient/ra-patient02"),
+						booleanPart(RAConstants.PERSIST, true)))
+				.returnResourceType(Parameters.class).execute();
+		assertEquals(0, getCount(resolved.getParameter(RAConstants.PERSISTED_PARAM_NAME), "failed"));
+
+		history = history(null);
+		assertEquals(2, ((IntegerType) history.getParameter(RAConstants.VERSIONS_PARAM_NAME).getValue()).getValue());
+		assertEquals(Composition.CompositionStatus.FINAL, getComposition(history).getStatus());
+		assertEquals(Composition.CompositionStatus.PRELIMINARY, getComposition(history(0)).getStatus());
+		assertThrows(InvalidRequestException.class, () -> history(2));
+
+		// the earlier version of the current Bundle is in the history, so only the
+		// latest is stored
+		String currentId = RAConstants.CURRENT_REPORT_ID_PREFIX + UUID.nameUUIDFromBytes(
+				Ids.simple(REPORT_ID).getBytes(StandardCharsets.UTF_8));
+		Bundle versions = getClient().history().onInstance(new IdType("Bundle", currentId))
+				.returnBundle(Bundle.class).execute();
+		assertEquals(1, versions.getEntry().size());
+	}
+
+	private Parameters history(Integer version) {
+		if (version == null) {
+			return getClient().operation().onInstance(REPORT_ID).named("$ra.coding-gap-history")
+					.withNoParameters(Parameters.class).useHttpGet().execute();
+		}
+		return getClient().operation().onInstance(REPORT_ID).named("$ra.coding-gap-history")
+				.withParameter(Parameters.class, RAConstants.VERSION, new IntegerType(version))
+				.useHttpGet().execute();
+	}
+
+	private Composition getComposition(Parameters history) {
+		Bundle bundle = (Bundle) history.getParameter(RAConstants.RETURN_PARAM_NAME).getResource();
+		return (Composition) bundle.getEntryFirstRep().getResource();
+	}
+
+	private int getCount(Parameters.ParametersParameterComponent summary, String name) {
+		return summary.getPart().stream().filter(part -> name.equals(part.getName())).findFirst()
+				.map(part -> ((IntegerType) part.getValue()).getValue()).orElse(0);
+	}
+}
@@ -0,0 +1,125 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import org.awaitility.Awaitility;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.test.utility.Urls;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = {
+				"hapi.fhir.fhir_version=r4",
+				"hapi.fhir.ra.composition.ra_composition_section_author=Organization/alphora-author",
+				"hapi.fhir.ra.precompute.enabled=true",
+				"hapi.fhir.ra_enabled=true",
+				"hapi.fhir.cr.enabled=true" })
+class CodingGapReportPrecomputerIT extends RestIntegrationTest {
+	@Autowired
+	private RAProperties myRaProperties;
+
+	@Autowired
+	private CodingGapReportPrecomputer myPrecomputer;
+
+	@BeforeEach
+	void beforeEach() {
+		String ourServerBase = Urls.getUrl(myRaProperties.getReport().getEndpoint(), getPort());
+		myRaProperties.getReport().setEndpoint(ourServerBase);
+		loadResource("AlphoraAuthor-organization.json");
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+	}
+
+	@Test
+	void testCodingGapsReadsPrecomputedBundle() {
+		myPrecomputer.precompute("Patient/ra-patient02");
+
+		MeasureReport report = getClient().read().resource(MeasureReport.class).withId("ra-measurereport03")
+				.execute();
+		Bundle precomputed = myPrecomputer.getPrecomputed(myRaProperties.getReport().getEndpoint(), report);
+		assertNotNull(precomputed);
+
+		Bundle bundle = codingGaps();
+		assertEquals(9, bundle.getEntry().size());
+		// the stored Composition is returned rather than a new one
+		assertEquals(precomputed.getEntryFirstRep().getResource().getIdElement().getIdPart(),
+				bundle.getEntryFirstRep().getResource().getIdElement().getIdPart());
+		assertTrue(bundle.getMeta().getTag().isEmpty());
+	}
+
+	@Test
+	void testChangedReportIsRebuilt() {
+		MeasureReport report = getClient().read().resource(MeasureReport.class).withId("ra-measurereport03")
+				.execute();
+
+		myPrecomputer.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				Collections.singletonList(new IdType("MeasureReport/ra-measurereport03")),
+				Collections.emptyList(), Collections.emptyList()));
+		Awaitility.await().atMost(Duration.ofSeconds(30)).until(
+				() -> myPrecomputer.getPrecomputed(myRaProperties.getReport().getEndpoint(), report) != null);
+
+		// a Bundle built from another version of the report is not used
+		MeasureReport otherVersion = report.copy();
+		otherVersion.getMeta().setVersionId(report.getMeta().getVersionId() + "0");
+		assertNull(myPrecomputer.getPrecomputed(myRaProperties.getReport().getEndpoint(), otherVersion));
+
+		// deleting the report deletes its Bundle
+		myPrecomputer.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				Collections.emptyList(), Collections.emptyList(),
+				Collections.singletonList(new IdType("MeasureReport/ra-measurereport03"))));
+		assertNull(myPrecomputer.getPrecomputed(myRaProperties.getReport().getEndpoint(), report));
+	}
+
+	@Test
+	void testChangedEvidenceIsNotServed() {
+		myPrecomputer.precompute("Patient/ra-patient02");
+		MeasureReport report = getClient().read().resource(MeasureReport.class).withId("ra-measurereport03")
+				.execute();
+		assertNotNull(myPrecomputer.getPrecomputed(myRaProperties.getReport().getEndpoint(), report));
+
+		// the report is unchanged, but the stored Bundle embeds the old Condition
+		Condition condition = getClient().read().resource(Condition.class).withId("ra-condition31pat02")
+				.execute();
+		condition.addNote().setText("updated after the Bundle was stored");
+		getClient().update().resource(condition).execute();
+		assertNull(myPrecomputer.getPrecomputed(myRaProperties.getReport().getEndpoint(), report));
+	}
+
+	private Bundle codingGaps() {
+		Parameters result = getClient().operation().onType(MeasureReport.class).named("$ra.coding-gaps")
+				.withParameters(parameters(
+						stringPart(RAConstants.PERIOD_START, "2021-01-01"),
+						stringPart(RAConstants.PERIOD_END, "2021-12-31"),
+						stringPart(RAConstants.SUBJECT, "Patient/ra-patient02")))
+				.useHttpGet().returnResourceType(Parameters.class).execute();
+		assertEquals(1, result.getParameter().size());
+		return (Bundle) result.getParameterFirstRep().getResource();
+	}
+}
@@ -0,0 +1,111 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = {
+				"hapi.fhir.fhir_version=r4",
+				"hapi.fhir.ra.composition.ra_composition_section_author=Organization/alphora-author",
+				"hapi.fhir.ra_enabled=true",
+				"hapi.fhir.cr.enabled=true",
+				"hapi.fhir.ra.export.enabled=true" })
+class CodingGapsExportServletIT extends RestIntegrationTest {
+	private String exportBase;
+
+	@BeforeEach
+	void beforeEach() {
+		exportBase = "http://localhost:" + getPort() + "/ra-coding-gaps";
+		loadResource("AlphoraAuthor-organization.json");
+	}
+
+	@Test
+	void testMissingPreferHeader() throws IOException {
+		try (CloseableHttpClient httpClient = HttpClients.createDefault();
+				CloseableHttpResponse response = httpClient.execute(new HttpGet(
+						exportBase + "?periodStart=2021-01-01&periodEnd=2021-12-31&subject=Patient/ra-patient01"))) {
+			assertEquals(400, response.getStatusLine().getStatusCode());
+		}
+	}
+
+	@Test
+	void testInvalidSubject() throws IOException {
+		HttpGet kickOff = new HttpGet(exportBase + "?periodStart=2021-01-01&periodEnd=2021-12-31&subject=ra-patient01");
+		kickOff.addHeader("Prefer", "respond-async");
+		try (CloseableHttpClient httpClient = HttpClients.createDefault();
+				CloseableHttpResponse response = httpClient.execute(kickOff)) {
+			assertEquals(400, response.getStatusLine().getStatusCode());
+		}
+	}
+
+	@Test
+	void testExportGroup() throws IOException, InterruptedException {
+		loadResource("Patient-ra-patient02.json");
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+
+		HttpGet kickOff = new HttpGet(exportBase + "?periodStart=2021-01-01&periodEnd=2021-12-31&subject=Group/ra-group02");
+		kickOff.addHeader("Prefer", "respond-async");
+
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			String statusUrl;
+			try (CloseableHttpResponse response = httpClient.execute(kickOff)) {
+				assertEquals(202, response.getStatusLine().getStatusCode());
+				assertNotNull(response.getFirstHeader("Content-Location"));
+				statusUrl = response.getFirstHeader("Content-Location").getValue();
+			}
+
+			JsonNode manifest = null;
+			for (int attempt = 0; attempt < 50 && manifest == null; attempt++) {
+				try (CloseableHttpResponse response = httpClient.execute(new HttpGet(statusUrl))) {
+					int status = response.getStatusLine().getStatusCode();
+					assertTrue(status == 200 || status == 202);
+					if (status == 200) {
+						manifest = new ObjectMapper().readTree(EntityUtils.toString(response.getEntity()));
+					} else {
+						Thread.sleep(100);
+					}
+				}
+			}
+			assertNotNull(manifest);
+			assertEquals(1, manifest.get("output").size());
+			assertEquals("Bundle", manifest.get("output").get(0).get("type").asText());
+
+			try (CloseableHttpResponse response = httpClient
+					.execute(new HttpGet(manifest.get("output").get(0).get("url").asText()))) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				String[] lines = EntityUtils.toString(response.getEntity()).split("\n");
+				// one bundle per member, in Group member order
+				assertEquals(2, lines.length);
+				Bundle first = (Bundle) getFhirContext().newJsonParser().parseResource(lines[0]);
+				Bundle second = (Bundle) getFhirContext().newJsonParser().parseResource(lines[1]);
+				assertTrue(first.getEntryFirstRep().getResource() instanceof Patient);
+				assertEquals("ra-patient02", first.getEntryFirstRep().getResource().getIdElement().getIdPart());
+				assertEquals("ra-patient03", second.getEntryFirstRep().getResource().getIdElement().getIdPart());
+				// the same FHIR base as the synchronous operation, not the servlet container root
+				assertEquals(getServerBase() + "Patient/ra-patient02", first.getEntryFirstRep().getFullUrl());
+			}
+		}
+	}
+}
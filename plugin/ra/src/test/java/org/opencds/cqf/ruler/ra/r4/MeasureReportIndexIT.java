@@ -0,0 +1,127 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.awaitility.Awaitility;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.test.utility.Urls;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import ca.uhn.fhir.interceptor.api.IAnonymousInterceptor;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.util.ICachedSearchDetails;
+
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = {
+				"hapi.fhir.fhir_version=r4",
+				"hapi.fhir.ra.composition.ra_composition_section_author=Organization/alphora-author",
+				"hapi.fhir.ra.report-index.enabled=true",
+				"hapi.fhir.ra_enabled=true",
+				"hapi.fhir.cr.enabled=true" })
+class MeasureReportIndexIT extends RestIntegrationTest {
+	@Autowired
+	private RAProperties myRaProperties;
+
+	@Autowired
+	private MeasureReportIndex myMeasureReportIndex;
+
+	@Autowired
+	private IInterceptorService myInterceptorService;
+
+	@BeforeEach
+	void beforeEach() {
+		String ourServerBase = Urls.getUrl(myRaProperties.getReport().getEndpoint(), getPort());
+		myRaProperties.getReport().setEndpoint(ourServerBase);
+		loadResource("AlphoraAuthor-organization.json");
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+
+		Awaitility.await().atMost(Duration.ofSeconds(30)).until(myMeasureReportIndex::isInitialized);
+		myMeasureReportIndex.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				Collections.singletonList(new IdType("MeasureReport/ra-measurereport03")),
+				Collections.emptyList(), Collections.emptyList()));
+	}
+
+	@Test
+	void testFind() {
+		List<IdType> ids = myMeasureReportIndex.find("Patient/ra-patient02", "2021-01-01", "2021-12-31", null);
+		assertEquals(1, ids.size());
+		assertEquals("ra-measurereport03", ids.get(0).getIdPart());
+
+		// bare ids match any subject type, typed ones only their own
+		assertEquals(1, myMeasureReportIndex.find("ra-patient02", "2021-01-01", "2021-12-31", null).size());
+		assertTrue(myMeasureReportIndex.find("Group/ra-patient02", "2021-01-01", "2021-12-31", null).isEmpty());
+
+		assertTrue(myMeasureReportIndex.find("Patient/ra-patient02", "2019-01-01", "2019-12-31", null).isEmpty());
+		assertTrue(myMeasureReportIndex.find("Patient/ra-patient02", "2021-01-01", "2021-12-31",
+				measure -> measure.endsWith("not-a-measure")).isEmpty());
+
+		myMeasureReportIndex.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				Collections.emptyList(), Collections.emptyList(),
+				Collections.singletonList(new IdType("MeasureReport/ra-measurereport03"))));
+		assertTrue(myMeasureReportIndex.find("Patient/ra-patient02", "2021-01-01", "2021-12-31", null).isEmpty());
+	}
+
+	@Test
+	void testCodingGapsUsesIndex() {
+		// the MeasureReport searches run by the operation, recorded as they are
+		// registered
+		List<SearchParameterMap> reportSearches = new CopyOnWriteArrayList<>();
+		IAnonymousInterceptor searchRecorder = (pointcut, args) -> {
+			if ("MeasureReport".equals(args.get(ICachedSearchDetails.class).getResourceType())) {
+				reportSearches.add(args.get(SearchParameterMap.class));
+			}
+		};
+		myInterceptorService.registerAnonymousInterceptor(Pointcut.STORAGE_PRESEARCH_REGISTERED, searchRecorder);
+		Parameters result;
+		try {
+			result = getClient().operation().onType(MeasureReport.class).named("$ra.coding-gaps")
+					.withParameters(parameters(
+							stringPart(RAConstants.PERIOD_START, "2021-01-01"),
+							stringPart(RAConstants.PERIOD_END, "2021-12-31"),
+							stringPart(RAConstants.SUBJECT, "Patient/ra-patient02")))
+					.useHttpGet().returnResourceType(Parameters.class).execute();
+		} finally {
+			myInterceptorService.unregisterInterceptor(searchRecorder);
+		}
+		assertEquals(1, result.getParameter().size());
+		assertEquals(9, ((Bundle) result.getParameterFirstRep().getResource()).getEntry().size());
+
+		// the report was read by the id the index found, not searched by subject and
+		// period
+		assertFalse(reportSearches.isEmpty());
+		for (SearchParameterMap search : reportSearches) {
+			assertTrue(search.containsKey("_id"), search.keySet().toString());
+			assertFalse(search.containsKey(MeasureReport.SP_SUBJECT), search.keySet().toString());
+			assertFalse(search.containsKey(MeasureReport.SP_PERIOD), search.keySet().toString());
+		}
+	}
+}
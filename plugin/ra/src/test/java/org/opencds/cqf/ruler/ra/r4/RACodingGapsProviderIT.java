@@ -387,6 +387,26 @@ class RACodingGapsProviderIT extends RestIntegrationTest {
 		assertEquals(2, result.getParameter().size());
 	}
 
+	@Test
+	void testSubjectNestedPatientGroupGET() {
+		Parameters params = parameters(
+				stringPart(RAConstants.PERIOD_START, "2021-01-01"),
+				stringPart(RAConstants.PERIOD_END, "2021-12-31"),
+				stringPart(RAConstants.SUBJECT, "Group/ra-nested-group"));
+
+		loadResource("Patient-ra-patient02.json");
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+		loadResource("Group-ra-nested-group.json");
+
+		Parameters result = getClient().operation().onType(MeasureReport.class).named("$ra.coding-gaps")
+				.withParameters(params).useHttpGet().returnResourceType(Parameters.class).execute();
+
+		// each patient is reported once, and the Group's reference to itself is skipped
+		assertFalse(result.hasParameter("Invalid parameters"));
+		assertEquals(2, result.getParameter().size());
+	}
+
 	@Test
 	void testSingleSubjectSingleReportGET() {
 		Parameters params = parameters(
@@ -596,6 +616,34 @@ class RACodingGapsProviderIT extends RestIntegrationTest {
 		assertTrue(bundle.getEntry().get(3).getResource() instanceof MeasureReport);
 	}
 
+	@Test
+	void testSubjectGroupChunked() {
+		Parameters params = parameters(
+				stringPart(RAConstants.PERIOD_START, "2021-01-01"),
+				stringPart(RAConstants.PERIOD_END, "2021-12-31"),
+				stringPart(RAConstants.SUBJECT, "Group/ra-group02"));
+
+		loadResource("Patient-ra-patient02.json");
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+
+		int chunkSize = myRaProperties.getParallelism().getChunkSize();
+		myRaProperties.getParallelism().setChunkSize(1);
+		try {
+			Parameters result = getClient().operation().onType(MeasureReport.class).named("$ra.coding-gaps")
+					.withParameters(params).useHttpGet().returnResourceType(Parameters.class).execute();
+
+			// one bundle per member, in Group member order
+			assertEquals(2, result.getParameter().size());
+			Bundle first = (Bundle) result.getParameter().get(0).getResource();
+			Bundle second = (Bundle) result.getParameter().get(1).getResource();
+			assertEquals("ra-patient02", first.getEntryFirstRep().getResource().getIdElement().getIdPart());
+			assertEquals("ra-patient03", second.getEntryFirstRep().getResource().getIdElement().getIdPart());
+		} finally {
+			myRaProperties.getParallelism().setChunkSize(chunkSize);
+		}
+	}
+
 	// TODO: create test for single patient, multiple reports
 	// TODO: create test for multiple patients, multiple reports
 	// TODO: create tests of overlap of MeasureReport date and period
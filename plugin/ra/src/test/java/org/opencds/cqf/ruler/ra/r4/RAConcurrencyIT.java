@@ -0,0 +1,172 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.test.utility.Urls;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+/**
+ * Runs $davinci-ra.evaluate-measure and $ra.coding-gaps for different subjects
+ * at the same time and checks that every response matches the response of the
+ * same request made on its own.
+ */
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = {
+				"hapi.fhir.fhir_version=r4",
+				"hapi.fhir.ra.composition.ra_composition_section_author=Organization/alphora-author",
+				"hapi.fhir.ra_enabled=true",
+				"hapi.fhir.cr.enabled=true" })
+class RAConcurrencyIT extends RestIntegrationTest {
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 5;
+
+	@Autowired
+	private RAProperties myRaProperties;
+
+	@BeforeEach
+	void beforeEach() {
+		String ourServerBase = Urls.getUrl(myRaProperties.getReport().getEndpoint(), getPort());
+		myRaProperties.getReport().setEndpoint(ourServerBase);
+		loadResource("AlphoraAuthor-organization.json");
+		loadTransaction("ConditionCategoryPOC-bundle.json");
+		loadTransaction("tests-hist-open-HCC189-bundle.json");
+		loadTransaction("tests-hist-closed-HCC189-bundle.json");
+		loadTransaction("tests-netnew-HCC189-bundle.json");
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+	}
+
+	@Test
+	void testConcurrentRequests() throws Exception {
+		Map<String, Callable<String>> requests = new LinkedHashMap<>();
+		requests.put("evaluate Patient/hist-open-HCC189", () -> evaluateMeasure("Patient/hist-open-HCC189"));
+		requests.put("evaluate Patient/hist-closed-HCC189", () -> evaluateMeasure("Patient/hist-closed-HCC189"));
+		requests.put("evaluate Patient/netnew-HCC189", () -> evaluateMeasure("Patient/netnew-HCC189"));
+		requests.put("coding-gaps Patient/ra-patient02", () -> codingGaps("Patient/ra-patient02"));
+		requests.put("coding-gaps Patient/ra-patient03", () -> codingGaps("Patient/ra-patient03"));
+		requests.put("coding-gaps Group/ra-group02", () -> codingGaps("Group/ra-group02"));
+
+		Map<String, String> expected = new LinkedHashMap<>();
+		for (Map.Entry<String, Callable<String>> request : requests.entrySet()) {
+			expected.put(request.getKey(), request.getValue().call());
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<String> names = new ArrayList<>();
+			List<Future<String>> futures = new ArrayList<>();
+			for (int round = 0; round < ROUNDS; round++) {
+				for (Map.Entry<String, Callable<String>> request : requests.entrySet()) {
+					names.add(request.getKey());
+					futures.add(executor.submit(request.getValue()));
+				}
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				assertEquals(expected.get(names.get(i)), futures.get(i).get(), names.get(i));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private String evaluateMeasure(String subject) {
+		Parameters result = getClient().operation()
+				.onInstance(new IdType("Measure", "ConditionCategoryPOC"))
+				.named("$davinci-ra.evaluate-measure")
+				.withParameters(parameters(
+						stringPart(RAConstants.PERIOD_START, "2022-01-01"),
+						stringPart(RAConstants.PERIOD_END, "2022-12-31"),
+						stringPart(RAConstants.SUBJECT, subject)))
+				.useHttpGet().returnResourceType(Parameters.class).execute();
+
+		StringBuilder summary = new StringBuilder();
+		for (Parameters.ParametersParameterComponent parameter : result.getParameter()) {
+			summary.append(parameter.getName()).append(':').append(summarize(parameter.getResource())).append(';');
+		}
+		return summary.toString();
+	}
+
+	private String codingGaps(String subject) {
+		Parameters result = getClient().operation().onType(MeasureReport.class).named("$ra.coding-gaps")
+				.withParameters(parameters(
+						stringPart(RAConstants.PERIOD_START, "2021-01-01"),
+						stringPart(RAConstants.PERIOD_END, "2021-12-31"),
+						stringPart(RAConstants.SUBJECT, subject)))
+				.useHttpGet().returnResourceType(Parameters.class).execute();
+
+		StringBuilder summary = new StringBuilder();
+		for (Parameters.ParametersParameterComponent parameter : result.getParameter()) {
+			summary.append(summarize(parameter.getResource())).append(';');
+		}
+		return summary.toString();
+	}
+
+	// Resource ids are generated per request, so only the content that depends
+	// on the subject is compared
+	private String summarize(Resource resource) {
+		if (!(resource instanceof Bundle)) {
+			return resource == null ? "null" : resource.fhirType();
+		}
+		StringBuilder summary = new StringBuilder("Bundle[");
+		for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+			Resource entryResource = entry.getResource();
+			summary.append(entryResource.fhirType());
+			if (entryResource instanceof Composition) {
+				Composition composition = (Composition) entryResource;
+				summary.append('(').append(composition.getSubject().getReference()).append(',')
+						.append(composition.getAuthorFirstRep().getReference()).append(')');
+			} else if (entryResource instanceof MeasureReport) {
+				MeasureReport report = (MeasureReport) entryResource;
+				summary.append('(').append(report.getSubject().getReference());
+				for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+					summary.append(',').append(group.getCode().getCodingFirstRep().getCode());
+					for (Extension extension : group.getExtension()) {
+						if (extension.getValue() instanceof CodeableConcept) {
+							summary.append('/').append(
+									((CodeableConcept) extension.getValue()).getCodingFirstRep().getCode());
+						}
+					}
+				}
+				summary.append(')');
+			} else {
+				summary.append('(').append(entryResource.getIdElement().getIdPart()).append(')');
+			}
+			summary.append(' ');
+		}
+		return summary.append(']').toString();
+	}
+}
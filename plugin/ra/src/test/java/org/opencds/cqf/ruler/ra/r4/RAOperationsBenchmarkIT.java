@@ -0,0 +1,161 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.opencds.cqf.ruler.ra.RAProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.test.utility.Urls;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+
+import ca.uhn.fhir.interceptor.api.IAnonymousInterceptor;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.IPreResourceAccessDetails;
+
+/**
+ * Runs $ra.coding-gaps, $ra.remediate-coding-gaps, $ra.approve-coding-gaps and
+ * $ra.resolve-coding-gaps over a synthetic Group and logs the wall time, the
+ * number of searches and resources read, and the peak heap of each operation.
+ * The population sizes come from the ra.benchmark.sizes system property, a
+ * comma separated list that defaults to 100, so larger runs such as
+ * -Dra.benchmark.sizes=10000,100000 are opt in. It only runs with the
+ * benchmark profile.
+ */
+@Tag("benchmark")
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		RAConfig.class }, properties = {
+				"hapi.fhir.fhir_version=r4",
+				"hapi.fhir.ra.composition.ra_composition_section_author=Organization/alphora-author",
+				"hapi.fhir.ra_enabled=true",
+				"hapi.fhir.cr.enabled=true" })
+class RAOperationsBenchmarkIT extends RestIntegrationTest {
+	private static final Logger logger = LoggerFactory.getLogger(RAOperationsBenchmarkIT.class);
+
+	private static final long SEED = 20211018L;
+
+	@Autowired
+	private RAProperties myRaProperties;
+
+	@Autowired
+	private IInterceptorService myInterceptorService;
+
+	@BeforeEach
+	void beforeEach() {
+		String ourServerBase = Urls.getUrl(myRaProperties.getReport().getEndpoint(), getPort());
+		myRaProperties.getReport().setEndpoint(ourServerBase);
+		loadResource("AlphoraAuthor-organization.json");
+		loadResource("Organization-ra-payer01.json");
+	}
+
+	@Test
+	void testOperations() {
+		RASyntheticPopulation population = new RASyntheticPopulation(getDaoRegistry(), SEED);
+		for (String size : System.getProperty("ra.benchmark.sizes", "100").split(",")) {
+			int patients = Integer.parseInt(size.trim());
+			String subject = population.create("ra-benchmark-" + patients, patients);
+
+			Parameters codingGaps = run("$ra.coding-gaps", patients, parameters(
+					stringPart(RAConstants.PERIOD_START, RASyntheticPopulation.PERIOD_START),
+					stringPart(RAConstants.PERIOD_END, RASyntheticPopulation.PERIOD_END),
+					stringPart(RAConstants.SUBJECT, subject)));
+			population.store(bundles(codingGaps));
+
+			Parameters remediated = run("$ra.remediate-coding-gaps", patients, parameters(
+					stringPart(RAConstants.PERIOD_START, RASyntheticPopulation.PERIOD_START),
+					stringPart(RAConstants.PERIOD_END, RASyntheticPopulation.PERIOD_END),
+					stringPart(RAConstants.SUBJECT, subject)));
+			population.store(bundles(remediated));
+
+			Parameters approved = run("$ra.approve-coding-gaps", patients, parameters(
+					stringPart(RAConstants.PERIOD_START, RASyntheticPopulation.PERIOD_START),
+					stringPart(RAConstants.PERIOD_END, RASyntheticPopulation.PERIOD_END),
+					stringPart(RAConstants.SUBJECT, subject),
+					stringPart("measureId", RASyntheticPopulation.MEASURE_ID)));
+			population.store(bundles(approved));
+
+			run("$ra.resolve-coding-gaps", patients, parameters(
+					stringPart(RAConstants.PERIOD_START, RASyntheticPopulation.PERIOD_START),
+					stringPart(RAConstants.PERIOD_END, RASyntheticPopulation.PERIOD_END),
+					stringPart(RAConstants.SUBJECT, subject)));
+		}
+	}
+
+	private Parameters run(String operation, int patients, Parameters params) {
+		AtomicLong searches = new AtomicLong();
+		AtomicLong resources = new AtomicLong();
+		IAnonymousInterceptor searchCounter = (pointcut, args) -> searches.incrementAndGet();
+		IAnonymousInterceptor resourceCounter = (pointcut, args) -> resources
+				.addAndGet(args.get(IPreResourceAccessDetails.class).size());
+		myInterceptorService.registerAnonymousInterceptor(Pointcut.STORAGE_PRESEARCH_REGISTERED, searchCounter);
+		myInterceptorService.registerAnonymousInterceptor(Pointcut.STORAGE_PREACCESS_RESOURCES, resourceCounter);
+		resetPeakHeap();
+		Parameters result;
+		long start = System.nanoTime();
+		try {
+			result = getClient().operation().onType(MeasureReport.class).named(operation).withParameters(params)
+					.returnResourceType(Parameters.class).execute();
+		} finally {
+			myInterceptorService.unregisterInterceptor(searchCounter);
+			myInterceptorService.unregisterInterceptor(resourceCounter);
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertEquals(patients, result.getParameter().size(), operation + " did not return a result per patient");
+		logger.info("{} for {} patients: {} ms, {} searches, {} resources read, {} MB peak heap", operation,
+				patients, elapsed, searches.get(), resources.get(), peakHeap() / (1024 * 1024));
+		return result;
+	}
+
+	private List<Bundle> bundles(Parameters result) {
+		List<Bundle> bundles = new ArrayList<>();
+		for (Parameters.ParametersParameterComponent parameter : result.getParameter()) {
+			if (parameter.getResource() instanceof Bundle) {
+				bundles.add((Bundle) parameter.getResource());
+			}
+		}
+		return bundles;
+	}
+
+	// The server runs in this JVM, so the heap pools cover both the client and the
+	// operation
+	private void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
@@ -0,0 +1,180 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.ruler.ra.RAConstants;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+/**
+ * Generates a synthetic RA population: Patients with one MeasureReport each,
+ * condition category groups with a mix of suspect types and evidence statuses,
+ * a Condition and Encounter as evidence for the closed gaps, and a Group of all
+ * of the Patients. Resources are written through the system DAO in transactions
+ * of {@link #BATCH_SIZE} and the same seed always generates the same population.
+ */
+class RASyntheticPopulation {
+	static final String MEASURE_URL = "https://build.fhir.org/ig/HL7/davinci-ra/Measure-RAModelExample01";
+	static final String MEASURE_ID = "Measure-RAModelExample01";
+	static final String PERIOD_START = "2021-01-01";
+	static final String PERIOD_END = "2021-12-31";
+
+	private static final int BATCH_SIZE = 500;
+	private static final int MIN_GROUPS = 4;
+	private static final int MAX_GROUPS = 12;
+	private static final String[] CC_CODES = { "18", "19", "22", "24", "59", "83", "84", "85", "96", "108", "110",
+			"111", "112", "189" };
+	private static final String[] SUSPECT_TYPES = { RAConstants.HISTORIC_CODE, RAConstants.SUSPECTED_CODE,
+			RAConstants.NET_NEW_CODE };
+	private static final String[] EVIDENCE_STATUSES = { RAConstants.CLOSED_GAP_CODE, RAConstants.OPEN_GAP_CODE,
+			"pending" };
+
+	private final DaoRegistry daoRegistry;
+	private final Random random;
+
+	RASyntheticPopulation(DaoRegistry daoRegistry, long seed) {
+		this.daoRegistry = daoRegistry;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Creates the population and the Group of its Patients.
+	 *
+	 * @param name     used as the Group id and as the prefix of every resource id
+	 * @param patients the number of Patients
+	 * @return the Group reference
+	 */
+	String create(String name, int patients) {
+		Group group = new Group().setType(Group.GroupType.PERSON).setActual(true);
+		group.setId(name);
+		List<Resource> batch = new ArrayList<>();
+		for (int i = 0; i < patients; i++) {
+			String patientId = name + "-patient-" + i;
+			group.addMember().setEntity(new Reference("Patient/" + patientId));
+			addPatient(name + "-" + i, patientId, batch);
+			if (batch.size() >= BATCH_SIZE) {
+				write(batch);
+			}
+		}
+		batch.add(group);
+		write(batch);
+		return "Group/" + name;
+	}
+
+	/**
+	 * Stores coding gap report Bundles, so they are the most recent Bundles of
+	 * their subjects for the approve, resolve and remediate operations.
+	 *
+	 * @param bundles the Bundles
+	 */
+	void store(List<Bundle> bundles) {
+		// document Bundles are not nested in a transaction, so each is written on its
+		// own, and the operations return them without ids
+		for (Bundle bundle : bundles) {
+			if (bundle.hasIdElement() && bundle.getIdElement().hasIdPart()) {
+				daoRegistry.getResourceDao(Bundle.class).update(bundle, new SystemRequestDetails());
+			} else {
+				daoRegistry.getResourceDao(Bundle.class).create(bundle, new SystemRequestDetails());
+			}
+		}
+	}
+
+	private void addPatient(String prefix, String patientId, List<Resource> batch) {
+		Patient patient = new Patient();
+		patient.setId(patientId);
+		patient.addName().setFamily("Synthetic").addGiven(patientId);
+		patient.setGender(random.nextBoolean() ? Enumerations.AdministrativeGender.FEMALE
+				: Enumerations.AdministrativeGender.MALE);
+		batch.add(patient);
+
+		MeasureReport report = new MeasureReport();
+		report.setId(prefix + "-report");
+		report.setMeta(new Meta().addProfile(RAConstants.PATIENT_REPORT_URL));
+		report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+		report.setType(MeasureReport.MeasureReportType.INDIVIDUAL);
+		report.setMeasure(MEASURE_URL);
+		report.setSubject(new Reference("Patient/" + patientId));
+		report.setDateElement(new DateTimeType("2021-10-18"));
+		report.setReporter(new Reference("Organization/ra-payer01"));
+		report.setPeriod(new Period().setStartElement(new DateTimeType(PERIOD_START))
+				.setEndElement(new DateTimeType("2021-09-30")));
+
+		int groups = MIN_GROUPS + random.nextInt(MAX_GROUPS - MIN_GROUPS + 1);
+		int first = random.nextInt(CC_CODES.length);
+		for (int g = 0; g < groups && g < CC_CODES.length; g++) {
+			String groupId = String.format("group-%03d", g + 1);
+			String evidenceStatus = EVIDENCE_STATUSES[random.nextInt(EVIDENCE_STATUSES.length)];
+			MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+			group.setId(groupId);
+			group.setCode(new CodeableConcept(new Coding().setSystem(RAConstants.HCC_CODESYSTEM_URL)
+					.setVersion("24").setCode(CC_CODES[(first + g) % CC_CODES.length])));
+			group.addExtension(codeableConceptExtension(RAConstants.SUSPECT_TYPE_URL,
+					RAConstants.SUSPECT_TYPE_SYSTEM, SUSPECT_TYPES[random.nextInt(SUSPECT_TYPES.length)]));
+			group.addExtension(codeableConceptExtension(RAConstants.EVIDENCE_STATUS_URL,
+					RAConstants.EVIDENCE_STATUS_SYSTEM, evidenceStatus));
+			group.addExtension(new Extension(RAConstants.EVIDENCE_STATUS_DATE_URL,
+					new DateType(String.format("2021-%02d-15", 1 + random.nextInt(9)))));
+			group.addExtension(codeableConceptExtension(RAConstants.HIERARCHICAL_STATUS_URL,
+					RAConstants.HIERARCHICAL_STATUS_SYSTEM, "applied-not-superseded"));
+
+			if (RAConstants.CLOSED_GAP_CODE.equals(evidenceStatus)) {
+				String encounterId = prefix + "-encounter-" + g;
+				Encounter encounter = new Encounter().setStatus(Encounter.EncounterStatus.FINISHED)
+						.setClass_(new Coding("http://terminology.hl7.org/CodeSystem/v3-ActCode", "AMB", null))
+						.setSubject(new Reference("Patient/" + patientId));
+				encounter.setId(encounterId);
+				Condition condition = new Condition().setSubject(new Reference("Patient/" + patientId))
+						.setEncounter(new Reference("Encounter/" + encounterId));
+				condition.setId(prefix + "-condition-" + g);
+				batch.add(encounter);
+				batch.add(condition);
+				report.addEvaluatedResource(evidence("Condition/" + condition.getIdElement().getIdPart(), groupId));
+				report.addEvaluatedResource(evidence("Encounter/" + encounterId, groupId));
+			}
+		}
+		batch.add(report);
+	}
+
+	private Reference evidence(String reference, String groupId) {
+		Reference evidence = new Reference(reference);
+		evidence.addExtension(RAConstants.GROUP_REFERENCE_URL, new StringType(groupId));
+		return evidence;
+	}
+
+	private Extension codeableConceptExtension(String url, String system, String code) {
+		return new Extension(url, new CodeableConcept(new Coding().setSystem(system).setCode(code)));
+	}
+
+	private void write(List<Resource> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		for (Resource resource : batch) {
+			transaction.addEntry().setResource(resource).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+					.setUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+		}
+		daoRegistry.getSystemDao().transaction(new SystemRequestDetails(), transaction);
+		batch.clear();
+	}
+}
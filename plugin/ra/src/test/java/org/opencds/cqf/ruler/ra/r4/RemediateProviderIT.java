@@ -3,17 +3,21 @@ package org.opencds.cqf.ruler.ra.r4;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.booleanPart;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.opencds.cqf.ruler.ra.RAConfig;
+import org.opencds.cqf.ruler.ra.RAConstants;
 import org.opencds.cqf.ruler.ra.RAProperties;
 import org.opencds.cqf.ruler.test.RestIntegrationTest;
 import org.opencds.cqf.ruler.test.utility.Urls;
@@ -105,4 +109,73 @@ class RemediateProviderIT extends RestIntegrationTest {
 		assertTrue(raBundle.getEntry().get(4).getResource() instanceof MeasureReport);
 		assertEquals(12, raBundle.getEntry().size());
 	}
+
+	@Test
+	void testRemediateWithoutCodingGapReport() {
+		loadResource("Patient-ra-patient01.json");
+
+		Parameters params = parameters(
+				stringPart("periodStart", "2021-01-01"),
+				stringPart("periodEnd", "2021-12-31"),
+				stringPart("subject", "Patient/ra-patient01"));
+
+		Parameters result = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.remediate-coding-gaps").withParameters(params)
+				.useHttpGet().returnResourceType(Parameters.class).execute();
+
+		// the patient gets an OperationOutcome instead of failing the request
+		assertEquals(1, result.getParameter().size());
+		assertTrue(result.getParameterFirstRep().getResource() instanceof OperationOutcome);
+	}
+
+	@DirtiesContext
+	@Test
+	void testRemediatePersist() {
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+		loadResource("Bundle-ra-coding-gaps-result-1.json");
+		loadResource("Bundle-ra-coding-gaps-result-2.json");
+		loadResource("Bundle-ra-coding-gaps-result-3.json");
+		loadResource("DetectedIssue-ra-measurereport03-remediate.json");
+
+		Parameters params = parameters(
+				stringPart("periodStart", "2021-01-01"),
+				stringPart("periodEnd", "2021-12-31"),
+				stringPart("subject", "Patient/ra-patient02"),
+				booleanPart(RAConstants.PERSIST, true));
+
+		Parameters result = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.remediate-coding-gaps").withParameters(params)
+				.returnResourceType(Parameters.class).execute();
+
+		assertEquals(2, result.getParameter().size());
+		Parameters.ParametersParameterComponent persisted = result.getParameter(RAConstants.PERSISTED_PARAM_NAME);
+		assertEquals(1, getCount(persisted, "patients"));
+		assertEquals(1, getCount(persisted, "Bundle"));
+		assertEquals(1, getCount(persisted, "Composition"));
+		assertEquals(0, getCount(persisted, "failed"));
+
+		// the stored Composition has the section of the new DetectedIssue
+		Bundle raBundle = (Bundle) result.getParameter(RAConstants.RETURN_PARAM_NAME).getResource();
+		Composition composition = getClient().read().resource(Composition.class)
+				.withId(raBundle.getEntryFirstRep().getResource().getIdElement().getIdPart()).execute();
+		assertEquals(3, composition.getSection().size());
+		assertEquals(((Composition) raBundle.getEntryFirstRep().getResource()).getSection().size(),
+				composition.getSection().size());
+		// the new Bundle is stored next to the three it was built from
+		Bundle stored = getClient().search().forResource(Bundle.class).withProfile(RAConstants.CODING_GAP_BUNDLE_URL)
+				.returnBundle(Bundle.class).execute();
+		assertEquals(4, stored.getEntry().size());
+	}
+
+	private int getCount(Parameters.ParametersParameterComponent summary, String name) {
+		return summary.getPart().stream().filter(part -> name.equals(part.getName())).findFirst()
+				.map(part -> ((IntegerType) part.getValue()).getValue()).orElse(0);
+	}
 }
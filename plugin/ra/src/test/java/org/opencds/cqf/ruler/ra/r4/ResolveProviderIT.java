@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.utility.r4.Parameters.booleanPart;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.stringPart;
 
@@ -11,7 +12,9 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -96,6 +99,94 @@ class ResolveProviderIT extends RestIntegrationTest {
 		assertEquals(12, raBundle.getEntry().size());
 	}
 
+	@DirtiesContext
+	@Test
+	void closurePersistTest() {
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+		loadResource("Bundle-ra-approve-result-closure.json");
+
+		Parameters params = parameters(
+				stringPart("periodStart", "2021-01-01"),
+				stringPart("periodEnd", "2021-12-31"),
+				stringPart("subject", "Patient/ra-patient02"),
+				booleanPart(RAConstants.PERSIST, true));
+
+		Parameters result = getClient().operation().onType(MeasureReport.class)
+				.named("$ra.resolve-coding-gaps").withParameters(params)
+				.returnResourceType(Parameters.class).execute();
+
+		assertEquals(2, result.getParameter().size());
+		Parameters.ParametersParameterComponent persisted = result.getParameter(RAConstants.PERSISTED_PARAM_NAME);
+		assertEquals(1, getCount(persisted, "patients"));
+		assertEquals(1, getCount(persisted, "Bundle"));
+		assertEquals(1, getCount(persisted, "Composition"));
+		assertEquals(1, getCount(persisted, "MeasureReport"));
+		assertEquals(1, getCount(persisted, "transactions"));
+		assertEquals(0, getCount(persisted, "failed"));
+
+		// the stored Composition and MeasureReport match the returned Bundle
+		Bundle raBundle = (Bundle) result.getParameter(RAConstants.RETURN_PARAM_NAME).getResource();
+		Composition composition = getClient().read().resource(Composition.class)
+				.withId(raBundle.getEntryFirstRep().getResource().getIdElement().getIdPart()).execute();
+		assertEquals("final", composition.getStatus().toCode());
+		MeasureReport report = getClient().read().resource(MeasureReport.class).withId("ra-measurereport03")
+				.execute();
+		Extension evidenceStatus = report.getGroup().get(1).getExtensionByUrl(RAConstants.EVIDENCE_STATUS_URL);
+		assertEquals(RAConstants.CLOSED_GAP_CODE,
+				((CodeableConcept) evidenceStatus.getValue()).getCodingFirstRep().getCode());
+	}
+
+	@DirtiesContext
+	@Test
+	void groupMemberWithoutReportTest() {
+		loadResource("Organization-ra-payer01.json");
+		loadResource("Observation-ra-obs01pat02.json");
+		loadResource("Encounter-ra-encounter31pat02.json");
+		loadResource("Encounter-ra-measurereport03-remediate.json");
+		loadResource("Condition-ra-condition31pat02.json");
+		loadResource("Condition-ra-measurereport03-remediate.json");
+		loadResource("Patient-ra-patient02.json");
+		loadResource("MeasureReport-ra-measurereport03.json");
+		loadResource("Bundle-ra-approve-result-closure.json");
+		// ra-patient03 has no coding gap report Bundle
+		loadResource("Patient-ra-patient03.json");
+		loadResource("Group-ra-group02.json");
+
+		for (boolean persist : new boolean[] { false, true }) {
+			Parameters params = parameters(
+					stringPart("periodStart", "2021-01-01"),
+					stringPart("periodEnd", "2021-12-31"),
+					stringPart("subject", "Group/ra-group02"),
+					booleanPart(RAConstants.PERSIST, persist));
+
+			Parameters result = getClient().operation().onType(MeasureReport.class)
+					.named("$ra.resolve-coding-gaps").withParameters(params)
+					.returnResourceType(Parameters.class).execute();
+
+			assertEquals(persist ? 3 : 2, result.getParameter().size());
+			assertTrue(result.getParameter().get(0).getResource() instanceof Bundle);
+			assertTrue(result.getParameter().get(1).getResource() instanceof OperationOutcome);
+			if (persist) {
+				Parameters.ParametersParameterComponent persisted = result
+						.getParameter(RAConstants.PERSISTED_PARAM_NAME);
+				assertEquals(1, getCount(persisted, "patients"));
+				assertEquals(0, getCount(persisted, "failed"));
+			}
+		}
+	}
+
+	private int getCount(Parameters.ParametersParameterComponent summary, String name) {
+		return summary.getPart().stream().filter(part -> name.equals(part.getName())).findFirst()
+				.map(part -> ((IntegerType) part.getValue()).getValue()).orElse(0);
+	}
+
 	@DirtiesContext
 	@Test
 	void invalidationTest() {
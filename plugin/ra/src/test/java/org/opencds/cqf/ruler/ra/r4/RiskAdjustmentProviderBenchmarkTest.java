@@ -0,0 +1,151 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.ra.RAConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Checks the $davinci-ra.evaluate-measure post-processing of an evaluated report
+ * against the expected processed report of a fixture. The throughput over a
+ * report with many condition category groups is only timed with the benchmark
+ * profile.
+ */
+class RiskAdjustmentProviderBenchmarkTest {
+	private static final Logger logger = LoggerFactory.getLogger(RiskAdjustmentProviderBenchmarkTest.class);
+
+	private static final int GROUPS = 90;
+	private static final int SUPPLEMENTAL_DATA = 200;
+	private static final int REPORTS = 200;
+	private static final int ITERATIONS = 5;
+	private static final String[] POPULATIONS = { RAConstants.HISTORIC_CODE, RAConstants.SUSPECTED_CODE,
+			RAConstants.NET_NEW_CODE };
+
+	@Test
+	void testProcessing() throws IOException {
+		IParser parser = FhirContext.forR4Cached().newJsonParser();
+		MeasureReport unprocessed;
+		MeasureReport expected;
+		try (Reader reader = fixture("risk-adjustment-unprocessed.json")) {
+			unprocessed = parser.parseResource(MeasureReport.class, reader);
+		}
+		try (Reader reader = fixture("risk-adjustment-processed.json")) {
+			expected = parser.parseResource(MeasureReport.class, reader);
+		}
+
+		Resource processed = new RiskAdjustmentProvider().processReport(unprocessed);
+		assertTrue(processed instanceof MeasureReport);
+		assertTrue(expected.equalsDeep(processed), parser.encodeResourceToString(processed));
+	}
+
+	@Test
+	@Tag("benchmark")
+	void testProcessingThroughput() {
+		MeasureReport report = report();
+		RiskAdjustmentProvider provider = new RiskAdjustmentProvider();
+		assertTrue(provider.processReport(report.copy()) instanceof MeasureReport);
+
+		long best = time(report, provider::processReport);
+		logger.info("Post-processing of {} reports with {} groups: {} reports/s (best of {} runs)",
+				REPORTS, GROUPS, reportsPerSecond(best), ITERATIONS);
+	}
+
+	private Reader fixture(String name) {
+		InputStream stream = getClass().getResourceAsStream(name);
+		assertTrue(stream != null, name);
+		return new InputStreamReader(stream, StandardCharsets.UTF_8);
+	}
+
+	private MeasureReport report() {
+		MeasureReport report = new MeasureReport();
+		report.setId("ra-benchmark-report");
+		report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+		report.setType(MeasureReport.MeasureReportType.INDIVIDUAL);
+		report.setMeasure("https://build.fhir.org/ig/HL7/davinci-ra/Measure-RAModelExample01");
+		report.setSubject(new Reference("Patient/ra-patient01"));
+		report.setPeriod(new Period().setStartElement(new DateTimeType("2021-01-01"))
+				.setEndElement(new DateTimeType("2021-12-31")));
+
+		// supplemental data before the measure data usage Observation, as the
+		// evaluation returns them
+		for (int i = 0; i < SUPPLEMENTAL_DATA; i++) {
+			Observation sde = new Observation();
+			sde.setId("sde-" + i);
+			sde.setCode(new CodeableConcept(new Coding().setSystem("http://terminology.hl7.org/CodeSystem/v2-0203")
+					.setCode("sde-" + i)));
+			sde.setValue(new StringType("value-" + i));
+			report.addContained(sde);
+			report.addEvaluatedResource(new Reference("#sde-" + i));
+		}
+		Observation dataUsage = new Observation();
+		dataUsage.setId("evidence-date");
+		dataUsage.setCode(new CodeableConcept(new Coding()
+				.setSystem("http://terminology.hl7.org/CodeSystem/measure-data-usage").setCode("supplemental-data")));
+		dataUsage.setValue(new CodeableConcept(new Coding().setCode("2021-10-18")));
+		report.addContained(dataUsage);
+
+		for (int g = 0; g < GROUPS; g++) {
+			MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+			group.setId("group-" + g);
+			group.setCode(new CodeableConcept(new Coding().setSystem(RAConstants.HCC_CODESYSTEM_URL)
+					.setVersion("24").setCode(String.valueOf(g + 1))));
+			for (int p = 0; p < POPULATIONS.length; p++) {
+				MeasureReport.MeasureReportGroupStratifierComponent stratifier = group.addStratifier();
+				stratifier.addCode(new CodeableConcept(new Coding().setCode(POPULATIONS[p])));
+				// each group includes the subject in one population only, and net-new
+				// open gaps are reported as issues, so they are not generated
+				boolean included = g % POPULATIONS.length == p;
+				boolean open = included && g % 2 == 0 && !RAConstants.NET_NEW_CODE.equals(POPULATIONS[p]);
+				stratifier.addStratum().setValue(new CodeableConcept().setText(String.valueOf(included)))
+						.setMeasureScore(new Quantity(open ? 0 : 1));
+				stratifier.addStratum().setValue(new CodeableConcept().setText(String.valueOf(!included)))
+						.setMeasureScore(new Quantity(1));
+			}
+		}
+		return report;
+	}
+
+	private long time(MeasureReport report, Function<MeasureReport, Resource> process) {
+		long best = Long.MAX_VALUE;
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			long elapsed = 0;
+			for (int i = 0; i < REPORTS; i++) {
+				// each evaluation returns a new report, so copying it is not timed
+				MeasureReport unprocessed = report.copy();
+				long start = System.nanoTime();
+				process.apply(unprocessed);
+				elapsed += System.nanoTime() - start;
+			}
+			best = Math.min(best, elapsed);
+		}
+		return best;
+	}
+
+	private long reportsPerSecond(long nanos) {
+		return REPORTS * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+	}
+}
@@ -83,6 +83,26 @@ class RiskAdjustmentProviderIT extends RestIntegrationTest {
 		validateMeasureReport(response, "net-new", "closed-gap", new DateType("2022-01-31"));
 	}
 
+	@Test
+	void riskAssessmentGroup() {
+		loadTransaction("tests-hist-open-HCC189-bundle.json");
+		loadTransaction("tests-hist-closed-HCC189-bundle.json");
+		loadTransaction("tests-netnew-HCC189-bundle.json");
+		loadResource("Group-ra-hcc189-group.json");
+
+		Parameters resultParams = callOperation(getRequestParameters("Group/ra-hcc189-group"));
+
+		// one risk adjustment Bundle per member, in Group member order
+		assertEquals(3, resultParams.getParameter().size());
+		assertEquals("Patient/hist-open-HCC189", resultParams.getParameter().get(0).getName());
+		assertEquals("Patient/hist-closed-HCC189", resultParams.getParameter().get(1).getName());
+		assertEquals("Patient/netnew-HCC189", resultParams.getParameter().get(2).getName());
+		for (Parameters.ParametersParameterComponent parameter : resultParams.getParameter()) {
+			assertTrue(parameter.getResource() instanceof Bundle);
+			validateBundle((Bundle) parameter.getResource());
+		}
+	}
+
 	private Parameters getRequestParameters(String subject) {
 		return parameters(
 				stringPart("periodStart", "2022-01-01"),
@@ -0,0 +1,107 @@
+package org.opencds.cqf.ruler.ra.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.DetectedIssue;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+
+class RiskAdjustmentUserTest implements RiskAdjustmentUser {
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return null;
+	}
+
+	@Override
+	public FhirContext getFhirContext() {
+		return FhirContext.forR4Cached();
+	}
+
+	@Test
+	void testAuthorExactMatch() {
+		Practitioner practitioner = new Practitioner();
+		practitioner.setId("payer01");
+		Organization organization = new Organization();
+		organization.setId("payer01");
+		// the Practitioner comes first, so it is the one kept for the bare id
+		Bundle bundle = bundle(composition("Organization/payer01"), practitioner, organization);
+
+		CodingGapReportBundleEntries entries = getCodingGapReportBundleEntries(bundle);
+		assertSame(organization, getAuthorFromBundle(entries, entries.getComposition()));
+		assertSame(organization, getAuthorFromBundle(bundle, entries.getComposition()));
+	}
+
+	@Test
+	void testAuthorByAbsoluteFullUrl() {
+		Organization organization = new Organization();
+		organization.setId("payer01");
+		Bundle bundle = bundle(composition("Organization/payer01"));
+		bundle.addEntry().setFullUrl("http://example.org/fhir/Organization/payer01").setResource(organization);
+
+		CodingGapReportBundleEntries entries = getCodingGapReportBundleEntries(bundle);
+		assertSame(organization, getAuthorFromBundle(entries, entries.getComposition()));
+	}
+
+	@Test
+	void testAuthorMissing() {
+		Practitioner practitioner = new Practitioner();
+		practitioner.setId("payer02");
+		Bundle bundle = bundle(composition("Organization/payer01"), practitioner);
+
+		CodingGapReportBundleEntries entries = getCodingGapReportBundleEntries(bundle);
+		assertThrows(IllegalArgumentException.class,
+				() -> getAuthorFromBundle(entries, entries.getComposition()));
+	}
+
+	@Test
+	void testEntries() {
+		Composition composition = composition("Organization/payer01");
+		MeasureReport report = new MeasureReport();
+		report.setId("ra-measurereport01");
+		DetectedIssue first = new DetectedIssue();
+		first.setId("issue-0");
+		DetectedIssue second = new DetectedIssue();
+		second.setId("issue-1");
+		Bundle bundle = bundle(composition, report, first, second);
+
+		CodingGapReportBundleEntries entries = getCodingGapReportBundleEntries(bundle);
+		assertSame(composition, entries.getComposition());
+		assertSame(report, entries.getReport());
+		assertEquals(List.of(first, second), entries.getIssues());
+		// callers add to the issues, which does not change the entries
+		entries.getIssues().add(new DetectedIssue());
+		assertEquals(2, entries.getIssues().size());
+		assertSame(report, entries.getByReference().get("MeasureReport/ra-measurereport01"));
+	}
+
+	private Composition composition(String author) {
+		Composition composition = new Composition();
+		composition.setId("ra-composition01");
+		composition.addAuthor(new Reference(author));
+		return composition;
+	}
+
+	private Bundle bundle(Resource... resources) {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.DOCUMENT);
+		bundle.setId("coding-gaps-ra-patient01");
+		for (Resource resource : resources) {
+			bundle.addEntry().setFullUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+					.setResource(resource);
+		}
+		return bundle;
+	}
+}